@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.benchmark;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sweeps concurrency levels, from 1 to 256 outstanding callbacks.
+ * <p>
+ * For each level, throughput is reported in ops/s and latency percentiles (p50, p99, p99.9) in
+ * microseconds. Results are written as JSON to {@code okra-<mode>-<threads>.json} so they can be
+ * compared between releases. Usage:
+ * <pre>
+ * java -Dokra.benchmark.mongo=mongodb://localhost:27017 -jar benchmarks/target/benchmarks.jar [threads...]
+ * </pre>
+ */
+public final class BenchmarkRunner {
+
+    private static final int[] DEFAULT_CONCURRENCY = {1, 4, 16, 64, 256};
+
+    public static void main(final String[] args) throws RunnerException {
+        final int[] concurrencyLevels = args.length == 0
+                ? DEFAULT_CONCURRENCY
+                : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+
+        for (final int threads : concurrencyLevels) {
+            run(threads, Mode.Throughput, TimeUnit.SECONDS);
+            run(threads, Mode.SampleTime, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private static void run(final int threads, final Mode mode, final TimeUnit unit) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(OkraBenchmark.class.getSimpleName())
+                .threads(threads)
+                .mode(mode)
+                .timeUnit(unit)
+                .jvmArgsAppend("-Dokra.benchmark.mongo=" + System.getProperty("okra.benchmark.mongo",
+                        "mongodb://localhost:27017"))
+                .resultFormat(ResultFormatType.JSON)
+                .result("okra-" + mode.shortLabel() + "-" + threads + ".json")
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.benchmark;
+
+import com.mongodb.async.client.MongoClients;
+import okra.base.model.OkraStatus;
+import okra.codec.OkraItemCodecProvider;
+import okra.model.DefaultOkraItem;
+import okra.serialization.DocumentSerializer;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares decoding a claimed item through {@code Document} and {@link DocumentSerializer}, the former path,
+ * with decoding it straight from BSON through {@code OkraItemCodec}. Both start from the same raw bytes,
+ * as received from the server. Run it with the GC profiler to compare allocation rates:
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar org.openjdk.jmh.Main DecodingBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodingBenchmark {
+
+    private final DocumentSerializer serializer = new DocumentSerializer();
+    private final DecoderContext decoderContext = DecoderContext.builder().build();
+
+    private Codec<Document> documentCodec;
+    private Codec<DefaultOkraItem> itemCodec;
+    private byte[] bson;
+
+    @Setup
+    public void setUp() {
+        final CodecRegistry registry = CodecRegistries.fromRegistries(
+                CodecRegistries.fromProviders(new OkraItemCodecProvider()),
+                MongoClients.getDefaultCodecRegistry());
+
+        documentCodec = registry.get(Document.class);
+        itemCodec = registry.get(DefaultOkraItem.class);
+
+        final DefaultOkraItem item = new DefaultOkraItem();
+        item.setId(new ObjectId().toHexString());
+        item.setRunDate(LocalDateTime.now().minusMinutes(1));
+        item.setHeartbeat(LocalDateTime.now());
+        item.setStatus(OkraStatus.PROCESSING);
+
+        final BasicOutputBuffer buffer = new BasicOutputBuffer();
+        itemCodec.encode(new BsonBinaryWriter(buffer), item, EncoderContext.builder().build());
+        bson = buffer.toByteArray();
+    }
+
+    @Benchmark
+    public DefaultOkraItem throughDocument() {
+        final Document document = documentCodec.decode(new BsonBinaryReader(ByteBuffer.wrap(bson)), decoderContext);
+        return serializer.fromDocument(DefaultOkraItem.class, document);
+    }
+
+    @Benchmark
+    public DefaultOkraItem throughCodec() {
+        return itemCodec.decode(new BsonBinaryReader(ByteBuffer.wrap(bson)), decoderContext);
+    }
+}
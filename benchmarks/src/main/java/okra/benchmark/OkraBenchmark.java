@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.benchmark;
+
+import okra.base.async.callback.OkraCountCallback;
+import okra.base.async.callback.OkraItemCallback;
+import okra.base.async.callback.OkraItemOperationCallback;
+import okra.base.async.callback.OkraItemScheduleCallback;
+import okra.base.model.OkraStatus;
+import okra.model.DefaultOkraItem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency and throughput of every {@code OkraAsyncImpl} operation.
+ * <p>
+ * Each benchmark thread keeps exactly one callback outstanding, so the number of JMH threads
+ * is the number of concurrent operations. See {@link BenchmarkRunner} to sweep it.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class OkraBenchmark {
+
+    @Benchmark
+    public void schedule(final OkraState state) {
+        OkraState.<Void>await(future -> state.okra.schedule(OkraState.newItem(), new OkraItemScheduleCallback() {
+
+            @Override
+            public void onSuccess() {
+                future.complete(null);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        }));
+    }
+
+    @Benchmark
+    public DefaultOkraItem peek(final OkraState state) {
+        return OkraState.await(future -> state.okra.peek(itemCallback(future)));
+    }
+
+    @Benchmark
+    public DefaultOkraItem poll(final OkraState state) {
+        return OkraState.await(future -> state.okra.poll(itemCallback(future)));
+    }
+
+    @Benchmark
+    public DefaultOkraItem heartbeat(final OkraState state, final ClaimedItem claimed) {
+        final DefaultOkraItem renewed = OkraState.await(future ->
+                state.okra.heartbeat(claimed.item, operationCallback(future)));
+
+        if (renewed != null) {
+            claimed.item = renewed;
+        }
+
+        return renewed;
+    }
+
+    @Benchmark
+    public DefaultOkraItem reschedule(final OkraState state, final ItemToReschedule claimed) {
+        claimed.item.setRunDate(LocalDateTime.now().minusMinutes(1));
+        return OkraState.await(future -> state.okra.reschedule(claimed.item, operationCallback(future)));
+    }
+
+    @Benchmark
+    public long countByStatus(final OkraState state) {
+        return OkraState.await(future -> state.okra.countByStatus(OkraStatus.PENDING, new OkraCountCallback() {
+
+            @Override
+            public void onSuccess(final long count) {
+                future.complete(count);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        }));
+    }
+
+    /**
+     * Item claimed once per iteration and kept alive by the heartbeat benchmark
+     */
+    @State(Scope.Thread)
+    public static class ClaimedItem {
+
+        DefaultOkraItem item;
+
+        @Setup(Level.Iteration)
+        public void claim(final OkraState state) {
+            item = OkraState.await(future -> state.okra.peek(itemCallback(future)));
+        }
+    }
+
+    /**
+     * A rescheduled item loses its lease, so a fresh one is claimed before every invocation
+     */
+    @State(Scope.Thread)
+    public static class ItemToReschedule {
+
+        DefaultOkraItem item;
+
+        @Setup(Level.Invocation)
+        public void claim(final OkraState state) {
+            item = OkraState.await(future -> state.okra.peek(itemCallback(future)));
+        }
+    }
+
+    private static OkraItemCallback<DefaultOkraItem> itemCallback(final CompletableFuture<DefaultOkraItem> future) {
+        return new OkraItemCallback<DefaultOkraItem>() {
+
+            @Override
+            public void onSuccess(final DefaultOkraItem item) {
+                future.complete(item);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        };
+    }
+
+    private static OkraItemOperationCallback<DefaultOkraItem> operationCallback(
+            final CompletableFuture<DefaultOkraItem> future) {
+        return new OkraItemOperationCallback<DefaultOkraItem>() {
+
+            @Override
+            public void onSuccess(final DefaultOkraItem item) {
+                future.complete(item);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        };
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.benchmark;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoClientSettings;
+import com.mongodb.async.client.MongoClients;
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.connection.ClusterSettings;
+import com.mongodb.connection.ConnectionPoolSettings;
+import okra.OkraAsyncBuilder;
+import okra.OkraAsyncImpl;
+import okra.base.model.OkraStatus;
+import okra.callback.OkraItemsScheduleCallback;
+import okra.model.DefaultOkraItem;
+import okra.model.ScheduleFailure;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Queue shared by every benchmark thread, seeded with {@code depth} due items.
+ * <p>
+ * Runs against the mongod given by the {@code okra.benchmark.mongo} system property,
+ * {@code mongodb://localhost:27017} by default.
+ */
+@State(Scope.Benchmark)
+public class OkraState {
+
+    private static final int SEED_BATCH_SIZE = 10_000;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int depth;
+
+    public MongoClient client;
+    public OkraAsyncImpl<DefaultOkraItem> okra;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final ConnectionString connectionString =
+                new ConnectionString(System.getProperty("okra.benchmark.mongo", "mongodb://localhost:27017"));
+
+        // Enough connections for the highest concurrency level, so the pool is not what we measure
+        final MongoClientSettings settings = MongoClientSettings.builder()
+                .applicationName("okraBenchmarks")
+                .clusterSettings(ClusterSettings.builder().applyConnectionString(connectionString).build())
+                .connectionPoolSettings(ConnectionPoolSettings.builder().maxSize(256).maxWaitQueueSize(4096).build())
+                .build();
+
+        client = MongoClients.create(settings);
+
+        final String collection = "okraBenchmark_" + depth;
+
+        OkraState.<Void>await(future -> client.getDatabase("okraBenchmarks")
+                .getCollection(collection)
+                .drop((result, throwable) -> complete(future, result, throwable)));
+
+        okra = new OkraAsyncBuilder<DefaultOkraItem>()
+                .withMongo(client)
+                .withDatabase("okraBenchmarks")
+                .withCollection(collection)
+                .withItemClass(DefaultOkraItem.class)
+                .withExpiration(5, TimeUnit.MINUTES)
+                .build();
+
+        topUp();
+    }
+
+    /**
+     * Gives every claimed item back and re-creates what was polled or deleted,
+     * so each iteration starts with {@code depth} due items.
+     */
+    @Setup(Level.Iteration)
+    public void topUp() {
+        final Document processing = new Document("status", OkraStatus.PROCESSING.name());
+        final Document release = new Document("$set", new Document("status", OkraStatus.PENDING.name())
+                .append("heartbeat", null));
+
+        OkraState.<Void>await(future -> collection()
+                .updateMany(processing, release, (result, throwable) -> complete(future, null, throwable)));
+
+        final long count = OkraState.<Long>await(future -> collection()
+                .count((result, throwable) -> complete(future, result, throwable)));
+
+        for (long missing = depth - count; missing > 0; missing -= SEED_BATCH_SIZE) {
+            final List<DefaultOkraItem> items = new ArrayList<>();
+
+            for (int i = 0; i < Math.min(missing, SEED_BATCH_SIZE); i++) {
+                items.add(newItem());
+            }
+
+            OkraState.<Void>await(future -> okra.scheduleAll(items, new OkraItemsScheduleCallback<DefaultOkraItem>() {
+
+                @Override
+                public void onSuccess(final int scheduledCount, final List<ScheduleFailure<DefaultOkraItem>> failures) {
+                    future.complete(null);
+                }
+
+                @Override
+                public void onFailure(final Throwable throwable) {
+                    future.completeExceptionally(throwable);
+                }
+            }));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        OkraState.<Void>await(future -> collection().drop((result, throwable) -> complete(future, result, throwable)));
+        okra.close();
+        client.close();
+    }
+
+    public static DefaultOkraItem newItem() {
+        final DefaultOkraItem item = new DefaultOkraItem();
+        item.setRunDate(LocalDateTime.now().minusMinutes(1));
+        item.setStatus(OkraStatus.PENDING);
+        return item;
+    }
+
+    /**
+     * Blocks until the asynchronous operation started by {@code operation} completes the given future
+     */
+    public static <R> R await(final Consumer<CompletableFuture<R>> operation) {
+        final CompletableFuture<R> future = new CompletableFuture<>();
+        operation.accept(future);
+
+        try {
+            return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (final Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static <R> void complete(final CompletableFuture<R> future, final R result, final Throwable throwable) {
+        if (throwable == null) {
+            future.complete(result);
+        } else {
+            future.completeExceptionally(throwable);
+        }
+    }
+
+    private MongoCollection<Document> collection() {
+        return client.getDatabase(okra.getDatabase()).getCollection(okra.getCollection());
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.benchmark.load;
+
+import java.util.Locale;
+
+/**
+ * Minimal streaming JSON writer for the results, so the harness needs no extra dependency.
+ * Only numbers and plain strings are written.
+ */
+final class JsonWriter {
+
+    private final StringBuilder json = new StringBuilder();
+    private boolean first = true;
+
+    JsonWriter beginObject() {
+        separate();
+        json.append('{');
+        first = true;
+        return this;
+    }
+
+    JsonWriter endObject() {
+        json.append('}');
+        first = false;
+        return this;
+    }
+
+    JsonWriter beginArray() {
+        separate();
+        json.append('[');
+        first = true;
+        return this;
+    }
+
+    JsonWriter endArray() {
+        json.append(']');
+        first = false;
+        return this;
+    }
+
+    /**
+     * Starts a field whose value is an object or an array
+     */
+    JsonWriter name(final String name) {
+        separate();
+        string(name);
+        json.append(':');
+        first = true;
+        return this;
+    }
+
+    JsonWriter field(final String name, final String value) {
+        name(name);
+        first = false;
+        string(value);
+        return this;
+    }
+
+    JsonWriter field(final String name, final long value) {
+        name(name);
+        first = false;
+        json.append(value);
+        return this;
+    }
+
+    JsonWriter field(final String name, final double value) {
+        name(name);
+        first = false;
+        json.append(Double.isFinite(value) ? String.format(Locale.ROOT, "%.3f", value) : "null");
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return json.toString();
+    }
+
+    private void separate() {
+        if (!first) {
+            json.append(',');
+        }
+        first = false;
+    }
+
+    private void string(final String value) {
+        json.append('"');
+        for (final char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                json.append('\\');
+            }
+            json.append(c);
+        }
+        json.append('"');
+    }
+}
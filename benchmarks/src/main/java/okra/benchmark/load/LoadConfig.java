@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.benchmark.load;
+
+import com.mongodb.ConnectionString;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings of a load run, read from {@code okra.load.*} system properties
+ */
+final class LoadConfig {
+
+    static final String MEMORY = "memory";
+
+    /**
+     * {@value #MEMORY} for the in-process stand-in, or the connection string of a mongod
+     */
+    final String target;
+    final int nodes;
+    final int consumersPerNode;
+    final int ratePerSecond;
+    final long durationSeconds;
+    final long reportIntervalSeconds;
+    final long leaseMillis;
+    final long workMillis;
+    /**
+     * Fraction of claimed items left unfinished, as if their consumer crashed, to measure lease recovery
+     */
+    final double abandonRate;
+    final String output;
+
+    private LoadConfig(final String target, final int nodes, final int consumersPerNode, final int ratePerSecond,
+                       final long durationSeconds, final long reportIntervalSeconds, final long leaseMillis,
+                       final long workMillis, final double abandonRate, final String output) {
+        if (nodes <= 0 || consumersPerNode <= 0 || ratePerSecond <= 0 || durationSeconds <= 0
+                || reportIntervalSeconds <= 0 || leaseMillis <= 0 || workMillis < 0
+                || abandonRate < 0 || abandonRate >= 1) {
+            throw new IllegalArgumentException("Invalid load settings");
+        }
+        this.target = target;
+        this.nodes = nodes;
+        this.consumersPerNode = consumersPerNode;
+        this.ratePerSecond = ratePerSecond;
+        this.durationSeconds = durationSeconds;
+        this.reportIntervalSeconds = reportIntervalSeconds;
+        this.leaseMillis = leaseMillis;
+        this.workMillis = workMillis;
+        this.abandonRate = abandonRate;
+        this.output = output;
+    }
+
+    static LoadConfig fromSystemProperties() {
+        return new LoadConfig(
+                System.getProperty("okra.load.target", MEMORY),
+                Integer.getInteger("okra.load.nodes", 4),
+                Integer.getInteger("okra.load.consumers", 8),
+                Integer.getInteger("okra.load.rate", 1_000),
+                Long.getLong("okra.load.duration", TimeUnit.MINUTES.toSeconds(1)),
+                Long.getLong("okra.load.interval", 10),
+                Long.getLong("okra.load.lease", TimeUnit.SECONDS.toMillis(5)),
+                Long.getLong("okra.load.work", 2),
+                Double.parseDouble(System.getProperty("okra.load.abandon", "0.001")),
+                System.getProperty("okra.load.output", "okra-load-" + System.currentTimeMillis() + ".json"));
+    }
+
+    boolean inMemory() {
+        return MEMORY.equals(target);
+    }
+
+    /**
+     * Target as written to the results, without any credentials of the connection string
+     */
+    String describeTarget() {
+        return inMemory() ? MEMORY : "mongodb://" + String.join(",", new ConnectionString(target).getHosts());
+    }
+
+    void writeJson(final JsonWriter json) {
+        json.beginObject()
+                .field("target", describeTarget())
+                .field("nodes", nodes)
+                .field("consumersPerNode", consumersPerNode)
+                .field("ratePerSecond", ratePerSecond)
+                .field("durationSeconds", durationSeconds)
+                .field("leaseMillis", leaseMillis)
+                .field("workMillis", workMillis)
+                .field("abandonRate", abandonRate)
+                .endObject();
+    }
+}
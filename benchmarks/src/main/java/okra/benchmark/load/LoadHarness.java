@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.benchmark.load;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoClients;
+import okra.OkraAsyncBuilder;
+import okra.OkraAsyncImpl;
+import okra.base.async.OkraAsync;
+import okra.base.async.callback.OkraCountCallback;
+import okra.memory.InMemoryOkraAsync;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load and soak test: several simulated nodes, each with its own client, producing and consuming
+ * against one queue for a fixed duration, then draining it.
+ * <p>
+ * Every {@code okra.load.interval} seconds, scheduling and completion rates, backlog and the latency from
+ * {@code runDate} to claim are printed. At the end, sustained throughput, claim latency percentiles,
+ * duplicate completions, lost items and the time needed to recover abandoned leases are written as JSON,
+ * so runs can be compared across builds. Exits with status 1 when an item was completed twice or lost.
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar \
+ *      -Dokra.load.target=mongodb://localhost:27017 -Dokra.load.duration=3600 \
+ *      okra.benchmark.load.LoadHarness
+ * </pre>
+ * Settings ({@code okra.load.*}): {@code target} ({@code memory}, the default, or a connection string),
+ * {@code nodes}, {@code consumers} per node, {@code rate} of scheduled items per second over all nodes,
+ * {@code duration} and {@code interval} in seconds, {@code lease} and {@code work} (mean processing time)
+ * in milliseconds, {@code abandon} rate of claimed items left unfinished and {@code output} file.
+ */
+public final class LoadHarness {
+
+    private static final String DATABASE = "okraLoad";
+    private static final String COLLECTION = "okraLoad";
+
+    private final LoadConfig config;
+    private final LoadStats stats = new LoadStats();
+    private final List<LoadNode> nodes = new ArrayList<>();
+    private final List<MongoClient> clients = new ArrayList<>();
+    private final List<OkraAsyncImpl<LoadItem>> okras = new ArrayList<>();
+
+    private LoadHarness(final LoadConfig config) {
+        this.config = config;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final LoadConfig config = LoadConfig.fromSystemProperties();
+        final boolean clean = new LoadHarness(config).run();
+        System.exit(clean ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        final Instant startedAt = Instant.now();
+        final List<OkraAsync<LoadItem>> queues = createQueues();
+
+        for (int i = 0; i < config.nodes; i++) {
+            nodes.add(new LoadNode(i, queues.get(i), config, stats));
+        }
+
+        System.out.printf("Running %d nodes x %d consumers at %d items/s against %s for %d s%n",
+                config.nodes, config.consumersPerNode, config.ratePerSecond, config.describeTarget(),
+                config.durationSeconds);
+
+        nodes.forEach(LoadNode::start);
+
+        final long loadStart = System.currentTimeMillis();
+        final long loadEnd = loadStart + TimeUnit.SECONDS.toMillis(config.durationSeconds);
+
+        while (System.currentTimeMillis() < loadEnd) {
+            Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(config.reportIntervalSeconds),
+                    Math.max(1, loadEnd - System.currentTimeMillis())));
+            report(queues.get(0));
+        }
+
+        final long loadSeconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - loadStart));
+
+        // Abandoned leases have to expire before the last items can be claimed again
+        nodes.forEach(LoadNode::drain);
+        final long drainEnd = System.currentTimeMillis() + config.leaseMillis * 2 + TimeUnit.SECONDS.toMillis(60);
+        while (stats.outstanding() > 0 && System.currentTimeMillis() < drainEnd) {
+            Thread.sleep(100);
+        }
+        report(queues.get(0));
+
+        for (final LoadNode node : nodes) {
+            node.stop();
+        }
+        close();
+
+        final JsonWriter json = new JsonWriter().beginObject()
+                .field("startedAt", startedAt.toString())
+                .field("loadSeconds", loadSeconds);
+        json.name("config");
+        config.writeJson(json);
+        stats.writeJson(json, loadSeconds);
+        json.endObject();
+
+        Files.write(Paths.get(config.output), json.toString().getBytes(StandardCharsets.UTF_8));
+
+        System.out.printf("Completed %d of %d items, %d duplicate completions. Results written to %s%n",
+                stats.completedCount(), stats.scheduledCount(), stats.duplicateCompletions(), config.output);
+
+        return stats.duplicateCompletions() == 0 && stats.outstanding() == 0;
+    }
+
+    private List<OkraAsync<LoadItem>> createQueues() throws Exception {
+        final List<OkraAsync<LoadItem>> queues = new ArrayList<>(config.nodes);
+
+        if (config.inMemory()) {
+            // In-process stand-in: the nodes share the queue, like separate processes share a collection
+            final InMemoryOkraAsync<LoadItem> queue =
+                    new InMemoryOkraAsync<>(DATABASE, COLLECTION, LoadItem.class, config.leaseMillis);
+            for (int i = 0; i < config.nodes; i++) {
+                queues.add(queue);
+            }
+            return queues;
+        }
+
+        for (int i = 0; i < config.nodes; i++) {
+            final MongoClient client = MongoClients.create(new ConnectionString(config.target));
+            clients.add(client);
+
+            if (i == 0) {
+                final CompletableFuture<Void> dropped = new CompletableFuture<>();
+                client.getDatabase(DATABASE).getCollection(COLLECTION).drop((result, throwable) ->
+                        complete(dropped, throwable));
+                dropped.get(30, TimeUnit.SECONDS);
+            }
+
+            final OkraAsyncImpl<LoadItem> okra = new OkraAsyncBuilder<LoadItem>()
+                    .withMongo(client)
+                    .withDatabase(DATABASE)
+                    .withCollection(COLLECTION)
+                    .withItemClass(LoadItem.class)
+                    .withExpiration(config.leaseMillis, TimeUnit.MILLISECONDS)
+                    .build();
+            okra.ready().get(60, TimeUnit.SECONDS);
+
+            okras.add(okra);
+            queues.add(okra);
+        }
+
+        return queues;
+    }
+
+    private void report(final OkraAsync<LoadItem> queue) {
+        final CompletableFuture<Long> backlog = new CompletableFuture<>();
+
+        queue.countDelayed(new OkraCountCallback() {
+
+            @Override
+            public void onSuccess(final long count) {
+                backlog.complete(count);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                backlog.completeExceptionally(throwable);
+            }
+        });
+
+        long count;
+        try {
+            count = backlog.get(30, TimeUnit.SECONDS);
+        } catch (final Exception e) {
+            stats.error();
+            count = -1;
+        }
+
+        System.out.println(stats.interval(count));
+    }
+
+    private void close() {
+        okras.forEach(OkraAsyncImpl::close);
+        clients.forEach(MongoClient::close);
+    }
+
+    private static void complete(final CompletableFuture<Void> future, final Throwable throwable) {
+        if (throwable == null) {
+            future.complete(null);
+        } else {
+            future.completeExceptionally(throwable);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.benchmark.load;
+
+import okra.base.async.OkraAsync;
+import okra.base.async.callback.OkraItemCallback;
+import okra.base.async.callback.OkraItemDeleteCallback;
+import okra.base.async.callback.OkraItemScheduleCallback;
+import okra.base.model.OkraStatus;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * One simulated node: a producer scheduling its share of the load at a steady rate, and consumer threads
+ * claiming, processing and deleting items. Consumers block on every operation, like a typical worker would.
+ */
+final class LoadNode {
+
+    private static final long PRODUCER_TICK_MILLIS = 10;
+    private static final long IDLE_MILLIS = 5;
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private final int index;
+    private final OkraAsync<LoadItem> okra;
+    private final LoadConfig config;
+    private final LoadStats stats;
+    private final double ratePerMilli;
+
+    private final ScheduledExecutorService producer;
+    private final List<Thread> consumers = new ArrayList<>();
+
+    private volatile boolean consuming = true;
+    private volatile boolean draining;
+
+    private long producerStartMillis;
+    private long produced;
+
+    LoadNode(final int index, final OkraAsync<LoadItem> okra, final LoadConfig config, final LoadStats stats) {
+        this.index = index;
+        this.okra = okra;
+        this.config = config;
+        this.stats = stats;
+        this.ratePerMilli = config.ratePerSecond / 1000.0 / config.nodes;
+        this.producer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "okra-load-producer-" + index);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void start() {
+        producerStartMillis = System.currentTimeMillis();
+        producer.scheduleAtFixedRate(this::produce, 0, PRODUCER_TICK_MILLIS, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < config.consumersPerNode; i++) {
+            final Thread consumer = new Thread(this::consume, "okra-load-consumer-" + index + "-" + i);
+            consumer.setDaemon(true);
+            consumer.start();
+            consumers.add(consumer);
+        }
+    }
+
+    /**
+     * Stops scheduling, consumers keep going and stop abandoning items so the queue can be drained
+     */
+    void drain() {
+        draining = true;
+        producer.shutdown();
+    }
+
+    void stop() throws InterruptedException {
+        producer.shutdownNow();
+        consuming = false;
+
+        for (final Thread consumer : consumers) {
+            consumer.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        }
+    }
+
+    private void produce() {
+        // Catches up on missed ticks, so the rate holds even when scheduling is slow
+        final long due = (long) ((System.currentTimeMillis() - producerStartMillis) * ratePerMilli);
+
+        for (; produced < due; produced++) {
+            final LoadItem item = new LoadItem();
+            item.setSequence(stats.nextSequence());
+            item.setRunDate(LocalDateTime.now());
+            item.setStatus(OkraStatus.PENDING);
+
+            try {
+                okra.schedule(item, new OkraItemScheduleCallback() {
+
+                    @Override
+                    public void onSuccess() {
+                        stats.scheduled();
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable throwable) {
+                        stats.error();
+                    }
+                });
+            } catch (final RuntimeException e) {
+                // Would cancel the periodic task otherwise
+                stats.error();
+            }
+        }
+    }
+
+    private void consume() {
+        while (consuming) {
+            try {
+                final LoadItem item = await(future -> okra.peek(new OkraItemCallback<LoadItem>() {
+
+                    @Override
+                    public void onSuccess(final LoadItem claimed) {
+                        future.complete(claimed);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable throwable) {
+                        future.completeExceptionally(throwable);
+                    }
+                }));
+
+                if (item == null) {
+                    Thread.sleep(IDLE_MILLIS);
+                    continue;
+                }
+
+                stats.claimed(item, System.currentTimeMillis());
+
+                if (!draining && ThreadLocalRandom.current().nextDouble() < config.abandonRate) {
+                    // Crashed consumer: the item is recovered once its lease expires
+                    stats.abandoned(item, config.leaseMillis);
+                    continue;
+                }
+
+                if (config.workMillis > 0) {
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(config.workMillis * 2 + 1));
+                }
+
+                final long deletedCount = await(future -> okra.delete(item, new OkraItemDeleteCallback() {
+
+                    @Override
+                    public void onSuccess(final long deleted) {
+                        future.complete(deleted);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable throwable) {
+                        future.completeExceptionally(throwable);
+                    }
+                }));
+
+                stats.completed(item, deletedCount);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (final Exception e) {
+                stats.error();
+            }
+        }
+    }
+
+    private static <R> R await(final Consumer<CompletableFuture<R>> operation) throws Exception {
+        final CompletableFuture<R> future = new CompletableFuture<>();
+        operation.accept(future);
+        return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+}
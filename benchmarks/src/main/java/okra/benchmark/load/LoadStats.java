@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.benchmark.load;
+
+import okra.util.DateUtil;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Everything observed during a load run, shared by every simulated node.
+ * <p>
+ * Items are tracked by sequence number in bit sets, one bit per item, so hour-long runs
+ * stay within a few megabytes.
+ */
+final class LoadStats {
+
+    private final long startMillis = System.currentTimeMillis();
+
+    private final AtomicLong sequences = new AtomicLong();
+    private final LongAdder scheduled = new LongAdder();
+    private final LongAdder claims = new LongAdder();
+    private final LongAdder reclaims = new LongAdder();
+    private final LongAdder abandoned = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder staleCompletions = new LongAdder();
+    private final LongAdder duplicateCompletions = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    private final BitSet claimedSequences = new BitSet();
+    private final BitSet completedSequences = new BitSet();
+
+    /**
+     * Lease expiry of abandoned items, by sequence, until they are claimed again
+     */
+    private final Map<Long, Long> abandonedLeases = new ConcurrentHashMap<>();
+
+    private final LatencyHistogram claimLatency = new LatencyHistogram();
+    private final LatencyHistogram recoveryTime = new LatencyHistogram();
+    private final AtomicReference<LatencyHistogram> intervalClaimLatency = new AtomicReference<>(new LatencyHistogram());
+
+    private final List<Interval> intervals = new ArrayList<>();
+    private long lastIntervalMillis = startMillis;
+    private long lastScheduled;
+    private long lastCompleted;
+
+    long nextSequence() {
+        return sequences.getAndIncrement();
+    }
+
+    void scheduled() {
+        scheduled.increment();
+    }
+
+    void claimed(final LoadItem item, final long nowMillis) {
+        claims.increment();
+
+        if (set(claimedSequences, item.getSequence())) {
+            // Later claims of the same item are accounted for as lease recoveries
+            final long latency = nowMillis - DateUtil.toDate(item.getRunDate()).getTime();
+            claimLatency.record(latency);
+            intervalClaimLatency.get().record(latency);
+        } else {
+            reclaims.increment();
+        }
+
+        final Long leaseExpiry = abandonedLeases.remove(item.getSequence());
+        if (leaseExpiry != null) {
+            recoveryTime.record(nowMillis - leaseExpiry);
+        }
+    }
+
+    void abandoned(final LoadItem item, final long leaseMillis) {
+        abandoned.increment();
+        abandonedLeases.put(item.getSequence(), DateUtil.toDate(item.getHeartbeat()).getTime() + leaseMillis);
+    }
+
+    void completed(final LoadItem item, final long deletedCount) {
+        if (deletedCount == 0) {
+            // Lease lost while processing, fencing refused the completion
+            staleCompletions.increment();
+        } else if (set(completedSequences, item.getSequence())) {
+            completed.increment();
+        } else {
+            duplicateCompletions.increment();
+        }
+    }
+
+    void error() {
+        errors.increment();
+    }
+
+    long outstanding() {
+        return scheduled.sum() - completed.sum();
+    }
+
+    /**
+     * Closes the current reporting interval
+     */
+    Interval interval(final long backlog) {
+        final long now = System.currentTimeMillis();
+        final long scheduledCount = scheduled.sum();
+        final long completedCount = completed.sum();
+        final double seconds = Math.max(1, now - lastIntervalMillis) / 1000.0;
+
+        final LatencyHistogram latency = intervalClaimLatency.getAndSet(new LatencyHistogram());
+
+        final Interval interval = new Interval(
+                (now - startMillis) / 1000,
+                (scheduledCount - lastScheduled) / seconds,
+                (completedCount - lastCompleted) / seconds,
+                backlog,
+                latency.percentile(0.5),
+                latency.percentile(0.99),
+                latency.max());
+
+        synchronized (intervals) {
+            intervals.add(interval);
+        }
+
+        lastIntervalMillis = now;
+        lastScheduled = scheduledCount;
+        lastCompleted = completedCount;
+
+        return interval;
+    }
+
+    void writeJson(final JsonWriter json, final long loadSeconds) {
+        json.field("scheduled", scheduled.sum())
+                .field("completed", completed.sum())
+                .field("lost", outstanding())
+                .field("throughputPerSecond", (double) completed.sum() / loadSeconds)
+                .field("claims", claims.sum())
+                .field("reclaims", reclaims.sum())
+                .field("abandoned", abandoned.sum())
+                .field("staleCompletions", staleCompletions.sum())
+                .field("duplicateCompletions", duplicateCompletions.sum())
+                .field("errors", errors.sum());
+
+        json.name("claimLatencyMillis");
+        writeJson(json, claimLatency);
+
+        json.name("leaseRecoveryMillis");
+        writeJson(json, recoveryTime);
+
+        json.name("intervals").beginArray();
+        synchronized (intervals) {
+            intervals.forEach(interval -> interval.writeJson(json));
+        }
+        json.endArray();
+    }
+
+    long scheduledCount() {
+        return scheduled.sum();
+    }
+
+    long completedCount() {
+        return completed.sum();
+    }
+
+    long duplicateCompletions() {
+        return duplicateCompletions.sum();
+    }
+
+    private static void writeJson(final JsonWriter json, final LatencyHistogram histogram) {
+        json.beginObject()
+                .field("count", histogram.count())
+                .field("mean", histogram.mean())
+                .field("p50", histogram.percentile(0.5))
+                .field("p90", histogram.percentile(0.9))
+                .field("p99", histogram.percentile(0.99))
+                .field("p999", histogram.percentile(0.999))
+                .field("max", histogram.max())
+                .endObject();
+    }
+
+    /**
+     * @return {@code false} if the bit was already set
+     */
+    private static boolean set(final BitSet bits, final long sequence) {
+        final int index = Math.toIntExact(sequence);
+
+        synchronized (bits) {
+            if (bits.get(index)) {
+                return false;
+            }
+            bits.set(index);
+            return true;
+        }
+    }
+
+    static final class Interval {
+
+        final long elapsedSeconds;
+        final double scheduledPerSecond;
+        final double completedPerSecond;
+        final long backlog;
+        final long p50ClaimLatencyMillis;
+        final long p99ClaimLatencyMillis;
+        final long maxClaimLatencyMillis;
+
+        private Interval(final long elapsedSeconds, final double scheduledPerSecond, final double completedPerSecond,
+                         final long backlog, final long p50ClaimLatencyMillis, final long p99ClaimLatencyMillis,
+                         final long maxClaimLatencyMillis) {
+            this.elapsedSeconds = elapsedSeconds;
+            this.scheduledPerSecond = scheduledPerSecond;
+            this.completedPerSecond = completedPerSecond;
+            this.backlog = backlog;
+            this.p50ClaimLatencyMillis = p50ClaimLatencyMillis;
+            this.p99ClaimLatencyMillis = p99ClaimLatencyMillis;
+            this.maxClaimLatencyMillis = maxClaimLatencyMillis;
+        }
+
+        private void writeJson(final JsonWriter json) {
+            json.beginObject()
+                    .field("elapsedSeconds", elapsedSeconds)
+                    .field("scheduledPerSecond", scheduledPerSecond)
+                    .field("completedPerSecond", completedPerSecond)
+                    .field("backlog", backlog)
+                    .field("p50ClaimLatencyMillis", p50ClaimLatencyMillis)
+                    .field("p99ClaimLatencyMillis", p99ClaimLatencyMillis)
+                    .field("maxClaimLatencyMillis", maxClaimLatencyMillis)
+                    .endObject();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%5ds  scheduled %8.1f/s  completed %8.1f/s  backlog %8d  claim latency p50 %5d ms  p99 %6d ms",
+                    elapsedSeconds, scheduledPerSecond, completedPerSecond, backlog,
+                    p50ClaimLatencyMillis, p99ClaimLatencyMillis);
+        }
+    }
+}
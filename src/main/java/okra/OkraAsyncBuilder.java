@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import com.mongodb.async.client.MongoClient;
+import lombok.AccessLevel;
+import lombok.Getter;
+import okra.base.model.OkraItem;
+import okra.claim.ClaimStrategy;
+import okra.dispatch.CallbackDispatcher;
+import okra.metrics.OkraMetrics;
+import okra.partition.PartitionedOkraAsync;
+import okra.retry.RetryPolicy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@Getter(AccessLevel.PACKAGE)
+public class OkraAsyncBuilder<T extends OkraItem> {
+
+    private MongoClient mongo;
+    private String database;
+    private String collection;
+    private Class<T> itemClass;
+    private long expirationMillis;
+
+    private int coalescingMaxBatchSize;
+    private long coalescingMaxDelayNanos;
+
+    private boolean wakeUpSignals;
+
+    private ClaimStrategy claimStrategy;
+
+    private CallbackDispatcher dispatcher = CallbackDispatcher.INLINE;
+
+    private boolean archiveCompleted;
+    private long archiveRetentionSeconds;
+
+    private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+    private OkraMetrics metrics = OkraMetrics.NOOP;
+    private long metricsSamplingIntervalMillis;
+
+    public OkraAsyncBuilder<T> withMongo(final MongoClient mongo) {
+        this.mongo = mongo;
+        return this;
+    }
+
+    public OkraAsyncBuilder<T> withDatabase(final String database) {
+        this.database = database;
+        return this;
+    }
+
+    public OkraAsyncBuilder<T> withCollection(final String collection) {
+        this.collection = collection;
+        return this;
+    }
+
+    public OkraAsyncBuilder<T> withItemClass(final Class<T> itemClass) {
+        this.itemClass = itemClass;
+        return this;
+    }
+
+    public OkraAsyncBuilder<T> withExpiration(final long duration, final TimeUnit unit) {
+        this.expirationMillis = unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * Buffers concurrent {@code schedule} calls and writes them with a single {@code insertMany}
+     * once {@code maxBatchSize} items are pending or {@code maxDelay} elapsed since the first one.
+     */
+    public OkraAsyncBuilder<T> withScheduleCoalescing(final int maxBatchSize, final long maxDelay, final TimeUnit unit) {
+        if (maxBatchSize <= 0 || maxDelay <= 0) {
+            throw new IllegalArgumentException("maxBatchSize and maxDelay must be greater than zero");
+        }
+        this.coalescingMaxBatchSize = maxBatchSize;
+        this.coalescingMaxDelayNanos = unit.toNanos(maxDelay);
+        return this;
+    }
+
+    /**
+     * Writes a wake-up signal for every schedule and reschedule, so subscriptions pick up new work immediately
+     */
+    public OkraAsyncBuilder<T> withWakeUpSignals() {
+        this.wakeUpSignals = true;
+        return this;
+    }
+
+    /**
+     * Claims items by priority and tenant, see {@link ClaimStrategy}. Items should implement
+     * {@link okra.model.PrioritizedOkraItem}.
+     */
+    public OkraAsyncBuilder<T> withClaimStrategy(final ClaimStrategy claimStrategy) {
+        this.claimStrategy = claimStrategy;
+        return this;
+    }
+
+    /**
+     * Runs the callbacks of claimed items through {@code dispatcher} instead of the driver threads.
+     * Claims fail with {@link okra.dispatch.OkraSaturatedException} while it is saturated.
+     */
+    public OkraAsyncBuilder<T> withCallbackDispatcher(final CallbackDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+        return this;
+    }
+
+    /**
+     * Moves completed items to the {@code <collection>_archive} collection instead of deleting them.
+     * Archived items are removed by a TTL index {@code retention} after completion, or kept forever
+     * when {@code retention} is zero.
+     */
+    public OkraAsyncBuilder<T> withArchiving(final long retention, final TimeUnit unit) {
+        if (retention < 0) {
+            throw new IllegalArgumentException("retention must not be negative");
+        }
+        this.archiveCompleted = true;
+        this.archiveRetentionSeconds = unit.toSeconds(retention);
+        return this;
+    }
+
+    /**
+     * Backoff applied by {@code fail}, and number of attempts after which items are moved to the
+     * {@code <collection>_dead} collection. Defaults to {@link RetryPolicy#DEFAULT}, which never dead-letters.
+     */
+    public OkraAsyncBuilder<T> withRetryPolicy(final RetryPolicy retryPolicy) {
+        if (retryPolicy == null) {
+            throw new IllegalArgumentException("retryPolicy is required");
+        }
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * Reports operation latencies and outcomes to {@code metrics}, and samples queue depth and
+     * scheduling lag every {@code samplingInterval} for its gauges.
+     */
+    public OkraAsyncBuilder<T> withMetrics(final OkraMetrics metrics, final long samplingInterval, final TimeUnit unit) {
+        if (metrics == null || samplingInterval <= 0) {
+            throw new IllegalArgumentException("metrics is required and samplingInterval must be greater than zero");
+        }
+        this.metrics = metrics;
+        this.metricsSamplingIntervalMillis = unit.toMillis(samplingInterval);
+        return this;
+    }
+
+    public OkraAsyncImpl<T> build() {
+        validate();
+        return new OkraAsyncImpl<>(this);
+    }
+
+    /**
+     * Builds a queue spread over {@code partitionCount} collections, named after the configured
+     * collection with a {@code _<index>} suffix. Every producer and consumer must use the same
+     * {@code partitionCount}.
+     *
+     * @param homePartition partition the returned instance claims from first
+     */
+    public PartitionedOkraAsync<T> buildPartitioned(final int partitionCount, final int homePartition) {
+        if (partitionCount <= 0) {
+            throw new IllegalArgumentException("partitionCount must be greater than zero");
+        }
+        validate();
+
+        final List<OkraAsyncImpl<T>> partitions = new ArrayList<>(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            partitions.add(new OkraAsyncImpl<>(this, collection + "_" + i, true));
+        }
+
+        // The partitions share the dispatcher and report their gauges as one
+        final PartitionedOkraAsync<T> partitioned = new PartitionedOkraAsync<>(partitions, homePartition, dispatcher);
+        if (partitioned.getGauges() != null) {
+            metrics.bindGauges(partitioned.getGauges());
+        }
+        return partitioned;
+    }
+
+    private void validate() {
+        if (mongo == null || database == null || collection == null || itemClass == null) {
+            throw new IllegalStateException("mongo, database, collection and itemClass are required");
+        }
+        if (expirationMillis <= 0) {
+            throw new IllegalStateException("expiration must be greater than zero");
+        }
+    }
+}
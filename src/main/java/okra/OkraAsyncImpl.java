@@ -21,109 +21,761 @@
  */
 package okra;
 
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoServerException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.async.SingleResultCallback;
 import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.async.client.MongoDatabase;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
 import okra.base.async.AbstractOkraAsync;
 import okra.base.async.OkraAsync;
 import okra.base.async.callback.*;
 import okra.base.model.OkraItem;
 import okra.base.model.OkraStatus;
+import okra.callback.OkraItemFailCallback;
+import okra.callback.OkraItemsCallback;
+import okra.claim.ClaimStrategy;
+import okra.codec.OkraItemCodec;
+import okra.codec.OkraItemCodecProvider;
+import okra.dispatch.CallbackDispatcher;
+import okra.dispatch.OkraSaturatedException;
+import okra.callback.OkraItemsScheduleCallback;
 import okra.exception.InvalidOkraItemException;
 import okra.index.IndexCreator;
-import okra.serialization.DocumentSerializer;
+import okra.metrics.MeteredCallbacks;
+import okra.metrics.OkraGauges;
+import okra.metrics.OkraMetrics;
+import okra.metrics.OkraOperation;
+import okra.metrics.QueueSampler;
+import okra.partition.PartitionedOkraAsync;
+import okra.model.RecurringOkraItem;
+import okra.model.RetryableOkraItem;
+import okra.model.ScheduleFailure;
+import okra.model.UniqueOkraItem;
+import okra.recurring.RecurrenceUtil;
+import okra.retry.RetryPolicy;
+import okra.schedule.ScheduleCoalescer;
+import okra.subscription.OkraSubscription;
 import okra.util.DateUtil;
 import okra.util.QueryUtil;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonInt32;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class OkraAsyncImpl<T extends OkraItem> extends AbstractOkraAsync<T> implements OkraAsync<T> {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(OkraAsyncImpl.class);
+
+    private static final String CLAIM_TOKEN = "claimToken";
+    private static final String SIGNAL_COLLECTION_SUFFIX = "_signals";
+    private static final String ARCHIVE_COLLECTION_SUFFIX = "_archive";
+    private static final String DEAD_LETTER_COLLECTION_SUFFIX = "_dead";
+    private static final String COMPLETED_AT = "completedAt";
+    private static final String FAILED_AT = "failedAt";
+    private static final int MAX_ERROR_LENGTH = 1024;
+    private static final int DUPLICATE_KEY_ERROR_CODE = 11000;
+    private static final int NAMESPACE_EXISTS_CODE = 48;
+    private static final int INSERT_BACK_ATTEMPTS = 5;
+    private static final long INSERT_BACK_RETRY_DELAY_MILLIS = 200;
+
+    /**
+     * Retries inserting back polled items, which exist nowhere else until they are stored again
+     */
+    private static final ScheduledExecutorService INSERT_BACK_TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "okra-insert-back-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final Class<T> itemClass;
     private final long defaultHeartbeatExpirationMillis;
 
     private final MongoClient client;
-    private DocumentSerializer serializer;
+    private final MongoCollection<T> itemCollection;
+    private final MongoCollection<RawBsonDocument> rawItemCollection;
+    private final Codec<T> itemCodec;
+    private final CallbackDispatcher dispatcher;
+    private final ExecutorService overflow;
+    private final boolean partition;
+
+    private final ScheduleCoalescer<T> scheduleCoalescer;
+    private final boolean wakeUpSignals;
+    private final ClaimStrategy claimStrategy;
+    private final boolean archiveCompleted;
+    private final long archiveRetentionSeconds;
+    private final RetryPolicy retryPolicy;
+    private final boolean deadLettersOnClaim;
+
+    private final MeteredCallbacks meteredCallbacks;
+    private final QueueSampler queueSampler;
+
+    private volatile CompletableFuture<Void> ready;
+    private final AtomicReference<CompletableFuture<Void>> signalCollection = new AtomicReference<>();
 
     public OkraAsyncImpl(final MongoClient mongo, final String database,
                          final String collection, final Class<T> itemClass,
                          final long defaultHeartbeatExpirationMillis) {
-        super(database, collection);
-        this.client = mongo;
-        this.itemClass = itemClass;
-        this.defaultHeartbeatExpirationMillis = defaultHeartbeatExpirationMillis;
-        this.serializer = new DocumentSerializer();
+        this(new OkraAsyncBuilder<T>()
+                .withMongo(mongo)
+                .withDatabase(database)
+                .withCollection(collection)
+                .withItemClass(itemClass)
+                .withExpiration(defaultHeartbeatExpirationMillis, TimeUnit.MILLISECONDS));
+    }
+
+    OkraAsyncImpl(final OkraAsyncBuilder<T> builder) {
+        this(builder, builder.getCollection(), false);
+    }
+
+    /**
+     * @param partition whether this is one partition of a {@link PartitionedOkraAsync}, which then owns
+     *                  the dispatcher and binds the gauges of all its partitions at once
+     */
+    OkraAsyncImpl(final OkraAsyncBuilder<T> builder, final String collection, final boolean partition) {
+        super(builder.getDatabase(), collection);
+        this.partition = partition;
+        this.client = builder.getMongo();
+        this.itemClass = builder.getItemClass();
+        this.defaultHeartbeatExpirationMillis = builder.getExpirationMillis();
+        this.itemCollection = itemCollection(client.getDatabase(getDatabase()), getCollection(), itemClass);
+        this.rawItemCollection = itemCollection.withDocumentClass(RawBsonDocument.class);
+        this.itemCodec = itemCollection.getCodecRegistry().get(itemClass);
+        this.dispatcher = builder.getDispatcher() == CallbackDispatcher.INLINE ? null : builder.getDispatcher();
+        this.overflow = dispatcher == null ? null : Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "okra-callback-overflow");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduleCoalescer = builder.getCoalescingMaxBatchSize() > 0
+                ? new ScheduleCoalescer<T>((batch, batchCallback) -> insertAll(batch, dispatched(batchCallback)),
+                builder.getCoalescingMaxBatchSize(), builder.getCoalescingMaxDelayNanos())
+                : null;
+        this.wakeUpSignals = builder.isWakeUpSignals();
+        this.claimStrategy = builder.getClaimStrategy();
+        this.archiveCompleted = builder.isArchiveCompleted();
+        this.archiveRetentionSeconds = builder.getArchiveRetentionSeconds();
+        this.retryPolicy = builder.getRetryPolicy();
+        this.deadLettersOnClaim = retryPolicy.isLimited() && RetryableOkraItem.class.isAssignableFrom(itemClass);
+
+        final OkraMetrics metrics = builder.getMetrics();
+        if (metrics == null || metrics == OkraMetrics.NOOP) {
+            this.meteredCallbacks = null;
+            this.queueSampler = null;
+        } else {
+            this.meteredCallbacks = new MeteredCallbacks(metrics);
+            this.queueSampler = new QueueSampler(
+                    client.getDatabase(getDatabase()).getCollection(getCollection()),
+                    meteredCallbacks::getInFlight,
+                    builder.getMetricsSamplingIntervalMillis(),
+                    TimeUnit.MILLISECONDS);
+            if (!partition) {
+                metrics.bindGauges(queueSampler);
+            }
+        }
+
         setup();
     }
 
     @Override
     public void setup() {
         super.setup();
-        IndexCreator.ensureIndexes(this, client, getDatabase(), getCollection());
+
+        final List<IndexModel> indexes = IndexCreator.requiredIndexes(this);
+        if (claimStrategy != null) {
+            indexes.add(IndexCreator.claimIndex(claimStrategy));
+        }
+        if (UniqueOkraItem.class.isAssignableFrom(itemClass)) {
+            indexes.add(IndexCreator.uniqueKeyIndex());
+        }
+
+        CompletableFuture<Void> indexesReady = IndexCreator.ensureIndexes(client, getDatabase(), getCollection(), indexes);
+
+        if (archiveCompleted && archiveRetentionSeconds > 0) {
+            indexesReady = CompletableFuture.allOf(indexesReady, IndexCreator.ensureIndexes(client, getDatabase(),
+                    getArchiveCollection(),
+                    Collections.singletonList(IndexCreator.ttlIndex(COMPLETED_AT, archiveRetentionSeconds))));
+        }
+
+        this.ready = indexesReady;
+
+        if (wakeUpSignals) {
+            ensureSignalCollection();
+        }
+    }
+
+    /**
+     * Completes once every index used by this okra exists. Operations work before that, but
+     * claims may scan the whole collection, so consumers should wait for it before claiming.
+     * Index creation happens in the background; completes exceptionally if it failed.
+     */
+    public CompletableFuture<Void> ready() {
+        return ready;
     }
 
     @Override
     public void peek(final OkraItemCallback<T> callback) {
+        claimItem(false, metered(OkraOperation.PEEK, callback));
+    }
+
+    /**
+     * Claims an item, deleting it when {@code delete} is set, and hands it to {@code callback}.
+     * <p>
+     * With a dispatcher, only the raw bytes are read on the driver thread and decoding happens on the
+     * dispatcher. When the dispatcher has no room left for the callback, the item is given back to the queue.
+     */
+    private void claimItem(final boolean delete, final OkraItemCallback<T> callback) {
+        if (dispatcher == null) {
+            claim(itemCollection, delete, (item, throwable) -> {
+                if (throwable == null) {
+                    callback.onSuccess(item);
+                } else {
+                    callback.onFailure(throwable);
+                }
+            });
+        } else if (dispatcher.isSaturated()) {
+            callback.onFailure(new OkraSaturatedException());
+        } else {
+            claim(rawItemCollection, delete, (raw, throwable) -> dispatch(() -> {
+                if (throwable == null) {
+                    callback.onSuccess(raw == null ? null : raw.decode(itemCodec));
+                } else {
+                    callback.onFailure(throwable);
+                }
+            }, () -> {
+                if (raw != null) {
+                    giveBack(raw, delete);
+                }
+                callback.onFailure(new OkraSaturatedException());
+            }));
+        }
+    }
+
+    private <D> void claim(final MongoCollection<D> collection, final boolean delete,
+                           final SingleResultCallback<D> callback) {
+        if (!delete) {
+            claim(collection, callback);
+            return;
+        }
+
+        claim(collection, (claimed, throwable) -> {
+            if (throwable != null || claimed == null) {
+                callback.onResult(claimed, throwable);
+                return;
+            }
+
+            client.getDatabase(getDatabase())
+                    .getCollection(getCollection())
+                    .deleteOne(leaseOf(claimed), (result, deleteThrowable) -> {
+                        // Lost the lease before deleting it, somebody else owns the item now
+                        callback.onResult(deleteThrowable == null && result.getDeletedCount() > 0 ? claimed : null,
+                                deleteThrowable);
+                    });
+        });
+    }
+
+    private <D> void claim(final MongoCollection<D> collection, final SingleResultCallback<D> callback) {
+        if (claimStrategy == null) {
+            claimOne(collection, QueryUtil.generatePeekQuery(defaultHeartbeatExpirationMillis), callback);
+        } else {
+            claimInOrder(collection, claimStrategy.nextClaimQueries(collection.getNamespace().getFullName()).iterator(), callback);
+        }
+    }
+
+    /**
+     * Tries each query of the claim strategy until one claims an item, then the regular peek query
+     */
+    private <D> void claimInOrder(final MongoCollection<D> collection,
+                                  final Iterator<Bson> queries,
+                                  final SingleResultCallback<D> callback) {
+        if (!queries.hasNext()) {
+            claimOne(collection, QueryUtil.generatePeekQuery(defaultHeartbeatExpirationMillis), callback);
+            return;
+        }
+
+        final Bson query = queries.next();
+
+        claimOne(collection, query, (claimed, throwable) -> {
+            if (throwable == null && claimed == null) {
+                claimStrategy.recordEmpty(collection.getNamespace().getFullName(), query);
+                claimInOrder(collection, queries, callback);
+            } else {
+                callback.onResult(claimed, throwable);
+            }
+        });
+    }
+
+    private <D> void claimOne(final MongoCollection<D> collection, final Bson query, final SingleResultCallback<D> callback) {
         final FindOneAndUpdateOptions options = new FindOneAndUpdateOptions();
         options.returnDocument(ReturnDocument.AFTER);
+        options.sort(QueryUtil.generatePeekSort());
 
-        final Document update = new Document();
-        update.put("heartbeat", new Date());
-        update.put("status", OkraStatus.PROCESSING.name());
+        collection.findOneAndUpdate(query, QueryUtil.generatePeekUpdate(), options, (claimed, throwable) -> {
+            final Document exhaustedLease = throwable == null ? exhaustedLease(claimed) : null;
+
+            if (exhaustedLease == null) {
+                callback.onResult(claimed, throwable);
+                return;
+            }
+
+            // Claimed more often than the retry policy allows, its processing never reported back
+            deadLetter(exhaustedLease, null, (moved, deadLetterThrowable) -> {
+                if (deadLetterThrowable != null) {
+                    callback.onResult(null, deadLetterThrowable);
+                } else {
+                    recordDeadLetter(moved);
+                    claimOne(collection, query, callback);
+                }
+            });
+        });
+    }
+
+    /**
+     * @return the lease of {@code claimed} if it must be dead-lettered rather than handed out, {@code null} otherwise
+     */
+    private Document exhaustedLease(final Object claimed) {
+        if (!deadLettersOnClaim || claimed == null) {
+            return null;
+        }
+
+        if (claimed instanceof RawBsonDocument) {
+            final BsonValue attempts = ((RawBsonDocument) claimed).get(QueryUtil.ATTEMPTS);
+
+            return attempts == null || !attempts.isNumber() || attempts.asNumber().intValue() <= retryPolicy.getMaxAttempts()
+                    ? null
+                    : leaseOf(claimed);
+        }
+
+        final Integer attempts = ((RetryableOkraItem) claimed).getAttempts();
+        return attempts != null && attempts > retryPolicy.getMaxAttempts()
+                ? leaseOf(claimed)
+                : null;
+    }
+
+    /**
+     * @return a query matching {@code claimed}, a decoded item or its raw document, as long as its lease is held
+     */
+    private static Document leaseOf(final Object claimed) {
+        if (!(claimed instanceof RawBsonDocument)) {
+            return QueryUtil.generateLeaseQuery((OkraItem) claimed);
+        }
+
+        final RawBsonDocument raw = (RawBsonDocument) claimed;
+        final BsonValue leaseToken = raw.get(QueryUtil.LEASE_TOKEN);
 
+        final Document lease = new Document();
+        lease.put("_id", raw.getObjectId("_id").getValue());
+        lease.put("status", OkraStatus.PROCESSING.name());
+        lease.put(QueryUtil.LEASE_TOKEN, leaseToken != null && leaseToken.isNumber() ? leaseToken.asNumber().longValue() : null);
+        return lease;
+    }
+
+    /**
+     * Gives a claimed item whose callback could not be dispatched back to the queue: released when it is
+     * still stored, inserted again as {@code PENDING} when it was already deleted by a poll
+     */
+    private void giveBack(final RawBsonDocument raw, final boolean deleted) {
+        final SingleResultCallback<Object> logged = (result, throwable) -> {
+            if (throwable != null) {
+                LOGGER.warn("Unable to give back item {} after a rejected dispatch", raw.get("_id"), throwable);
+            }
+        };
+
+        if (!deleted) {
+            release(leaseOf(raw), logged);
+            return;
+        }
+
+        final BsonDocument pending = new BsonDocument();
+        pending.putAll(raw);
+        pending.remove("heartbeat");
+        pending.put("status", new BsonString(OkraStatus.PENDING.name()));
+
+        final BsonValue attempts = raw.get(QueryUtil.ATTEMPTS);
+        if (attempts != null && attempts.isNumber()) {
+            pending.put(QueryUtil.ATTEMPTS, new BsonInt32(attempts.asNumber().intValue() - 1));
+        }
+
+        insertBack(bsonCollection(), Collections.singletonList(pending), 1);
+    }
+
+    /**
+     * {@link #giveBack(RawBsonDocument, boolean)} for decoded items
+     */
+    private void giveBack(final List<T> items, final boolean deleted) {
+        if (items.isEmpty()) {
+            return;
+        }
+
+        if (!deleted) {
+            release(items, new OkraCountCallback() {
+
+                @Override
+                public void onSuccess(final long count) {
+                }
+
+                @Override
+                public void onFailure(final Throwable throwable) {
+                    LOGGER.warn("Unable to release {} items after a rejected dispatch", items.size(), throwable);
+                }
+            });
+            return;
+        }
+
+        items.forEach(item -> {
+            item.setHeartbeat(null);
+            item.setStatus(OkraStatus.PENDING);
+            if (item instanceof RetryableOkraItem && ((RetryableOkraItem) item).getAttempts() != null) {
+                ((RetryableOkraItem) item).setAttempts(((RetryableOkraItem) item).getAttempts() - 1);
+            }
+        });
+
+        insertBack(itemCollection, new ArrayList<>(items), 1);
+    }
+
+    /**
+     * Inserts polled documents back, retrying with a growing delay as they are lost otherwise. Duplicate
+     * keys are documents a previous attempt already stored.
+     */
+    private static <D> void insertBack(final MongoCollection<D> collection, final List<D> documents, final int attempt) {
+        collection.insertMany(documents, new InsertManyOptions().ordered(false), (result, throwable) -> {
+            if (throwable == null || isDuplicateKey(throwable) || onlyDuplicates(throwable)) {
+                return;
+            }
+
+            if (attempt >= INSERT_BACK_ATTEMPTS) {
+                LOGGER.error("Lost {} polled items, unable to insert them back into {} after {} attempts: {}",
+                        documents.size(), collection.getNamespace(), attempt, documents, throwable);
+                return;
+            }
+
+            LOGGER.warn("Unable to insert back {} polled items after a rejected dispatch, retrying",
+                    documents.size(), throwable);
+            INSERT_BACK_TIMER.schedule(() -> insertBack(collection, documents, attempt + 1),
+                    INSERT_BACK_RETRY_DELAY_MILLIS * attempt, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private void release(final Document lease, final SingleResultCallback<Object> callback) {
         client.getDatabase(getDatabase())
                 .getCollection(getCollection())
-                .findOneAndUpdate(QueryUtil.generatePeekQuery(defaultHeartbeatExpirationMillis), update, options,
-                        (document, throwable) -> {
-                            if (throwable == null) {
-                                callback.onSuccess(serializer.fromDocument(itemClass, document));
-                            } else {
-                                callback.onFailure(throwable);
-                            }
-                        });
+                .updateOne(lease, QueryUtil.generateReleaseUpdate(), (result, throwable) -> callback.onResult(result, throwable));
     }
 
     @Override
     public void poll(final OkraItemCallback<T> callback) {
-        peek(new OkraItemCallback<T>() {
+        claimItem(true, metered(OkraOperation.POLL, callback));
+    }
+
+    /**
+     * Claims up to {@code max} due items using a fixed number of round-trips, whatever the batch size.
+     * <p>
+     * Candidate ids are selected first, then every candidate that still matches the peek query is tagged
+     * with a claim token through a single {@code updateMany} and fetched back by that token. Items that
+     * were claimed by someone else in between are simply left out of the result.
+     *
+     * @param max      maximum number of items to claim
+     * @param callback receives the claimed items, possibly an empty list
+     */
+    public void peekBatch(final int max, final OkraItemsCallback<T> callback) {
+        if (max <= 0) {
+            throw new IllegalArgumentException("max must be greater than zero");
+        }
+
+        final OkraItemsCallback<T> meteredCallback = metered(OkraOperation.PEEK_BATCH, callback);
+
+        if (dispatcher != null && dispatcher.isSaturated()) {
+            meteredCallback.onFailure(new OkraSaturatedException());
+            return;
+        }
+
+        claimBatch(max, new OkraItemsCallback<T>() {
+
+            @Override
+            public void onSuccess(final List<T> items) {
+                dispatch(() -> meteredCallback.onSuccess(items), () -> {
+                    giveBack(items, false);
+                    meteredCallback.onFailure(new OkraSaturatedException());
+                });
+            }
 
             @Override
-            public void onSuccess(final T item) {
-                delete(item, new OkraItemDeleteCallback() {
+            public void onFailure(final Throwable throwable) {
+                dispatch(() -> meteredCallback.onFailure(throwable));
+            }
+        });
+    }
 
-                    @Override
-                    public void onSuccess(final long deletedCount) {
-                        if (deletedCount > 0) {
-                            callback.onSuccess(item);
-                        }
+    private void claimBatch(final int max, final OkraItemsCallback<T> callback) {
+        final MongoCollection<Document> collection = client.getDatabase(getDatabase())
+                .getCollection(getCollection());
+
+        final Bson peekQuery = QueryUtil.generatePeekQuery(defaultHeartbeatExpirationMillis);
+
+        collection.find(peekQuery)
+                .projection(Projections.include("_id"))
+                .sort(QueryUtil.generatePeekSort())
+                .limit(max)
+                .into(new ArrayList<>(), (candidates, findThrowable) -> {
+                    if (findThrowable != null) {
+                        callback.onFailure(findThrowable);
+                        return;
                     }
 
-                    @Override
-                    public void onFailure(final Throwable throwable) {
-                        callback.onFailure(throwable);
+                    if (candidates.isEmpty()) {
+                        callback.onSuccess(Collections.emptyList());
+                        return;
                     }
+
+                    final List<Object> ids = candidates.stream()
+                            .map(candidate -> candidate.get("_id"))
+                            .collect(Collectors.toList());
+
+                    final String claimToken = new ObjectId().toHexString();
+
+                    final Document setDoc = new Document();
+                    setDoc.put("heartbeat", new Date());
+                    setDoc.put("status", OkraStatus.PROCESSING.name());
+                    setDoc.put(CLAIM_TOKEN, claimToken);
+
+                    final Document update = new Document("$set", setDoc)
+                            .append("$inc", QueryUtil.generateClaimIncrements());
+
+                    collection.updateMany(Filters.and(Filters.in("_id", ids), peekQuery), update,
+                            (result, updateThrowable) -> {
+                                if (updateThrowable != null) {
+                                    callback.onFailure(updateThrowable);
+                                } else if (result.getModifiedCount() == 0) {
+                                    callback.onSuccess(Collections.emptyList());
+                                } else {
+                                    findClaimed(ids, claimToken, callback);
+                                }
+                            });
+                });
+    }
+
+    /**
+     * Claims and deletes up to {@code max} due items.
+     *
+     * @param max      maximum number of items to poll
+     * @param callback receives the polled items, possibly an empty list
+     */
+    public void pollBatch(final int max, final OkraItemsCallback<T> callback) {
+        if (max <= 0) {
+            throw new IllegalArgumentException("max must be greater than zero");
+        }
+
+        final OkraItemsCallback<T> meteredCallback = metered(OkraOperation.POLL_BATCH, callback);
+
+        if (dispatcher != null && dispatcher.isSaturated()) {
+            meteredCallback.onFailure(new OkraSaturatedException());
+            return;
+        }
+
+        // Polled items are already deleted, they are inserted back when their callback cannot be dispatched
+        final OkraItemsCallback<T> dispatchedCallback = new OkraItemsCallback<T>() {
+
+            @Override
+            public void onSuccess(final List<T> items) {
+                dispatch(() -> meteredCallback.onSuccess(items), () -> {
+                    giveBack(items, true);
+                    meteredCallback.onFailure(new OkraSaturatedException());
                 });
             }
 
             @Override
             public void onFailure(final Throwable throwable) {
-                callback.onFailure(throwable);
+                dispatch(() -> meteredCallback.onFailure(throwable));
+            }
+        };
+
+        claimBatch(max, new OkraItemsCallback<T>() {
+
+            @Override
+            public void onSuccess(final List<T> items) {
+                if (items.isEmpty()) {
+                    dispatchedCallback.onSuccess(items);
+                    return;
+                }
+
+                final List<ObjectId> ids = items.stream()
+                        .map(item -> new ObjectId(item.getId()))
+                        .collect(Collectors.toList());
+
+                final Bson query = Filters.or(items.stream()
+                        .map(QueryUtil::generateLeaseQuery)
+                        .collect(Collectors.toList()));
+
+                client.getDatabase(getDatabase())
+                        .getCollection(getCollection())
+                        .deleteMany(query, (result, throwable) -> {
+                            if (throwable != null) {
+                                // Whether they were deleted is unknown, their leases expire if they were not
+                                dispatchedCallback.onFailure(throwable);
+                            } else if (result.getDeletedCount() == items.size()) {
+                                dispatchedCallback.onSuccess(items);
+                            } else {
+                                excludeRemaining(items, ids, dispatchedCallback);
+                            }
+                        });
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                dispatchedCallback.onFailure(throwable);
+            }
+        });
+    }
+
+    /**
+     * Reads back the candidates claimed with {@code claimToken}, through {@code _id} so that no index on the
+     * token is needed. The token is left on the items, it is never matched again and the next claim
+     * overwrites it.
+     */
+    private void findClaimed(final List<Object> ids,
+                             final String claimToken,
+                             final OkraItemsCallback<T> callback) {
+        final Bson claimedQuery = Filters.and(Filters.in("_id", ids), Filters.eq(CLAIM_TOKEN, claimToken));
+
+        itemCollection.find(claimedQuery)
+                .projection(Projections.exclude(CLAIM_TOKEN))
+                .into(new ArrayList<>(), (items, throwable) -> {
+                    if (throwable != null) {
+                        callback.onFailure(throwable);
+                        return;
+                    }
+
+                    callback.onSuccess(withoutExhausted(items));
+                });
+    }
+
+    /**
+     * Dead-letters the claimed items that exhausted their retry policy, in the background
+     */
+    private List<T> withoutExhausted(final List<T> items) {
+        if (!deadLettersOnClaim) {
+            return items;
+        }
+
+        final List<T> kept = new ArrayList<>(items.size());
+
+        items.forEach(item -> {
+            final Document exhaustedLease = exhaustedLease(item);
+
+            if (exhaustedLease == null) {
+                kept.add(item);
+                return;
             }
+
+            deadLetter(exhaustedLease, null, (moved, throwable) -> {
+                if (throwable == null) {
+                    recordDeadLetter(moved);
+                } else {
+                    LOGGER.warn("Unable to dead-letter item {}, it will be retried once its lease expires",
+                            item.getId(), throwable);
+                }
+            });
         });
+
+        return kept;
+    }
+
+    /**
+     * Some leases expired and were re-claimed before we could delete them.
+     * Whatever is still in the collection does not belong to us anymore.
+     */
+    private void excludeRemaining(final List<T> items, final List<ObjectId> ids, final OkraItemsCallback<T> callback) {
+        client.getDatabase(getDatabase())
+                .getCollection(getCollection())
+                .find(Filters.in("_id", ids))
+                .projection(Projections.include("_id"))
+                .into(new ArrayList<>(), (remaining, throwable) -> {
+                    if (throwable != null) {
+                        callback.onFailure(throwable);
+                        return;
+                    }
+
+                    final Set<String> remainingIds = remaining.stream()
+                            .map(document -> document.getObjectId("_id").toHexString())
+                            .collect(Collectors.toSet());
+
+                    callback.onSuccess(items.stream()
+                            .filter(item -> !remainingIds.contains(item.getId()))
+                            .collect(Collectors.toList()));
+                });
     }
 
     @Override
     public void delete(final T item, final OkraItemDeleteCallback callback) {
+        if (saturated()) {
+            metered(OkraOperation.DELETE, callback).onFailure(new OkraSaturatedException());
+            return;
+        }
+
+        final OkraItemDeleteCallback meteredCallback = dispatched(metered(OkraOperation.DELETE, callback));
+
+        final Document query = new Document("_id", new ObjectId(item.getId()));
+        QueryUtil.addLeaseTokenCondition(query, item);
+
         client.getDatabase(getDatabase())
                 .getCollection(getCollection())
-                .deleteOne(new Document("_id", new ObjectId(item.getId())), (result, throwable) -> {
+                .deleteOne(query, (result, throwable) -> {
                     if (throwable == null) {
-                        callback.onSuccess(result.getDeletedCount());
+                        meteredCallback.onSuccess(result.getDeletedCount());
                     } else {
-                        callback.onFailure(throwable);
+                        meteredCallback.onFailure(throwable);
                     }
                 });
     }
@@ -132,88 +784,1119 @@ public class OkraAsyncImpl<T extends OkraItem> extends AbstractOkraAsync<T> impl
     public void reschedule(final T item, final OkraItemOperationCallback<T> callback) {
         validateReschedule(item);
 
+        final OkraItemOperationCallback<T> meteredCallback = metered(OkraOperation.RESCHEDULE, callback);
+        if (saturated()) {
+            meteredCallback.onFailure(new OkraSaturatedException());
+            return;
+        }
+        final Date runDate = DateUtil.toDate(item.getRunDate());
+
         final Document query = new Document();
         query.put("_id", new ObjectId(item.getId()));
-        query.put("heartbeat", DateUtil.toDate(item.getHeartbeat()));
+        QueryUtil.addLeaseCondition(query, item);
 
         final Document setDoc = new Document();
         setDoc.put("heartbeat", null);
-        setDoc.put("runDate", DateUtil.toDate(item.getRunDate()));
+        setDoc.put("runDate", runDate);
         setDoc.put("status", OkraStatus.PENDING.name());
+        // A rescheduled item is healthy, its attempts must not add up towards the dead-letter collection
+        setDoc.put(QueryUtil.ATTEMPTS, 0);
 
         final Document update = new Document();
         update.put("$set", setDoc);
 
-        final FindOneAndUpdateOptions options = new FindOneAndUpdateOptions();
-        options.returnDocument(ReturnDocument.AFTER);
-
-        client.getDatabase(getDatabase())
-                .getCollection(getCollection())
-                .findOneAndUpdate(query, update, options, (document, throwable) -> {
-                    if (throwable == null) {
-                        callback.onSuccess(serializer.fromDocument(itemClass, document));
-                    } else {
-                        callback.onFailure(throwable);
-                    }
-                });
+        updateItem(query, update, () -> signalIfEnabled(runDate), meteredCallback);
     }
 
     @Override
     public void heartbeat(final T item, final OkraItemOperationCallback<T> callback) {
-        final Document query = new Document();
-        query.put("_id", new ObjectId(item.getId()));
-        query.put("status", OkraStatus.PROCESSING.name());
-        query.put("heartbeat", DateUtil.toDate(item.getHeartbeat()));
+        final OkraItemOperationCallback<T> meteredCallback = metered(OkraOperation.HEARTBEAT, callback);
+
+        final Document query = QueryUtil.generateLeaseQuery(item);
 
         final Document update = new Document();
         update.put("$set", new Document("heartbeat", new Date()));
 
+        updateItem(query, update, () -> {
+        }, meteredCallback);
+    }
+
+    /**
+     * Updates the item matching {@code query} and hands it back to {@code callback} as it is after the update,
+     * {@code null} if nothing matched. With a dispatcher the item is decoded there, not on the driver thread.
+     *
+     * @param updated run on the driver thread once the update succeeded
+     */
+    private void updateItem(final Bson query, final Bson update, final Runnable updated,
+                            final OkraItemOperationCallback<T> callback) {
         final FindOneAndUpdateOptions options = new FindOneAndUpdateOptions();
         options.returnDocument(ReturnDocument.AFTER);
 
+        if (dispatcher == null) {
+            itemCollection.findOneAndUpdate(query, update, options, (item, throwable) -> {
+                if (throwable == null) {
+                    updated.run();
+                    callback.onSuccess(item);
+                } else {
+                    callback.onFailure(throwable);
+                }
+            });
+            return;
+        }
+
+        rawItemCollection.findOneAndUpdate(query, update, options, (raw, throwable) -> {
+            if (throwable == null) {
+                updated.run();
+            }
+
+            dispatch(() -> {
+                if (throwable == null) {
+                    callback.onSuccess(raw == null ? null : raw.decode(itemCodec));
+                } else {
+                    callback.onFailure(throwable);
+                }
+            });
+        });
+    }
+
+    /**
+     * Gives claimed items back to the queue with a single unordered {@code bulkWrite}, keeping their
+     * {@code runDate}. Their claim does not count as an attempt. Items whose lease was lost in the meantime
+     * are left untouched.
+     *
+     * @param items    items currently held by the caller
+     * @param callback receives the number of released items
+     */
+    public void releaseAll(final Collection<T> items, final OkraCountCallback callback) {
+        release(items, dispatched(metered(OkraOperation.RELEASE_ALL, callback)));
+    }
+
+    private void release(final Collection<T> items, final OkraCountCallback callback) {
+        if (items.isEmpty()) {
+            callback.onSuccess(0);
+            return;
+        }
+
+        final List<WriteModel<Document>> writes = new ArrayList<>(items.size());
+
+        items.forEach(item -> writes.add(new UpdateOneModel<>(QueryUtil.generateLeaseQuery(item),
+                QueryUtil.generateReleaseUpdate())));
+
         client.getDatabase(getDatabase())
                 .getCollection(getCollection())
-                .findOneAndUpdate(query, update, options, (document, throwable) -> {
+                .bulkWrite(writes, new BulkWriteOptions().ordered(false), (result, throwable) -> {
                     if (throwable == null) {
-                        callback.onSuccess(serializer.fromDocument(itemClass, document));
+                        callback.onSuccess(result.getModifiedCount());
                     } else {
                         callback.onFailure(throwable);
                     }
                 });
     }
 
-    @Override
-    public void schedule(final T item, final OkraItemScheduleCallback callback) {
-        final Document document = serializer.toDocument(item);
+    /**
+     * Renews the lease of every item with a single unordered {@code bulkWrite}, without reading the
+     * documents back. The {@code heartbeat} of each renewed item is refreshed in place.
+     *
+     * @param items    items currently held by the caller
+     * @param callback receives the items whose lease was lost, empty if every lease was renewed
+     */
+    public void heartbeatAll(final Collection<T> items, final OkraItemsCallback<T> callback) {
+        final OkraItemsCallback<T> meteredCallback = dispatched(metered(OkraOperation.HEARTBEAT_ALL, callback));
+
+        if (items.isEmpty()) {
+            meteredCallback.onSuccess(Collections.emptyList());
+            return;
+        }
+
+        final List<T> itemList = new ArrayList<>(items);
+        final List<WriteModel<Document>> writes = new ArrayList<>(itemList.size());
+        final Date heartbeat = new Date();
+
+        itemList.forEach(item -> {
+            final Document query = QueryUtil.generateLeaseQuery(item);
+
+            writes.add(new UpdateOneModel<>(query, new Document("$set", new Document("heartbeat", heartbeat))));
+        });
+
+        final MongoCollection<Document> collection = client.getDatabase(getDatabase())
+                .getCollection(getCollection());
+
+        collection.bulkWrite(writes, new BulkWriteOptions().ordered(false), (result, throwable) -> {
+            if (throwable != null) {
+                meteredCallback.onFailure(throwable);
+                return;
+            }
+
+            final LocalDateTime renewedHeartbeat = LocalDateTime.ofInstant(heartbeat.toInstant(), ZoneId.systemDefault());
+
+            if (result.getMatchedCount() == itemList.size()) {
+                itemList.forEach(item -> item.setHeartbeat(renewedHeartbeat));
+                meteredCallback.onSuccess(Collections.emptyList());
+                return;
+            }
+
+            // Some conditions did not match, find out which items we still own
+            final List<ObjectId> ids = itemList.stream()
+                    .map(item -> new ObjectId(item.getId()))
+                    .collect(Collectors.toList());
+
+            collection.find(Filters.and(Filters.in("_id", ids), Filters.eq("heartbeat", heartbeat)))
+                    .projection(Projections.include("_id"))
+                    .into(new ArrayList<>(), (renewed, findThrowable) -> {
+                        if (findThrowable != null) {
+                            meteredCallback.onFailure(findThrowable);
+                            return;
+                        }
+
+                        final Set<String> renewedIds = renewed.stream()
+                                .map(document -> document.getObjectId("_id").toHexString())
+                                .collect(Collectors.toSet());
+
+                        final List<T> lost = new ArrayList<>();
+
+                        itemList.forEach(item -> {
+                            if (renewedIds.contains(item.getId())) {
+                                item.setHeartbeat(renewedHeartbeat);
+                            } else {
+                                lost.add(item);
+                            }
+                        });
+
+                        meteredCallback.onSuccess(lost);
+                    });
+        });
+    }
+
+    /**
+     * Acknowledges processed items with a single write per kind of item, instead of one
+     * {@code deleteOne} per item. Only items whose lease is still held are completed.
+     * <p>
+     * Recurring items (see {@link RecurringOkraItem}) are made {@code PENDING} again at their next run
+     * date, computed by {@link RecurrenceUtil#nextRunDate}, with one unordered {@code bulkWrite} of
+     * conditional updates that do not read anything back.
+     * <p>
+     * Other items are deleted, or moved to the archive collection when the okra was built with
+     * {@link OkraAsyncBuilder#withArchiving(long, TimeUnit)}. In the latter case they are first marked
+     * {@code DONE} then moved; items left {@code DONE} by a failed move are picked up by
+     * {@link #purgeDone(int, OkraCountCallback)}.
+     *
+     * @param items    items currently held by the caller
+     * @param callback receives the number of completed items
+     */
+    public void completeAll(final Collection<T> items, final OkraCountCallback callback) {
+        if (saturated()) {
+            metered(OkraOperation.COMPLETE_ALL, callback).onFailure(new OkraSaturatedException());
+            return;
+        }
+
+        final OkraCountCallback meteredCallback = dispatched(metered(OkraOperation.COMPLETE_ALL, callback));
+
+        if (items.isEmpty()) {
+            meteredCallback.onSuccess(0);
+            return;
+        }
+
+        final List<T> recurring = new ArrayList<>();
+        final List<T> oneShot = new ArrayList<>();
+        items.forEach(item -> (RecurrenceUtil.isRecurring(item) ? recurring : oneShot).add(item));
+
+        if (recurring.isEmpty()) {
+            completeOnce(oneShot, meteredCallback);
+        } else if (oneShot.isEmpty()) {
+            recur(recurring, meteredCallback);
+        } else {
+            final AtomicLong completed = new AtomicLong();
+            final AtomicInteger remaining = new AtomicInteger(2);
+            final AtomicBoolean failed = new AtomicBoolean();
+
+            final OkraCountCallback both = new OkraCountCallback() {
+
+                @Override
+                public void onSuccess(final long count) {
+                    completed.addAndGet(count);
+                    if (remaining.decrementAndGet() == 0 && !failed.get()) {
+                        meteredCallback.onSuccess(completed.get());
+                    }
+                }
+
+                @Override
+                public void onFailure(final Throwable throwable) {
+                    if (failed.compareAndSet(false, true)) {
+                        meteredCallback.onFailure(throwable);
+                    }
+                }
+            };
+
+            recur(recurring, both);
+            completeOnce(oneShot, both);
+        }
+    }
+
+    private void recur(final List<T> items, final OkraCountCallback callback) {
+        final LocalDateTime now = LocalDateTime.now();
+        final List<WriteModel<Document>> writes = new ArrayList<>(items.size());
+        Date earliest = null;
+
+        for (final T item : items) {
+            final Document query = QueryUtil.generateLeaseQuery(item);
+
+            final Date runDate = DateUtil.toDate(RecurrenceUtil.nextRunDate((RecurringOkraItem) item, now));
+            if (earliest == null || runDate.before(earliest)) {
+                earliest = runDate;
+            }
+
+            final Document setDoc = new Document();
+            setDoc.put("heartbeat", null);
+            setDoc.put("runDate", runDate);
+            setDoc.put("status", OkraStatus.PENDING.name());
+            setDoc.put(QueryUtil.ATTEMPTS, 0);
+            setDoc.put(QueryUtil.LAST_ERROR, null);
+
+            writes.add(new UpdateOneModel<>(query, new Document("$set", setDoc)));
+        }
+
+        final Date nextRun = earliest;
 
         client.getDatabase(getDatabase())
                 .getCollection(getCollection())
-                .insertOne(document, (result, throwable) -> {
+                .bulkWrite(writes, new BulkWriteOptions().ordered(false), (result, throwable) -> {
                     if (throwable == null) {
-                        callback.onSuccess();
+                        signalIfEnabled(nextRun);
+                        callback.onSuccess(result.getModifiedCount());
                     } else {
                         callback.onFailure(throwable);
                     }
                 });
     }
 
-    @Override
+    private void completeOnce(final List<T> items, final OkraCountCallback callback) {
+        final Bson owned = Filters.or(items.stream()
+                .map(QueryUtil::generateLeaseQuery)
+                .collect(Collectors.toList()));
+
+        final MongoCollection<Document> collection = client.getDatabase(getDatabase())
+                .getCollection(getCollection());
+
+        if (!archiveCompleted) {
+            collection.deleteMany(owned, (result, throwable) -> {
+                if (throwable == null) {
+                    callback.onSuccess(result.getDeletedCount());
+                } else {
+                    callback.onFailure(throwable);
+                }
+            });
+            return;
+        }
+
+        final Document setDoc = new Document();
+        setDoc.put("status", OkraStatus.DONE.name());
+        setDoc.put(COMPLETED_AT, new Date());
+
+        collection.updateMany(owned, new Document("$set", setDoc), (result, throwable) -> {
+            if (throwable != null) {
+                callback.onFailure(throwable);
+                return;
+            }
+
+            final List<ObjectId> ids = items.stream()
+                    .map(item -> new ObjectId(item.getId()))
+                    .collect(Collectors.toList());
+
+            archive(Filters.and(Filters.in("_id", ids), Filters.eq("status", OkraStatus.DONE.name())), ids.size(),
+                    (archived, archiveThrowable) -> {
+                        if (archiveThrowable != null) {
+                            LOGGER.warn("Unable to archive completed items, they are left DONE", archiveThrowable);
+                        }
+                        callback.onSuccess(result.getModifiedCount());
+                    });
+        });
+    }
+
+    public void complete(final T item, final OkraCountCallback callback) {
+        completeAll(Collections.singletonList(item), callback);
+    }
+
+    /**
+     * Reports that processing a claimed item failed, with a single conditional update.
+     * <p>
+     * The item is made {@code PENDING} again at the run date the {@link RetryPolicy} gives for its number of
+     * attempts, keeping {@code error} as its {@code lastError}. Once the policy is exhausted, the item is moved
+     * to the dead-letter collection instead, see {@link #getDeadLetterCollection()}.
+     *
+     * @param item     item currently held by the caller, as returned by a claim
+     * @param error    why processing failed, may be {@code null}
+     * @param callback receives what became of the item
+     * @throws InvalidOkraItemException if the item was not claimed or is not a {@link RetryableOkraItem}
+     */
+    public void fail(final T item, final Throwable error, final OkraItemFailCallback callback) {
+        validateFail(item);
+
+        if (saturated()) {
+            metered(OkraOperation.FAIL, callback).onFailure(new OkraSaturatedException());
+            return;
+        }
+
+        final OkraItemFailCallback meteredCallback = dispatched(metered(OkraOperation.FAIL, callback));
+
+        final RetryableOkraItem retryable = (RetryableOkraItem) item;
+        final int attempts = retryable.getAttempts();
+        final String lastError = describe(error);
+        final Document query = QueryUtil.generateLeaseQuery(item);
+
+        if (retryPolicy.isExhausted(attempts)) {
+            deadLetter(query, lastError, (moved, throwable) -> {
+                if (throwable == null) {
+                    meteredCallback.onSuccess(moved
+                            ? OkraItemFailCallback.Outcome.DEAD_LETTERED
+                            : OkraItemFailCallback.Outcome.LEASE_LOST);
+                } else {
+                    meteredCallback.onFailure(throwable);
+                }
+            });
+            return;
+        }
+
+        final LocalDateTime runDate = retryPolicy.nextRunDate(attempts, LocalDateTime.now());
+
+        final Document setDoc = new Document();
+        setDoc.put("heartbeat", null);
+        setDoc.put("runDate", DateUtil.toDate(runDate));
+        setDoc.put("status", OkraStatus.PENDING.name());
+        setDoc.put(QueryUtil.LAST_ERROR, lastError);
+
+        client.getDatabase(getDatabase())
+                .getCollection(getCollection())
+                .updateOne(query, new Document("$set", setDoc), (result, throwable) -> {
+                    if (throwable != null) {
+                        meteredCallback.onFailure(throwable);
+                    } else if (result.getMatchedCount() == 0) {
+                        meteredCallback.onSuccess(OkraItemFailCallback.Outcome.LEASE_LOST);
+                    } else {
+                        signalIfEnabled(setDoc.getDate("runDate"));
+
+                        item.setHeartbeat(null);
+                        item.setRunDate(runDate);
+                        item.setStatus(OkraStatus.PENDING);
+                        retryable.setLastError(lastError);
+
+                        meteredCallback.onSuccess(OkraItemFailCallback.Outcome.RETRY_SCHEDULED);
+                    }
+                });
+    }
+
+    /**
+     * Moves the item matching {@code leaseQuery} to the dead-letter collection, stamped with {@code failedAt}.
+     * The copy is inserted before the item is deleted and a copy left by an interrupted move is tolerated,
+     * so an item whose move failed midway is simply dead-lettered again on its next claim.
+     *
+     * @param callback receives whether the item was moved, {@code false} if the lease was lost
+     */
+    private void deadLetter(final Document leaseQuery, final String error, final SingleResultCallback<Boolean> callback) {
+        final MongoDatabase database = client.getDatabase(getDatabase());
+        final MongoCollection<Document> collection = database.getCollection(getCollection());
+
+        final Document setDoc = new Document(FAILED_AT, new Date());
+        if (error != null) {
+            setDoc.put(QueryUtil.LAST_ERROR, error);
+        }
+
+        final FindOneAndUpdateOptions options = new FindOneAndUpdateOptions();
+        options.returnDocument(ReturnDocument.AFTER);
+
+        collection.findOneAndUpdate(leaseQuery, new Document("$set", setDoc), options, (document, throwable) -> {
+            if (throwable != null) {
+                callback.onResult(null, throwable);
+                return;
+            }
+
+            if (document == null) {
+                callback.onResult(false, null);
+                return;
+            }
+
+            database.getCollection(getDeadLetterCollection()).insertOne(document, (result, insertThrowable) -> {
+                if (insertThrowable != null && !isDuplicateKey(insertThrowable)) {
+                    callback.onResult(null, insertThrowable);
+                    return;
+                }
+
+                final Document owned = new Document("_id", document.get("_id"))
+                        .append(QueryUtil.LEASE_TOKEN, document.get(QueryUtil.LEASE_TOKEN));
+
+                collection.deleteOne(owned, (deleted, deleteThrowable) ->
+                        callback.onResult(deleteThrowable == null ? deleted.getDeletedCount() > 0 : null, deleteThrowable));
+            });
+        });
+    }
+
+    private void recordDeadLetter(final boolean moved) {
+        if (moved && meteredCallbacks != null) {
+            meteredCallbacks.recordDeadLetter();
+        }
+    }
+
+    private static String describe(final Throwable error) {
+        if (error == null) {
+            return null;
+        }
+        final String description = error.toString();
+        return description.length() > MAX_ERROR_LENGTH ? description.substring(0, MAX_ERROR_LENGTH) : description;
+    }
+
+    /**
+     * Removes up to {@code max} {@code DONE} items from the collection, moving them to the archive
+     * collection when archiving is enabled. Meant to be called repeatedly, see {@link okra.compaction.OkraCompactor}.
+     *
+     * @param max      maximum number of items to remove
+     * @param callback receives the number of removed items
+     */
+    public void purgeDone(final int max, final OkraCountCallback callback) {
+        if (saturated()) {
+            metered(OkraOperation.PURGE_DONE, callback).onFailure(new OkraSaturatedException());
+            return;
+        }
+
+        final OkraCountCallback meteredCallback = dispatched(metered(OkraOperation.PURGE_DONE, callback));
+        final Bson done = Filters.eq("status", OkraStatus.DONE.name());
+
+        final SingleResultCallback<Long> purged = (count, throwable) -> {
+            if (throwable == null) {
+                meteredCallback.onSuccess(count);
+            } else {
+                meteredCallback.onFailure(throwable);
+            }
+        };
+
+        if (archiveCompleted) {
+            archive(done, max, purged);
+            return;
+        }
+
+        final MongoCollection<Document> collection = client.getDatabase(getDatabase())
+                .getCollection(getCollection());
+
+        collection.find(done)
+                .projection(Projections.include("_id"))
+                .limit(max)
+                .into(new ArrayList<>(), (candidates, throwable) -> {
+                    if (throwable != null) {
+                        purged.onResult(null, throwable);
+                    } else if (candidates.isEmpty()) {
+                        purged.onResult(0L, null);
+                    } else {
+                        final List<Object> ids = candidates.stream()
+                                .map(candidate -> candidate.get("_id"))
+                                .collect(Collectors.toList());
+
+                        collection.deleteMany(Filters.and(Filters.in("_id", ids), done), (result, deleteThrowable) ->
+                                purged.onResult(deleteThrowable == null ? result.getDeletedCount() : null, deleteThrowable));
+                    }
+                });
+    }
+
+    /**
+     * Copies up to {@code max} documents matching {@code query} to the archive collection, then deletes them.
+     * Documents archived by a previous, interrupted attempt are only deleted.
+     */
+    private void archive(final Bson query, final int max, final SingleResultCallback<Long> callback) {
+        final MongoDatabase database = client.getDatabase(getDatabase());
+        final MongoCollection<Document> collection = database.getCollection(getCollection());
+
+        collection.find(query)
+                .limit(max)
+                .into(new ArrayList<>(), (documents, throwable) -> {
+                    if (throwable != null) {
+                        callback.onResult(null, throwable);
+                        return;
+                    }
+
+                    if (documents.isEmpty()) {
+                        callback.onResult(0L, null);
+                        return;
+                    }
+
+                    final Date completedAt = new Date();
+                    documents.forEach(document -> {
+                        if (document.get(COMPLETED_AT) == null) {
+                            document.put(COMPLETED_AT, completedAt);
+                        }
+                    });
+
+                    database.getCollection(getArchiveCollection())
+                            .insertMany(documents, new InsertManyOptions().ordered(false), (result, insertThrowable) -> {
+                                if (insertThrowable != null && !onlyDuplicates(insertThrowable)) {
+                                    callback.onResult(null, insertThrowable);
+                                    return;
+                                }
+
+                                final List<Object> ids = documents.stream()
+                                        .map(document -> document.get("_id"))
+                                        .collect(Collectors.toList());
+
+                                collection.deleteMany(Filters.and(Filters.in("_id", ids), query), (deleted, deleteThrowable) ->
+                                        callback.onResult(deleteThrowable == null ? deleted.getDeletedCount() : null,
+                                                deleteThrowable));
+                            });
+                });
+    }
+
+    /**
+     * Duplicate key errors are write errors for writes, and command errors for {@code findAndModify}
+     */
+    private static boolean isDuplicateKey(final Throwable throwable) {
+        return throwable instanceof MongoServerException
+                && ((MongoServerException) throwable).getCode() == DUPLICATE_KEY_ERROR_CODE;
+    }
+
+    private static boolean onlyDuplicates(final Throwable throwable) {
+        return throwable instanceof MongoBulkWriteException
+                && ((MongoBulkWriteException) throwable).getWriteConcernError() == null
+                && ((MongoBulkWriteException) throwable).getWriteErrors()
+                .stream()
+                .allMatch(error -> error.getCode() == DUPLICATE_KEY_ERROR_CODE);
+    }
+
+    @Override
+    public void schedule(final T item, final OkraItemScheduleCallback callback) {
+        if (saturated()) {
+            metered(OkraOperation.SCHEDULE, callback).onFailure(new OkraSaturatedException());
+            return;
+        }
+
+        pendingByDefault(item);
+
+        if (scheduleCoalescer != null) {
+            // Metered here only, the coalescer writes through insertAll, which is already dispatched
+            scheduleCoalescer.add(item, metered(OkraOperation.SCHEDULE, callback));
+            return;
+        }
+
+        final OkraItemScheduleCallback meteredCallback = dispatched(metered(OkraOperation.SCHEDULE, callback));
+
+        itemCollection.insertOne(item, (result, throwable) -> {
+            if (throwable == null) {
+                signalIfEnabled(DateUtil.toDate(item.getRunDate()));
+                meteredCallback.onSuccess();
+            } else {
+                meteredCallback.onFailure(throwable);
+            }
+        });
+    }
+
+    /**
+     * Schedules every item with a single unordered {@code insertMany}.
+     * <p>
+     * A failing item does not prevent the others from being inserted. Per-item failures are reported
+     * through {@link OkraItemsScheduleCallback#onSuccess(int, List)}, while
+     * {@link OkraItemsScheduleCallback#onFailure(Throwable)} is reserved for errors affecting the whole batch.
+     *
+     * @param items    items to schedule
+     * @param callback receives the number of scheduled items and the failures, if any
+     */
+    public void scheduleAll(final Collection<T> items, final OkraItemsScheduleCallback<T> callback) {
+        if (saturated()) {
+            metered(OkraOperation.SCHEDULE_ALL, callback).onFailure(new OkraSaturatedException());
+            return;
+        }
+
+        insertAll(new ArrayList<>(items), dispatched(metered(OkraOperation.SCHEDULE_ALL, callback)));
+    }
+
+    /**
+     * The {@code insertMany} of {@link #scheduleAll}, without metering so that coalesced schedules are only
+     * metered as {@code SCHEDULE}. Signals the earliest run date of the inserted items, if any was inserted.
+     */
+    private void insertAll(final List<T> itemList, final OkraItemsScheduleCallback<T> callback) {
+        if (itemList.isEmpty()) {
+            callback.onSuccess(0, Collections.emptyList());
+            return;
+        }
+
+        itemList.forEach(OkraAsyncImpl::pendingByDefault);
+
+        itemCollection.insertMany(itemList, new InsertManyOptions().ordered(false), (result, throwable) -> {
+            if (throwable == null) {
+                signalIfEnabled(earliestRunDate(itemList));
+                callback.onSuccess(itemList.size(), Collections.emptyList());
+            } else if (throwable instanceof MongoBulkWriteException
+                    && !((MongoBulkWriteException) throwable).getWriteErrors().isEmpty()) {
+                final MongoBulkWriteException exception = (MongoBulkWriteException) throwable;
+
+                final List<ScheduleFailure<T>> failures = exception.getWriteErrors()
+                        .stream()
+                        .map(error -> new ScheduleFailure<>(
+                                error.getIndex(),
+                                itemList.get(error.getIndex()),
+                                new MongoWriteException(error, exception.getServerAddress())))
+                        .collect(Collectors.toList());
+
+                final Set<Integer> failed = failures.stream()
+                        .map(ScheduleFailure::getIndex)
+                        .collect(Collectors.toSet());
+                final List<T> inserted = IntStream.range(0, itemList.size())
+                        .filter(index -> !failed.contains(index))
+                        .mapToObj(itemList::get)
+                        .collect(Collectors.toList());
+
+                if (!inserted.isEmpty()) {
+                    signalIfEnabled(earliestRunDate(inserted));
+                }
+                callback.onSuccess(exception.getWriteResult().getInsertedCount(), failures);
+            } else {
+                callback.onFailure(throwable);
+            }
+        });
+    }
+
+    /**
+     * Schedules {@code item} unless an item with the same unique key is already queued, with a single upsert
+     * that only writes when no document has that key.
+     *
+     * @param item     item with a unique key, see {@link UniqueOkraItem}; its id is set when it is scheduled
+     * @param callback receives {@code 1} if the item was scheduled, {@code 0} if its key was taken
+     * @throws InvalidOkraItemException if the item has no unique key
+     */
+    public void scheduleIfAbsent(final T item, final OkraCountCallback callback) {
+        final String uniqueKey = uniqueKeyOf(item);
+        if (saturated()) {
+            metered(OkraOperation.SCHEDULE_UNIQUE, callback).onFailure(new OkraSaturatedException());
+            return;
+        }
+
+        final OkraCountCallback meteredCallback = dispatched(metered(OkraOperation.SCHEDULE_UNIQUE, callback));
+        pendingByDefault(item);
+
+        final ObjectId id = item.getId() == null ? new ObjectId() : new ObjectId(item.getId());
+        final BsonDocument document = encode(item);
+        document.put("_id", new BsonObjectId(id));
+
+        bsonCollection().updateOne(Filters.eq(QueryUtil.UNIQUE_KEY, uniqueKey),
+                new BsonDocument("$setOnInsert", document),
+                new UpdateOptions().upsert(true),
+                (result, throwable) -> {
+                    if (throwable == null && result.getUpsertedId() != null) {
+                        item.setId(id.toHexString());
+                        signalIfEnabled(DateUtil.toDate(item.getRunDate()));
+                        meteredCallback.onSuccess(1);
+                    } else if (throwable == null || isDuplicateKey(throwable)) {
+                        // Taken, possibly by a concurrent upsert of the same key
+                        meteredCallback.onSuccess(0);
+                    } else {
+                        meteredCallback.onFailure(throwable);
+                    }
+                });
+    }
+
+    /**
+     * Schedules {@code item}, replacing the pending item with the same unique key if there is one,
+     * with a single upsert. An item with that key which is being processed is left alone, and
+     * {@code item} is not scheduled.
+     *
+     * @param item     item with a unique key, see {@link UniqueOkraItem}; its id is set to the stored one
+     * @param callback receives {@code 1} if the item was scheduled or replaced, {@code 0} if its key was taken
+     * @throws InvalidOkraItemException if the item has no unique key
+     */
+    public void scheduleOrReplace(final T item, final OkraCountCallback callback) {
+        final String uniqueKey = uniqueKeyOf(item);
+        if (saturated()) {
+            metered(OkraOperation.SCHEDULE_UNIQUE, callback).onFailure(new OkraSaturatedException());
+            return;
+        }
+
+        final OkraCountCallback meteredCallback = dispatched(metered(OkraOperation.SCHEDULE_UNIQUE, callback));
+        pendingByDefault(item);
+
+        final FindOneAndUpdateOptions options = new FindOneAndUpdateOptions()
+                .upsert(true)
+                .returnDocument(ReturnDocument.AFTER)
+                .projection(Projections.include("_id"));
+
+        bsonCollection().findOneAndUpdate(pendingWithKey(uniqueKey), replacementOf(item), options, (stored, throwable) -> {
+            if (throwable == null) {
+                item.setId(stored.getObjectId("_id").getValue().toHexString());
+                signalIfEnabled(DateUtil.toDate(item.getRunDate()));
+                meteredCallback.onSuccess(1);
+            } else if (isDuplicateKey(throwable)) {
+                // Not pending anymore, or concurrently scheduled
+                meteredCallback.onSuccess(0);
+            } else {
+                meteredCallback.onFailure(throwable);
+            }
+        });
+    }
+
+    /**
+     * Upsert overwriting the pending item with the same key by {@code item}. The replaced document keeps its
+     * id, and its lease token and attempts: handing out a token already issued for that id again would let
+     * a stale holder pass the fencing check.
+     */
+    private BsonDocument replacementOf(final T item) {
+        final BsonDocument payload = encode(item);
+        payload.remove("_id");
+
+        final BsonDocument onInsert = new BsonDocument();
+        for (final String field : new String[]{QueryUtil.LEASE_TOKEN, QueryUtil.ATTEMPTS}) {
+            final BsonValue value = payload.remove(field);
+            if (value != null) {
+                onInsert.put(field, value);
+            }
+        }
+
+        final BsonDocument update = new BsonDocument("$set", payload);
+        if (!onInsert.isEmpty()) {
+            update.put("$setOnInsert", onInsert);
+        }
+        return update;
+    }
+
+    /**
+     * Bulk variant of {@link #scheduleIfAbsent(OkraItem, OkraCountCallback)}, with a single unordered {@code bulkWrite}.
+     * Items whose key was taken are neither counted nor reported as failures; the scheduled ones get their id.
+     *
+     * @param items    items with a unique key
+     * @param callback receives the number of scheduled items and the failures, if any
+     * @throws InvalidOkraItemException if an item has no unique key
+     */
+    public void scheduleAllIfAbsent(final Collection<T> items, final OkraItemsScheduleCallback<T> callback) {
+        scheduleAllUnique(items, false, callback);
+    }
+
+    /**
+     * Bulk variant of {@link #scheduleOrReplace(OkraItem, OkraCountCallback)}, with a single unordered {@code bulkWrite}.
+     * Items whose key is held by an item being processed are neither counted nor reported as failures;
+     * the inserted ones get their id.
+     *
+     * @param items    items with a unique key
+     * @param callback receives the number of scheduled or replaced items and the failures, if any
+     * @throws InvalidOkraItemException if an item has no unique key
+     */
+    public void scheduleAllOrReplace(final Collection<T> items, final OkraItemsScheduleCallback<T> callback) {
+        scheduleAllUnique(items, true, callback);
+    }
+
+    private void scheduleAllUnique(final Collection<T> items, final boolean replace,
+                                   final OkraItemsScheduleCallback<T> callback) {
+        if (saturated()) {
+            metered(OkraOperation.SCHEDULE_ALL_UNIQUE, callback).onFailure(new OkraSaturatedException());
+            return;
+        }
+
+        final List<T> itemList = new ArrayList<>(items);
+        final List<WriteModel<BsonDocument>> writes = new ArrayList<>(itemList.size());
+
+        for (final T item : itemList) {
+            final String uniqueKey = uniqueKeyOf(item);
+            pendingByDefault(item);
+            final BsonDocument document = encode(item);
+
+            if (replace) {
+                writes.add(new UpdateOneModel<>(pendingWithKey(uniqueKey), replacementOf(item),
+                        new UpdateOptions().upsert(true)));
+            } else {
+                if (!document.containsKey("_id")) {
+                    document.put("_id", new BsonObjectId(new ObjectId()));
+                }
+                writes.add(new UpdateOneModel<>(Filters.eq(QueryUtil.UNIQUE_KEY, uniqueKey),
+                        new BsonDocument("$setOnInsert", document),
+                        new UpdateOptions().upsert(true)));
+            }
+        }
+
+        final OkraItemsScheduleCallback<T> meteredCallback = dispatched(metered(OkraOperation.SCHEDULE_ALL_UNIQUE, callback));
+
+        if (writes.isEmpty()) {
+            meteredCallback.onSuccess(0, Collections.emptyList());
+            return;
+        }
+
+        bsonCollection().bulkWrite(writes, new BulkWriteOptions().ordered(false), (result, throwable) -> {
+            final BulkWriteResult writeResult;
+            final List<BulkWriteError> errors;
+
+            if (throwable == null) {
+                writeResult = result;
+                errors = Collections.emptyList();
+            } else if (throwable instanceof MongoBulkWriteException
+                    && ((MongoBulkWriteException) throwable).getWriteConcernError() == null) {
+                writeResult = ((MongoBulkWriteException) throwable).getWriteResult();
+                errors = ((MongoBulkWriteException) throwable).getWriteErrors();
+            } else {
+                meteredCallback.onFailure(throwable);
+                return;
+            }
+
+            writeResult.getUpserts().forEach(upsert ->
+                    itemList.get(upsert.getIndex()).setId(upsert.getId().asObjectId().getValue().toHexString()));
+
+            final int scheduled = writeResult.getUpserts().size() + (replace ? writeResult.getMatchedCount() : 0);
+            if (scheduled > 0) {
+                signalIfEnabled(earliestRunDate(itemList));
+            }
+
+            final List<ScheduleFailure<T>> failures = errors.stream()
+                    .filter(error -> error.getCode() != DUPLICATE_KEY_ERROR_CODE)
+                    .map(error -> new ScheduleFailure<>(
+                            error.getIndex(),
+                            itemList.get(error.getIndex()),
+                            new MongoWriteException(error, ((MongoBulkWriteException) throwable).getServerAddress())))
+                    .collect(Collectors.toList());
+
+            meteredCallback.onSuccess(scheduled, failures);
+        });
+    }
+
+    /**
+     * Starts a push-style consumer. Every claimed item is handed to {@code callback}, which is called
+     * again as soon as new items become due. Items are claimed with {@link #peek(OkraItemCallback)}.
+     * <p>
+     * New work is detected by tailing the signal collection, so producers should be built with
+     * {@link OkraAsyncBuilder#withWakeUpSignals()} to get low-latency pickup.
+     *
+     * @param callback receives every claimed item
+     * @return the subscription, to be cancelled when done
+     */
+    public OkraSubscription<T> subscribe(final OkraItemCallback<T> callback) {
+        final OkraSubscription<T> subscription =
+                new OkraSubscription<>(this, client, callback, defaultHeartbeatExpirationMillis);
+        subscription.start();
+        return subscription;
+    }
+
+    public long getHeartbeatExpirationMillis() {
+        return defaultHeartbeatExpirationMillis;
+    }
+
+    /**
+     * Capped collection tailed by subscriptions to learn about new work
+     */
+    public String getSignalCollection() {
+        return getCollection() + SIGNAL_COLLECTION_SUFFIX;
+    }
+
+    /**
+     * Collection receiving completed items when archiving is enabled
+     */
+    public String getArchiveCollection() {
+        return getCollection() + ARCHIVE_COLLECTION_SUFFIX;
+    }
+
+    /**
+     * Collection receiving the items that exhausted their {@link RetryPolicy}, stamped with {@code failedAt}
+     * and the {@code lastError} they failed with
+     */
+    public String getDeadLetterCollection() {
+        return getCollection() + DEAD_LETTER_COLLECTION_SUFFIX;
+    }
+
+    /**
+     * Notifies subscribers that an item is due at {@code runDate}.
+     * <p>
+     * The signal is stamped by the server with {@link OkraSubscription#SIGNAL_TIMESTAMP}, which subscriptions
+     * resume from, so that producers with skewed clocks are not missed.
+     */
+    public void signal(final Date runDate, final SingleResultCallback<Void> callback) {
+        client.getDatabase(getDatabase())
+                .getCollection(getSignalCollection())
+                .updateOne(Filters.eq("_id", new ObjectId()),
+                        Updates.combine(Updates.set("runDate", runDate),
+                                Updates.currentTimestamp(OkraSubscription.SIGNAL_TIMESTAMP)),
+                        new UpdateOptions().upsert(true),
+                        (result, throwable) -> callback.onResult(null, throwable));
+    }
+
+    /**
+     * Signals are only written once the signal collection exists as a capped collection: an upsert into a
+     * missing collection would create it uncapped, which subscriptions cannot tail.
+     */
+    private void signalIfEnabled(final Date runDate) {
+        if (wakeUpSignals) {
+            ensureSignalCollection().thenRun(() -> signal(runDate, (result, throwable) -> {
+                if (throwable != null) {
+                    LOGGER.warn("Unable to write wake-up signal", throwable);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Creates the capped signal collection unless it already exists, once per okra. Producers and
+     * subscriptions both wait for it, whichever starts first.
+     * <p>
+     * Completes exceptionally when a collection with that name exists but is not capped: it cannot be
+     * tailed and would grow without bound, so it has to be dropped for wake-up signals to work.
+     */
+    public CompletableFuture<Void> ensureSignalCollection() {
+        final CompletableFuture<Void> created = new CompletableFuture<>();
+        if (!signalCollection.compareAndSet(null, created)) {
+            return signalCollection.get();
+        }
+
+        final MongoDatabase database = client.getDatabase(getDatabase());
+        final CreateCollectionOptions options = new CreateCollectionOptions()
+                .capped(true)
+                .sizeInBytes(OkraSubscription.SIGNAL_COLLECTION_SIZE_BYTES);
+
+        database.createCollection(getSignalCollection(), options, (result, throwable) -> {
+            if (throwable == null) {
+                created.complete(null);
+            } else if (throwable instanceof MongoCommandException
+                    && ((MongoCommandException) throwable).getErrorCode() == NAMESPACE_EXISTS_CODE) {
+                verifyCapped(database, created);
+            } else {
+                failSignalCollection(created, throwable);
+            }
+        });
+
+        return created;
+    }
+
+    private void verifyCapped(final MongoDatabase database, final CompletableFuture<Void> created) {
+        database.listCollections()
+                .filter(Filters.eq("name", getSignalCollection()))
+                .first((collection, throwable) -> {
+                    if (throwable != null) {
+                        failSignalCollection(created, throwable);
+                        return;
+                    }
+
+                    final Document options = collection == null ? null : collection.get("options", Document.class);
+                    if (options != null && Boolean.TRUE.equals(options.getBoolean("capped"))) {
+                        created.complete(null);
+                    } else {
+                        failSignalCollection(created, new IllegalStateException("Signal collection "
+                                + getDatabase() + "." + getSignalCollection()
+                                + " exists but is not capped, drop it to enable wake-up signals"));
+                    }
+                });
+    }
+
+    /**
+     * An uncapped collection stays failed, other errors are tried again by the next caller
+     */
+    private void failSignalCollection(final CompletableFuture<Void> created, final Throwable throwable) {
+        if (throwable instanceof IllegalStateException) {
+            LOGGER.error("Wake-up signals are disabled", throwable);
+        } else {
+            LOGGER.error("Unable to set up the signal collection", throwable);
+            signalCollection.compareAndSet(created, null);
+        }
+        created.completeExceptionally(throwable);
+    }
+
+    /**
+     * Items are encoded and decoded straight from BSON by {@link OkraItemCodec}, instead of going
+     * through an intermediate {@link Document}.
+     */
+    private static <T extends OkraItem> MongoCollection<T> itemCollection(final MongoDatabase database,
+                                                                         final String collection,
+                                                                         final Class<T> itemClass) {
+        final CodecRegistry registry = CodecRegistries.fromRegistries(
+                CodecRegistries.fromProviders(new OkraItemCodecProvider()),
+                database.getCodecRegistry());
+
+        return database.getCollection(collection, itemClass).withCodecRegistry(registry);
+    }
+
+    /**
+     * Items scheduled without a status are pending, otherwise they could never be claimed
+     */
+    private static void pendingByDefault(final OkraItem item) {
+        if (item.getStatus() == null) {
+            item.setStatus(OkraStatus.PENDING);
+        }
+    }
+
+    private static Bson pendingWithKey(final String uniqueKey) {
+        return Filters.and(Filters.eq(QueryUtil.UNIQUE_KEY, uniqueKey), Filters.eq("status", OkraStatus.PENDING.name()));
+    }
+
+    private static String uniqueKeyOf(final OkraItem item) {
+        if (!(item instanceof UniqueOkraItem) || ((UniqueOkraItem) item).getUniqueKey() == null) {
+            throw new InvalidOkraItemException();
+        }
+        return ((UniqueOkraItem) item).getUniqueKey();
+    }
+
+    /**
+     * Encodes the item the way {@link #itemCollection} stores it, to be used in upserts
+     */
+    private BsonDocument encode(final T item) {
+        final BsonDocument document = new BsonDocument();
+        itemCodec.encode(new BsonDocumentWriter(document), item,
+                EncoderContext.builder().isEncodingCollectibleDocument(true).build());
+        return document;
+    }
+
+    private MongoCollection<BsonDocument> bsonCollection() {
+        return client.getDatabase(getDatabase()).getCollection(getCollection(), BsonDocument.class);
+    }
+
+    private Date earliestRunDate(final List<T> items) {
+        return items.stream()
+                .map(OkraItem::getRunDate)
+                .filter(Objects::nonNull)
+                .min(Comparator.naturalOrder())
+                .map(DateUtil::toDate)
+                .orElseGet(Date::new);
+    }
+
+    /**
+     * Flushes pending coalesced schedules and stops the background tasks owned by this instance.
+     * The {@link MongoClient} is left open.
+     */
+    public void close() {
+        if (scheduleCoalescer != null) {
+            scheduleCoalescer.close();
+        }
+        if (queueSampler != null) {
+            queueSampler.close();
+        }
+        if (dispatcher != null && !partition) {
+            dispatcher.close();
+        }
+        if (overflow != null) {
+            overflow.shutdown();
+        }
+    }
+
+    /**
+     * Gauges bound to the configured {@link OkraMetrics}, or {@code null} when metrics are disabled
+     */
+    public OkraGauges getGauges() {
+        return queueSampler;
+    }
+
+    @Override
     public void countByStatus(final OkraStatus status, final OkraCountCallback callback) {
+        if (saturated()) {
+            metered(OkraOperation.COUNT_BY_STATUS, callback).onFailure(new OkraSaturatedException());
+            return;
+        }
+
+        final OkraCountCallback meteredCallback = dispatched(metered(OkraOperation.COUNT_BY_STATUS, callback));
+
         final Document document = new Document("status", status.name());
 
         client.getDatabase(getDatabase())
                 .getCollection(getCollection())
                 .count(document, (result, throwable) -> {
                     if (throwable == null) {
-                        callback.onSuccess(result);
+                        meteredCallback.onSuccess(result);
                     } else {
-                        callback.onFailure(throwable);
+                        meteredCallback.onFailure(throwable);
                     }
                 });
     }
 
     @Override
     public void countDelayed(final OkraCountCallback callback) {
+        if (saturated()) {
+            metered(OkraOperation.COUNT_DELAYED, callback).onFailure(new OkraSaturatedException());
+            return;
+        }
+
+        final OkraCountCallback meteredCallback = dispatched(metered(OkraOperation.COUNT_DELAYED, callback));
+
         final Document document = new Document(
                 "runDate",
                 new Document("$lt", DateUtil.toDate(LocalDateTime.now()))
@@ -223,9 +1906,9 @@ public class OkraAsyncImpl<T extends OkraItem> extends AbstractOkraAsync<T> impl
                 .getCollection(getCollection())
                 .count(document, (result, throwable) -> {
                     if (throwable == null) {
-                        callback.onSuccess(result);
+                        meteredCallback.onSuccess(result);
                     } else {
-                        callback.onFailure(throwable);
+                        meteredCallback.onFailure(throwable);
                     }
                 });
     }
@@ -238,4 +1921,211 @@ public class OkraAsyncImpl<T extends OkraItem> extends AbstractOkraAsync<T> impl
             throw new InvalidOkraItemException();
         }
     }
-}
\ No newline at end of file
+
+    private void validateFail(final T item) {
+        if (item == null
+                || item.getHeartbeat() == null
+                || item.getId() == null
+                || !(item instanceof RetryableOkraItem)
+                || ((RetryableOkraItem) item).getAttempts() == null) {
+            throw new InvalidOkraItemException();
+        }
+    }
+
+    /**
+     * Backpressure applied before an operation is sent, as for claims: while the dispatcher has no room left,
+     * operations are failed with {@link OkraSaturatedException} on the calling thread and nothing is written.
+     * Heartbeats and releases are exempt, they keep or give back leases already held.
+     */
+    private boolean saturated() {
+        return dispatcher != null && dispatcher.isSaturated();
+    }
+
+    /**
+     * Runs the result {@code task} of an operation that was sent on the dispatcher, or inline without one.
+     * When the dispatcher has no room left, the task runs on the overflow thread instead: the operation
+     * was applied, so its real result is delivered, never on the driver thread.
+     */
+    private void dispatch(final Runnable task) {
+        dispatch(task, task);
+    }
+
+    /**
+     * Runs {@code task} on the dispatcher, or inline without one. When the dispatcher has no room left,
+     * {@code rejected} runs on the overflow thread instead.
+     */
+    private void dispatch(final Runnable task, final Runnable rejected) {
+        if (dispatcher == null) {
+            task.run();
+            return;
+        }
+
+        try {
+            dispatcher.dispatch(task);
+        } catch (final RejectedExecutionException e) {
+            overflow(rejected);
+        }
+    }
+
+    private void overflow(final Runnable task) {
+        try {
+            overflow.execute(task);
+        } catch (final RejectedExecutionException e) {
+            // Closed, nobody is left to run it elsewhere
+            task.run();
+        }
+    }
+
+    /*
+     * Callbacks of operations that claim nothing: their results are always delivered, on the overflow
+     * thread when the dispatcher has no room left.
+     */
+
+    private OkraItemsCallback<T> dispatched(final OkraItemsCallback<T> callback) {
+        if (dispatcher == null) {
+            return callback;
+        }
+
+        return new OkraItemsCallback<T>() {
+
+            @Override
+            public void onSuccess(final List<T> items) {
+                dispatch(() -> callback.onSuccess(items));
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                dispatch(() -> callback.onFailure(throwable));
+            }
+        };
+    }
+
+    private OkraItemDeleteCallback dispatched(final OkraItemDeleteCallback callback) {
+        if (dispatcher == null) {
+            return callback;
+        }
+
+        return new OkraItemDeleteCallback() {
+
+            @Override
+            public void onSuccess(final long deletedCount) {
+                dispatch(() -> callback.onSuccess(deletedCount));
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                dispatch(() -> callback.onFailure(throwable));
+            }
+        };
+    }
+
+    private OkraCountCallback dispatched(final OkraCountCallback callback) {
+        if (dispatcher == null) {
+            return callback;
+        }
+
+        return new OkraCountCallback() {
+
+            @Override
+            public void onSuccess(final long count) {
+                dispatch(() -> callback.onSuccess(count));
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                dispatch(() -> callback.onFailure(throwable));
+            }
+        };
+    }
+
+    private OkraItemScheduleCallback dispatched(final OkraItemScheduleCallback callback) {
+        if (dispatcher == null) {
+            return callback;
+        }
+
+        return new OkraItemScheduleCallback() {
+
+            @Override
+            public void onSuccess() {
+                dispatch(callback::onSuccess);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                dispatch(() -> callback.onFailure(throwable));
+            }
+        };
+    }
+
+    private OkraItemsScheduleCallback<T> dispatched(final OkraItemsScheduleCallback<T> callback) {
+        if (dispatcher == null) {
+            return callback;
+        }
+
+        return new OkraItemsScheduleCallback<T>() {
+
+            @Override
+            public void onSuccess(final int scheduledCount, final List<ScheduleFailure<T>> failures) {
+                dispatch(() -> callback.onSuccess(scheduledCount, failures));
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                dispatch(() -> callback.onFailure(throwable));
+            }
+        };
+    }
+
+    private OkraItemFailCallback dispatched(final OkraItemFailCallback callback) {
+        if (dispatcher == null) {
+            return callback;
+        }
+
+        return new OkraItemFailCallback() {
+
+            @Override
+            public void onSuccess(final Outcome outcome) {
+                dispatch(() -> callback.onSuccess(outcome));
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                dispatch(() -> callback.onFailure(throwable));
+            }
+        };
+    }
+
+    private OkraItemCallback<T> metered(final OkraOperation operation, final OkraItemCallback<T> callback) {
+        return meteredCallbacks == null ? callback : meteredCallbacks.item(operation, callback);
+    }
+
+    private OkraItemOperationCallback<T> metered(final OkraOperation operation,
+                                                 final OkraItemOperationCallback<T> callback) {
+        return meteredCallbacks == null ? callback : meteredCallbacks.operation(operation, callback);
+    }
+
+    private OkraItemsCallback<T> metered(final OkraOperation operation, final OkraItemsCallback<T> callback) {
+        return meteredCallbacks == null ? callback : meteredCallbacks.items(operation, callback);
+    }
+
+    private OkraItemDeleteCallback metered(final OkraOperation operation, final OkraItemDeleteCallback callback) {
+        return meteredCallbacks == null ? callback : meteredCallbacks.delete(operation, callback);
+    }
+
+    private OkraItemScheduleCallback metered(final OkraOperation operation, final OkraItemScheduleCallback callback) {
+        return meteredCallbacks == null ? callback : meteredCallbacks.schedule(operation, callback);
+    }
+
+    private OkraItemsScheduleCallback<T> metered(final OkraOperation operation,
+                                                 final OkraItemsScheduleCallback<T> callback) {
+        return meteredCallbacks == null ? callback : meteredCallbacks.scheduleAll(operation, callback);
+    }
+
+    private OkraCountCallback metered(final OkraOperation operation, final OkraCountCallback callback) {
+        return meteredCallbacks == null ? callback : meteredCallbacks.count(operation, callback);
+    }
+
+    private OkraItemFailCallback metered(final OkraOperation operation, final OkraItemFailCallback callback) {
+        return meteredCallbacks == null ? callback : meteredCallbacks.fail(operation, callback);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.claim;
+
+import okra.model.PrioritizedOkraItem;
+import okra.util.QueryUtil;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides in which order priorities and tenants of {@link PrioritizedOkraItem}s are served.
+ * <p>
+ * Priorities are either served strictly, highest first, or by weight. Tenants are served by weighted
+ * round-robin within a priority, so a tenant with a large backlog cannot starve the others.
+ * <p>
+ * Every claim attempt targets a single priority and tenant with an equality match, so it is served by
+ * the {@code {status, tenant, priority, runDate}} or {@code {status, priority, runDate}} index in
+ * {@code O(log n)}, however large the backlog. A claim costs at most one attempt per
+ * (priority, tenant) pair, then falls back to the regular peek query, which also recovers expired
+ * leases and items whose priority or tenant is not configured here.
+ * <p>
+ * A pair found empty is skipped for a short interval, see {@link Builder#withEmptyBackoff(long, TimeUnit)},
+ * so that polling an idle queue costs a single round-trip rather than one per pair. Items of a skipped
+ * pair are still claimed in the meantime, through the fallback query. Empty pairs are tracked per
+ * collection namespace, as one strategy may be shared by several okras or partitions.
+ */
+public final class ClaimStrategy {
+
+    public static final String PRIORITY = "priority";
+    public static final String TENANT = "tenant";
+
+    public static final long DEFAULT_EMPTY_BACKOFF_MILLIS = 100;
+
+    private final List<Integer> strictPriorities;
+    private final WeightedRoundRobin<Integer> weightedPriorities;
+    private final WeightedRoundRobin<String> tenants;
+    private final long emptyBackoffNanos;
+
+    /**
+     * {@code System.nanoTime()} until which a (namespace, priority, tenant) triple is skipped
+     */
+    private final Map<List<Object>, Long> emptyUntil = new ConcurrentHashMap<>();
+
+    private ClaimStrategy(final Builder builder) {
+        this.strictPriorities = builder.strictPriorities;
+        this.weightedPriorities = builder.priorityWeights.isEmpty() ? null : new WeightedRoundRobin<>(builder.priorityWeights);
+        this.tenants = builder.tenantWeights.isEmpty() ? null : new WeightedRoundRobin<>(builder.tenantWeights);
+        this.emptyBackoffNanos = builder.emptyBackoffNanos;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public boolean usesTenants() {
+        return tenants != null;
+    }
+
+    public boolean usesPriorities() {
+        return strictPriorities != null || weightedPriorities != null;
+    }
+
+    /**
+     * @return the queries to try, in order, for the next claim on {@code namespace}, without the ones
+     * recently found empty there
+     */
+    public List<Bson> nextClaimQueries(final String namespace) {
+        final List<Integer> priorityOrder = strictPriorities != null
+                ? strictPriorities
+                : weightedPriorities != null ? weightedPriorities.nextOrder() : Collections.singletonList(null);
+
+        final List<String> tenantOrder = tenants != null
+                ? tenants.nextOrder()
+                : Collections.singletonList(null);
+
+        final List<Bson> queries = new ArrayList<>(priorityOrder.size() * tenantOrder.size());
+        final long now = System.nanoTime();
+
+        for (final Integer priority : priorityOrder) {
+            for (final String tenant : tenantOrder) {
+                final Long skippedUntil = emptyUntil.get(Arrays.asList(namespace, priority, tenant));
+                if (skippedUntil != null && now - skippedUntil < 0) {
+                    continue;
+                }
+
+                final Document query = QueryUtil.generateRunDateQueryPart();
+                if (priority != null) {
+                    query.put(PRIORITY, priority);
+                }
+                if (tenant != null) {
+                    query.put(TENANT, tenant);
+                }
+                queries.add(query);
+            }
+        }
+
+        return queries;
+    }
+
+    /**
+     * Skips the pair targeted by {@code query}, one of {@link #nextClaimQueries(String)}, on
+     * {@code namespace} for a while
+     */
+    public void recordEmpty(final String namespace, final Bson query) {
+        if (emptyBackoffNanos > 0) {
+            final Document document = (Document) query;
+            emptyUntil.put(Arrays.asList(namespace, document.getInteger(PRIORITY), document.getString(TENANT)),
+                    System.nanoTime() + emptyBackoffNanos);
+        }
+    }
+
+    public static final class Builder {
+
+        private List<Integer> strictPriorities;
+        private final Map<Integer, Integer> priorityWeights = new LinkedHashMap<>();
+        private final Map<String, Integer> tenantWeights = new LinkedHashMap<>();
+        private long emptyBackoffNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_EMPTY_BACKOFF_MILLIS);
+
+        private Builder() {
+        }
+
+        /**
+         * Always serves the first priority that has a due item, in the given order
+         */
+        public Builder withStrictPriorities(final int... priorities) {
+            if (!priorityWeights.isEmpty()) {
+                throw new IllegalStateException("Priorities are already weighted");
+            }
+            final List<Integer> order = new ArrayList<>(priorities.length);
+            for (final int priority : priorities) {
+                order.add(priority);
+            }
+            this.strictPriorities = Collections.unmodifiableList(order);
+            return this;
+        }
+
+        /**
+         * Serves {@code priority} first on {@code weight} claims out of the sum of all priority weights
+         */
+        public Builder withPriorityWeight(final int priority, final int weight) {
+            if (strictPriorities != null) {
+                throw new IllegalStateException("Priorities are already strict");
+            }
+            priorityWeights.put(priority, positive(weight));
+            return this;
+        }
+
+        /**
+         * Serves {@code tenant} first on {@code weight} claims out of the sum of all tenant weights
+         */
+        public Builder withTenantWeight(final String tenant, final int weight) {
+            tenantWeights.put(tenant, positive(weight));
+            return this;
+        }
+
+        /**
+         * How long a (priority, tenant) pair found empty is skipped, {@code 0} to always try every pair.
+         * Defaults to {@value #DEFAULT_EMPTY_BACKOFF_MILLIS} ms.
+         */
+        public Builder withEmptyBackoff(final long duration, final TimeUnit unit) {
+            if (duration < 0) {
+                throw new IllegalArgumentException("duration must not be negative");
+            }
+            this.emptyBackoffNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public ClaimStrategy build() {
+            if (strictPriorities == null && priorityWeights.isEmpty() && tenantWeights.isEmpty()) {
+                throw new IllegalStateException("At least one priority or tenant is required");
+            }
+            return new ClaimStrategy(this);
+        }
+
+        private static int positive(final int weight) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("weight must be greater than zero");
+            }
+            return weight;
+        }
+    }
+}
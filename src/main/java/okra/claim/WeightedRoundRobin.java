@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.claim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Smooth weighted round-robin: over {@code totalWeight} picks, every key is picked first exactly
+ * {@code weight} times, and picks of the same key are spread evenly.
+ */
+final class WeightedRoundRobin<K> {
+
+    private final List<K> keys;
+    private final int[] weights;
+    private final int[] current;
+    private final int totalWeight;
+
+    WeightedRoundRobin(final Map<K, Integer> weights) {
+        this.keys = new ArrayList<>(weights.keySet());
+        this.weights = new int[keys.size()];
+        this.current = new int[keys.size()];
+
+        int total = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            this.weights[i] = weights.get(keys.get(i));
+            total += this.weights[i];
+        }
+        this.totalWeight = total;
+    }
+
+    /**
+     * @return every key, the one picked for this round first and the others by decreasing weight
+     */
+    synchronized List<K> nextOrder() {
+        int picked = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            current[i] += weights[i];
+            if (current[i] > current[picked]) {
+                picked = i;
+            }
+        }
+        current[picked] -= totalWeight;
+
+        final List<K> order = new ArrayList<>(keys.size());
+        order.add(keys.get(picked));
+
+        final List<Integer> others = new ArrayList<>(keys.size() - 1);
+        for (int i = 0; i < keys.size(); i++) {
+            if (i != picked) {
+                others.add(i);
+            }
+        }
+        others.sort(Collections.reverseOrder((a, b) -> Integer.compare(weights[a], weights[b])));
+        others.forEach(i -> order.add(keys.get(i)));
+
+        return order;
+    }
+}
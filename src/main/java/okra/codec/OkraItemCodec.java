@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.codec;
+
+import okra.base.model.OkraItem;
+import org.bson.BSONException;
+import org.bson.BsonObjectId;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.CollectibleCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecConfigurationException;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.ObjectId;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes and decodes {@link OkraItem}s straight from BSON, without going through a {@code Document}.
+ * <p>
+ * The stored layout is the same as {@code DocumentSerializer}'s: {@code id} is stored as {@code _id}
+ * {@link ObjectId}, {@link LocalDateTime}s as BSON dates and enums by name. Other field types are
+ * delegated to the codec registry. Null fields are not written. Fields are resolved once, when the
+ * codec is created.
+ */
+public final class OkraItemCodec<T extends OkraItem> implements CollectibleCodec<T> {
+
+    private static final String ID_FIELD = "id";
+    private static final String ID_KEY = "_id";
+
+    private final Class<T> itemClass;
+    private final Constructor<T> constructor;
+    private final List<FieldAccessor> accessors;
+    private final Map<String, FieldAccessor> accessorsByKey;
+    private final FieldAccessor idAccessor;
+
+    OkraItemCodec(final Class<T> itemClass, final CodecRegistry registry) {
+        this.itemClass = itemClass;
+
+        try {
+            this.constructor = itemClass.getDeclaredConstructor();
+            this.constructor.setAccessible(true);
+        } catch (final NoSuchMethodException e) {
+            throw new BSONException(itemClass.getName() + " needs a no-args constructor", e);
+        }
+
+        final List<FieldAccessor> fieldAccessors = new ArrayList<>();
+        final Map<String, FieldAccessor> byKey = new HashMap<>();
+
+        for (Class<?> type = itemClass; type != null && type != Object.class; type = type.getSuperclass()) {
+            for (final Field field : type.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())
+                        || Modifier.isTransient(field.getModifiers())
+                        || byKey.containsKey(keyOf(field))) {
+                    continue;
+                }
+
+                field.setAccessible(true);
+
+                final FieldAccessor accessor = new FieldAccessor(field, keyOf(field), registry);
+                fieldAccessors.add(accessor);
+                byKey.put(accessor.key, accessor);
+            }
+        }
+
+        this.accessors = Collections.unmodifiableList(fieldAccessors);
+        this.accessorsByKey = byKey;
+        this.idAccessor = byKey.get(ID_KEY);
+    }
+
+    @Override
+    public T decode(final BsonReader reader, final DecoderContext decoderContext) {
+        final T item = newInstance();
+
+        reader.readStartDocument();
+
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            final FieldAccessor accessor = accessorsByKey.get(reader.readName());
+
+            if (accessor == null) {
+                reader.skipValue();
+            } else if (reader.getCurrentBsonType() == BsonType.NULL) {
+                reader.readNull();
+            } else {
+                accessor.set(item, accessor.decode(reader, decoderContext));
+            }
+        }
+
+        reader.readEndDocument();
+
+        return item;
+    }
+
+    @Override
+    public void encode(final BsonWriter writer, final T item, final EncoderContext encoderContext) {
+        writer.writeStartDocument();
+
+        if (idAccessor != null && idAccessor.get(item) != null) {
+            writer.writeName(ID_KEY);
+            idAccessor.encode(writer, idAccessor.get(item), encoderContext);
+        }
+
+        for (final FieldAccessor accessor : accessors) {
+            if (accessor == idAccessor) {
+                continue;
+            }
+
+            // Like DocumentSerializer, null fields are left out instead of being stored as BSON nulls
+            final Object value = accessor.get(item);
+            if (value != null) {
+                writer.writeName(accessor.key);
+                accessor.encode(writer, value, encoderContext);
+            }
+        }
+
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public Class<T> getEncoderClass() {
+        return itemClass;
+    }
+
+    @Override
+    public T generateIdIfAbsentFromDocument(final T item) {
+        if (item.getId() == null) {
+            item.setId(new ObjectId().toHexString());
+        }
+        return item;
+    }
+
+    @Override
+    public boolean documentHasId(final T item) {
+        return item.getId() != null;
+    }
+
+    @Override
+    public BsonValue getDocumentId(final T item) {
+        if (!documentHasId(item)) {
+            throw new IllegalStateException("The item does not contain an id");
+        }
+        return new BsonObjectId(new ObjectId(item.getId()));
+    }
+
+    private T newInstance() {
+        try {
+            return constructor.newInstance();
+        } catch (final ReflectiveOperationException e) {
+            throw new BSONException("Unable to instantiate " + itemClass.getName(), e);
+        }
+    }
+
+    private static String keyOf(final Field field) {
+        return ID_FIELD.equals(field.getName()) ? ID_KEY : field.getName();
+    }
+
+    private static final class FieldAccessor {
+
+        private final Field field;
+        private final String key;
+        private final Class<?> type;
+        private final Codec<Object> codec;
+
+        @SuppressWarnings("unchecked")
+        private FieldAccessor(final Field field, final String key, final CodecRegistry registry) {
+            this.field = field;
+            this.key = key;
+            this.type = field.getType();
+
+            final boolean builtIn = ID_KEY.equals(key)
+                    || type == LocalDateTime.class
+                    || type.isEnum()
+                    || type.isPrimitive();
+
+            this.codec = builtIn ? null : (Codec<Object>) registry.get(type);
+        }
+
+        private Object get(final Object item) {
+            try {
+                return field.get(item);
+            } catch (final IllegalAccessException e) {
+                throw new BSONException("Unable to read " + field, e);
+            }
+        }
+
+        private void set(final Object item, final Object value) {
+            try {
+                field.set(item, value);
+            } catch (final IllegalAccessException e) {
+                throw new BSONException("Unable to write " + field, e);
+            }
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Object decode(final BsonReader reader, final DecoderContext decoderContext) {
+            if (ID_KEY.equals(key)) {
+                return reader.getCurrentBsonType() == BsonType.OBJECT_ID
+                        ? reader.readObjectId().toHexString()
+                        : reader.readString();
+            }
+
+            if (type == LocalDateTime.class) {
+                return LocalDateTime.ofInstant(Instant.ofEpochMilli(reader.readDateTime()), ZoneId.systemDefault());
+            }
+
+            if (type.isEnum()) {
+                return Enum.valueOf((Class<? extends Enum>) type, reader.readString());
+            }
+
+            if (type == int.class) {
+                return reader.readInt32();
+            }
+
+            if (type == long.class) {
+                return reader.getCurrentBsonType() == BsonType.INT32 ? (long) reader.readInt32() : reader.readInt64();
+            }
+
+            if (type == double.class) {
+                return reader.readDouble();
+            }
+
+            if (type == boolean.class) {
+                return reader.readBoolean();
+            }
+
+            if (codec == null) {
+                throw new CodecConfigurationException("No codec for " + field);
+            }
+
+            return codec.decode(reader, decoderContext);
+        }
+
+        private void encode(final BsonWriter writer, final Object value, final EncoderContext encoderContext) {
+            if (ID_KEY.equals(key)) {
+                writer.writeObjectId(new ObjectId(value.toString()));
+            } else if (type == LocalDateTime.class) {
+                writer.writeDateTime(((LocalDateTime) value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+            } else if (type.isEnum()) {
+                writer.writeString(((Enum<?>) value).name());
+            } else if (type == int.class) {
+                writer.writeInt32((Integer) value);
+            } else if (type == long.class) {
+                writer.writeInt64((Long) value);
+            } else if (type == double.class) {
+                writer.writeDouble((Double) value);
+            } else if (type == boolean.class) {
+                writer.writeBoolean((Boolean) value);
+            } else if (codec == null) {
+                throw new CodecConfigurationException("No codec for " + field);
+            } else {
+                encoderContext.encodeWithChildContext(codec, writer, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.compaction;
+
+import okra.OkraAsyncImpl;
+import okra.base.async.callback.OkraCountCallback;
+import okra.base.model.OkraItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the item collection small by purging {@code DONE} items in the background.
+ * <p>
+ * Items are removed with {@link OkraAsyncImpl#purgeDone} in chunks of {@code chunkSize}, paced so that
+ * no more than {@code maxItemsPerSecond} are removed, to avoid competing with claims for write capacity.
+ * Once a chunk comes back short, the compactor waits for {@code idleInterval} before checking again.
+ */
+public final class OkraCompactor<T extends OkraItem> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OkraCompactor.class);
+
+    private final OkraAsyncImpl<T> okra;
+    private final int chunkSize;
+    private final long chunkPeriodNanos;
+    private final long idleIntervalNanos;
+    private final ScheduledExecutorService executor;
+
+    private volatile boolean closed;
+
+    public OkraCompactor(final OkraAsyncImpl<T> okra,
+                         final int chunkSize,
+                         final int maxItemsPerSecond,
+                         final long idleInterval,
+                         final TimeUnit unit) {
+        if (chunkSize <= 0 || maxItemsPerSecond <= 0) {
+            throw new IllegalArgumentException("chunkSize and maxItemsPerSecond must be greater than zero");
+        }
+
+        this.okra = okra;
+        this.chunkSize = chunkSize;
+        this.chunkPeriodNanos = TimeUnit.SECONDS.toNanos(chunkSize) / maxItemsPerSecond;
+        this.idleIntervalNanos = unit.toNanos(idleInterval);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "okra-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        schedule(0);
+    }
+
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+    }
+
+    private void purgeChunk() {
+        final long start = System.nanoTime();
+
+        okra.purgeDone(chunkSize, new OkraCountCallback() {
+
+            @Override
+            public void onSuccess(final long count) {
+                if (count > 0) {
+                    LOGGER.debug("Purged {} done items", count);
+                }
+
+                if (count < chunkSize) {
+                    schedule(idleIntervalNanos);
+                } else {
+                    schedule(Math.max(0, chunkPeriodNanos - (System.nanoTime() - start)));
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                LOGGER.warn("Unable to purge done items, retrying later", throwable);
+                schedule(idleIntervalNanos);
+            }
+        });
+    }
+
+    private void schedule(final long delayNanos) {
+        if (closed) {
+            return;
+        }
+
+        try {
+            executor.schedule(this::purgeChunk, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (final RejectedExecutionException e) {
+            // Closed while a chunk was in flight
+        }
+    }
+}
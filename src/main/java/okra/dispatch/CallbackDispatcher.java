@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.dispatch;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which thread runs the callbacks of claimed items.
+ * <p>
+ * By default ({@link #INLINE}) callbacks run on the MongoDB driver thread that received the
+ * response, so a slow handler delays every other operation of the same client. The other dispatchers
+ * hand the decoding of claimed items and their callbacks over to other threads, and report when they
+ * are saturated so that no more items get claimed than can be handled. A callback the dispatcher has
+ * no room for is rejected, never run on the calling thread.
+ */
+public interface CallbackDispatcher {
+
+    CallbackDispatcher INLINE = new CallbackDispatcher() {
+
+        @Override
+        public void dispatch(final Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public boolean isSaturated() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * @throws java.util.concurrent.RejectedExecutionException when there is no room left for {@code task}
+     */
+    void dispatch(Runnable task);
+
+    /**
+     * @return true when a newly claimed item would have to wait for a thread
+     */
+    boolean isSaturated();
+
+    void close();
+
+    /**
+     * Runs callbacks on {@code threads} daemon threads, with up to {@code queueCapacity} waiting callbacks.
+     * Callbacks that do not fit are rejected.
+     */
+    static CallbackDispatcher boundedExecutor(final int threads, final int queueCapacity) {
+        final AtomicInteger sequence = new AtomicInteger();
+
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    final Thread thread = new Thread(runnable, "okra-callback-" + sequence.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+
+        return new CallbackDispatcher() {
+
+            @Override
+            public void dispatch(final Runnable task) {
+                executor.execute(task);
+            }
+
+            @Override
+            public boolean isSaturated() {
+                return executor.getQueue().remainingCapacity() == 0;
+            }
+
+            @Override
+            public void close() {
+                executor.shutdown();
+            }
+        };
+    }
+
+    /**
+     * @return true when the runtime can start virtual threads
+     */
+    static boolean virtualThreadsSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (final NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs every callback on its own virtual thread, with at most {@code maxInFlight} callbacks running.
+     * Callbacks beyond that are rejected.
+     *
+     * @throws UnsupportedOperationException when the runtime has no virtual threads
+     */
+    static CallbackDispatcher virtualThreads(final int maxInFlight) {
+        final ExecutorService executor;
+        try {
+            final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            executor = (ExecutorService) factory.invoke(null);
+        } catch (final ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this runtime", e);
+        }
+
+        final Semaphore permits = new Semaphore(maxInFlight);
+
+        return new CallbackDispatcher() {
+
+            @Override
+            public void dispatch(final Runnable task) {
+                if (!permits.tryAcquire()) {
+                    throw new RejectedExecutionException(maxInFlight + " callbacks are already running");
+                }
+                try {
+                    executor.execute(() -> {
+                        try {
+                            task.run();
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                } catch (final RejectedExecutionException e) {
+                    permits.release();
+                    throw e;
+                }
+            }
+
+            @Override
+            public boolean isSaturated() {
+                return permits.availablePermits() == 0;
+            }
+
+            @Override
+            public void close() {
+                executor.shutdown();
+            }
+        };
+    }
+}
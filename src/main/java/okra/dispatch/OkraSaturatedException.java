@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.dispatch;
+
+/**
+ * Reported instead of claiming an item while the {@link CallbackDispatcher} has no room left for it.
+ * Consumers should slow down claiming when they get it.
+ * <p>
+ * Other operations report it on the calling thread, before anything is sent, so they were never applied
+ * and can be retried later. Items claimed while the dispatcher filled up are given back to the queue and
+ * reported with it as well. Results of operations already sent are always delivered.
+ */
+public class OkraSaturatedException extends RuntimeException {
+
+    public OkraSaturatedException() {
+        super("Callback dispatcher is saturated, not claiming more items", null, false, false);
+    }
+}
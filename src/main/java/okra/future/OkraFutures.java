@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.future;
+
+import okra.OkraAsyncImpl;
+import okra.base.async.OkraAsync;
+import okra.base.async.callback.*;
+import okra.base.model.OkraItem;
+import okra.base.model.OkraStatus;
+import okra.callback.OkraItemFailCallback;
+import okra.callback.OkraItemsCallback;
+import okra.callback.OkraItemsScheduleCallback;
+import okra.model.ScheduleFailure;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * {@link CompletableFuture} view of an {@link OkraAsync}.
+ * <p>
+ * Operations that may find nothing, such as a {@code peek} on an empty queue or a {@code heartbeat} on a
+ * lost lease, complete with {@link Optional#empty()} instead of {@code null}. Futures complete on the
+ * thread that invoked the callback, usually a driver thread, so use the {@code *Async} composition
+ * methods with an executor for anything slow.
+ * <p>
+ * Nothing is thrown: invalid arguments, such as an item that was not claimed, complete the returned
+ * future exceptionally.
+ */
+public final class OkraFutures<T extends OkraItem> {
+
+    private final OkraAsync<T> okra;
+
+    public OkraFutures(final OkraAsync<T> okra) {
+        this.okra = okra;
+    }
+
+    public CompletableFuture<Optional<T>> peek() {
+        final CompletableFuture<Optional<T>> future = new CompletableFuture<>();
+        call(future, () -> okra.peek(itemCallback(future)));
+        return future;
+    }
+
+    public CompletableFuture<Optional<T>> poll() {
+        final CompletableFuture<Optional<T>> future = new CompletableFuture<>();
+        call(future, () -> okra.poll(itemCallback(future)));
+        return future;
+    }
+
+    public CompletableFuture<Long> delete(final T item) {
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        call(future, () -> okra.delete(item, new OkraItemDeleteCallback() {
+
+            @Override
+            public void onSuccess(final long deletedCount) {
+                future.complete(deletedCount);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        }));
+
+        return future;
+    }
+
+    public CompletableFuture<Optional<T>> reschedule(final T item) {
+        final CompletableFuture<Optional<T>> future = new CompletableFuture<>();
+        call(future, () -> okra.reschedule(item, operationCallback(future)));
+        return future;
+    }
+
+    public CompletableFuture<Optional<T>> heartbeat(final T item) {
+        final CompletableFuture<Optional<T>> future = new CompletableFuture<>();
+        call(future, () -> okra.heartbeat(item, operationCallback(future)));
+        return future;
+    }
+
+    public CompletableFuture<Void> schedule(final T item) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        call(future, () -> okra.schedule(item, new OkraItemScheduleCallback() {
+
+            @Override
+            public void onSuccess() {
+                future.complete(null);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        }));
+
+        return future;
+    }
+
+    public CompletableFuture<Long> countByStatus(final OkraStatus status) {
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+        call(future, () -> okra.countByStatus(status, countCallback(future)));
+        return future;
+    }
+
+    public CompletableFuture<Long> countDelayed() {
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+        call(future, () -> okra.countDelayed(countCallback(future)));
+        return future;
+    }
+
+    /**
+     * Only available when backed by an {@link OkraAsyncImpl}
+     */
+    public CompletableFuture<List<T>> peekBatch(final int max) {
+        final CompletableFuture<List<T>> future = new CompletableFuture<>();
+        callImpl(future, impl -> impl.peekBatch(max, itemsCallback(future)));
+        return future;
+    }
+
+    /**
+     * Only available when backed by an {@link OkraAsyncImpl}
+     */
+    public CompletableFuture<List<T>> pollBatch(final int max) {
+        final CompletableFuture<List<T>> future = new CompletableFuture<>();
+        callImpl(future, impl -> impl.pollBatch(max, itemsCallback(future)));
+        return future;
+    }
+
+    /**
+     * Only available when backed by an {@link OkraAsyncImpl}.
+     * Completes with the number of items made pending again.
+     */
+    public CompletableFuture<Long> releaseAll(final Collection<T> items) {
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+        callImpl(future, impl -> impl.releaseAll(items, countCallback(future)));
+        return future;
+    }
+
+    /**
+     * Only available when backed by an {@link OkraAsyncImpl}.
+     * Completes with the renewed items, without the ones whose lease was lost.
+     */
+    public CompletableFuture<List<T>> heartbeatAll(final Collection<T> items) {
+        final CompletableFuture<List<T>> future = new CompletableFuture<>();
+        callImpl(future, impl -> impl.heartbeatAll(items, itemsCallback(future)));
+        return future;
+    }
+
+    /**
+     * Only available when backed by an {@link OkraAsyncImpl}.
+     * Completes with the number of items marked done.
+     */
+    public CompletableFuture<Long> complete(final T item) {
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+        callImpl(future, impl -> impl.complete(item, countCallback(future)));
+        return future;
+    }
+
+    /**
+     * Only available when backed by an {@link OkraAsyncImpl}.
+     * Completes with the number of items marked done.
+     */
+    public CompletableFuture<Long> completeAll(final Collection<T> items) {
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+        callImpl(future, impl -> impl.completeAll(items, countCallback(future)));
+        return future;
+    }
+
+    /**
+     * Only available when backed by an {@link OkraAsyncImpl}
+     */
+    public CompletableFuture<OkraItemFailCallback.Outcome> fail(final T item, final Throwable error) {
+        final CompletableFuture<OkraItemFailCallback.Outcome> future = new CompletableFuture<>();
+
+        callImpl(future, impl -> impl.fail(item, error, new OkraItemFailCallback() {
+
+            @Override
+            public void onSuccess(final Outcome outcome) {
+                future.complete(outcome);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        }));
+
+        return future;
+    }
+
+    /**
+     * Only available when backed by an {@link OkraAsyncImpl}.
+     * Completes with the number of removed items.
+     */
+    public CompletableFuture<Long> purgeDone(final int max) {
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+        callImpl(future, impl -> impl.purgeDone(max, countCallback(future)));
+        return future;
+    }
+
+    /**
+     * Only available when backed by an {@link OkraAsyncImpl}.
+     * Completes with the items that could not be scheduled, empty if every item was scheduled.
+     */
+    public CompletableFuture<List<ScheduleFailure<T>>> scheduleAll(final Collection<T> items) {
+        final CompletableFuture<List<ScheduleFailure<T>>> future = new CompletableFuture<>();
+        callImpl(future, impl -> impl.scheduleAll(items, scheduleCallback(future)));
+        return future;
+    }
+
+    /**
+     * Only available when backed by an {@link OkraAsyncImpl}.
+     * Completes with {@code 1} if the item was scheduled, {@code 0} if its unique key was taken.
+     */
+    public CompletableFuture<Long> scheduleIfAbsent(final T item) {
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+        callImpl(future, impl -> impl.scheduleIfAbsent(item, countCallback(future)));
+        return future;
+    }
+
+    /**
+     * Only available when backed by an {@link OkraAsyncImpl}.
+     * Completes with {@code 1} if the item was scheduled or replaced, {@code 0} if its unique key was taken.
+     */
+    public CompletableFuture<Long> scheduleOrReplace(final T item) {
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+        callImpl(future, impl -> impl.scheduleOrReplace(item, countCallback(future)));
+        return future;
+    }
+
+    /**
+     * Only available when backed by an {@link OkraAsyncImpl}.
+     * Completes with the items that could not be scheduled, duplicates included.
+     */
+    public CompletableFuture<List<ScheduleFailure<T>>> scheduleAllIfAbsent(final Collection<T> items) {
+        final CompletableFuture<List<ScheduleFailure<T>>> future = new CompletableFuture<>();
+        callImpl(future, impl -> impl.scheduleAllIfAbsent(items, scheduleCallback(future)));
+        return future;
+    }
+
+    /**
+     * Only available when backed by an {@link OkraAsyncImpl}.
+     * Completes with the items that could not be scheduled nor replaced.
+     */
+    public CompletableFuture<List<ScheduleFailure<T>>> scheduleAllOrReplace(final Collection<T> items) {
+        final CompletableFuture<List<ScheduleFailure<T>>> future = new CompletableFuture<>();
+        callImpl(future, impl -> impl.scheduleAllOrReplace(items, scheduleCallback(future)));
+        return future;
+    }
+
+    /**
+     * Runs {@code operation}, completing {@code future} with what it throws instead of throwing
+     */
+    private static void call(final CompletableFuture<?> future, final Runnable operation) {
+        try {
+            operation.run();
+        } catch (final RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void callImpl(final CompletableFuture<?> future, final Consumer<OkraAsyncImpl<T>> operation) {
+        if (okra instanceof OkraAsyncImpl) {
+            call(future, () -> operation.accept((OkraAsyncImpl<T>) okra));
+            return;
+        }
+
+        future.completeExceptionally(new UnsupportedOperationException(
+                "This operation needs an OkraAsyncImpl, got " + okra.getClass().getName()));
+    }
+
+    private static <T extends OkraItem> OkraItemCallback<T> itemCallback(final CompletableFuture<Optional<T>> future) {
+        return new OkraItemCallback<T>() {
+
+            @Override
+            public void onSuccess(final T item) {
+                future.complete(Optional.ofNullable(item));
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        };
+    }
+
+    private static <T extends OkraItem> OkraItemOperationCallback<T> operationCallback(
+            final CompletableFuture<Optional<T>> future) {
+        return new OkraItemOperationCallback<T>() {
+
+            @Override
+            public void onSuccess(final T item) {
+                future.complete(Optional.ofNullable(item));
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        };
+    }
+
+    private static <T extends OkraItem> OkraItemsCallback<T> itemsCallback(final CompletableFuture<List<T>> future) {
+        return new OkraItemsCallback<T>() {
+
+            @Override
+            public void onSuccess(final List<T> items) {
+                future.complete(items);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        };
+    }
+
+    private static <T extends OkraItem> OkraItemsScheduleCallback<T> scheduleCallback(
+            final CompletableFuture<List<ScheduleFailure<T>>> future) {
+        return new OkraItemsScheduleCallback<T>() {
+
+            @Override
+            public void onSuccess(final int scheduledCount, final List<ScheduleFailure<T>> failures) {
+                future.complete(failures);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        };
+    }
+
+    private static OkraCountCallback countCallback(final CompletableFuture<Long> future) {
+        return new OkraCountCallback() {
+
+            @Override
+            public void onSuccess(final long count) {
+                future.complete(count);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        };
+    }
+}
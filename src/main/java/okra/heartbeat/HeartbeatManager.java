@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.heartbeat;
+
+import okra.OkraAsyncImpl;
+import okra.base.model.OkraItem;
+import okra.callback.OkraItemsCallback;
+import okra.callback.OkraLeaseLostCallback;
+import okra.model.FencedOkraItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the leases of in-flight items alive.
+ * <p>
+ * Registered items are renewed periodically with one {@link OkraAsyncImpl#heartbeatAll} call, i.e. one
+ * {@code bulkWrite} per round whatever the number of items. Their {@code heartbeat} is refreshed in place.
+ * Fenced items are matched by their lease token, which renewals leave untouched, so they can be rescheduled
+ * or deleted right after being {@link #unregister(OkraItem) unregistered}; other items are matched by their
+ * {@code heartbeat} and must wait for the returned future.
+ * Items whose lease was lost are unregistered and reported to the {@link OkraLeaseLostCallback}.
+ */
+public final class HeartbeatManager<T extends OkraItem> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HeartbeatManager.class);
+
+    private final OkraAsyncImpl<T> okra;
+    private final OkraLeaseLostCallback<T> leaseLostCallback;
+    private final Map<String, T> items = new ConcurrentHashMap<>();
+    private final AtomicBoolean renewing = new AtomicBoolean();
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Ids of the items the renewal in flight covers, completed with it. Guarded by {@code this}.
+     */
+    private Set<String> renewingIds = Collections.emptySet();
+    private CompletableFuture<Void> renewal = CompletableFuture.completedFuture(null);
+
+    public HeartbeatManager(final OkraAsyncImpl<T> okra,
+                            final long period,
+                            final TimeUnit unit,
+                            final OkraLeaseLostCallback<T> leaseLostCallback) {
+        this.okra = okra;
+        this.leaseLostCallback = leaseLostCallback;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "okra-heartbeat-manager");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::renew, period, period, unit);
+    }
+
+    public void register(final T item) {
+        items.put(item.getId(), item);
+    }
+
+    /**
+     * Stops renewing the item. Must be called before rescheduling or deleting it. For items without a lease
+     * token the operation must wait for the returned future: a renewal in flight changes their
+     * {@code heartbeat} on the server, and the item only gets the new one once that renewal completed.
+     *
+     * @return completes once the item can be matched by its lease again
+     */
+    public synchronized CompletableFuture<Void> unregister(final T item) {
+        items.remove(item.getId());
+
+        final boolean fenced = item instanceof FencedOkraItem && ((FencedOkraItem) item).getLeaseToken() != null;
+        return !fenced && renewingIds.contains(item.getId()) ? renewal : CompletableFuture.completedFuture(null);
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    public void close() {
+        executor.shutdownNow();
+        items.clear();
+    }
+
+    private void renew() {
+        if (items.isEmpty() || !renewing.compareAndSet(false, true)) {
+            return;
+        }
+
+        final List<T> snapshot;
+        final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+        // Published together with the snapshot, so that unregister sees every renewal that includes its item
+        synchronized (this) {
+            snapshot = new ArrayList<>(items.values());
+            renewingIds = snapshot.stream().map(OkraItem::getId).collect(Collectors.toSet());
+            renewal = completion;
+        }
+
+        okra.heartbeatAll(snapshot, new OkraItemsCallback<T>() {
+
+            @Override
+            public void onSuccess(final List<T> lost) {
+                lost.forEach(item -> {
+                    if (items.remove(item.getId(), item)) {
+                        leaseLostCallback.onLeaseLost(item);
+                    }
+                });
+                completed(completion);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                // Whether the leases were renewed is unknown, unregistered items may have lost them
+                LOGGER.warn("Unable to renew {} leases, retrying on next round", snapshot.size(), throwable);
+                completed(completion);
+            }
+        });
+    }
+
+    private void completed(final CompletableFuture<Void> completion) {
+        synchronized (this) {
+            renewingIds = Collections.emptySet();
+        }
+        renewing.set(false);
+        completion.complete(null);
+    }
+}
@@ -21,44 +21,383 @@
  */
 package okra.index;
 
-import com.mongodb.async.SingleResultCallback;
 import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoClients;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
 import com.mongodb.client.model.Indexes;
 import okra.base.Okra;
 import okra.base.model.OkraItem;
 import okra.base.model.index.Ordering;
+import okra.claim.ClaimStrategy;
+import okra.util.QueryUtil;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.BsonType;
+import org.bson.BsonValue;
 import org.bson.conversions.Bson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Makes sure the indexes needed by okra exist.
+ * <p>
+ * Existing indexes are listed once and only the missing ones are created, in the background and with
+ * a single {@code createIndexes} command. An index is only taken as existing when its keys and its
+ * {@code unique}, {@code partialFilterExpression} and {@code expireAfterSeconds} options match.
+ * An existing TTL index whose {@code expireAfterSeconds} changed, for instance after changing the archive
+ * retention, is updated in place with {@code collMod}. Any other index with the same keys but other
+ * options cannot be replaced safely, the verification fails with an error naming it.
+ * <p>
+ * The outcome is cached per {@link MongoClient}, database, collection and set of indexes, so building
+ * many okra instances over the same collection with the same client only verifies it once, while
+ * another client, possibly connected to another cluster, verifies it again. A failed verification is
+ * not cached, the next instance tries again.
+ */
 public final class IndexCreator {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(IndexCreator.class);
 
-    public static <T extends OkraItem> void ensureIndexes(final Okra<T> okra,
-                                                          final MongoClient mongo,
-                                                          final String database,
-                                                          final String collection) {
+    /**
+     * Compound index backing the claim path: {@code {status, runDate, heartbeat}} serves every branch of
+     * the peek query with an equality on {@code status}, so each branch returns its items in
+     * {@code runDate} order and the server merges them instead of sorting every due item in memory.
+     * The expired-lease branches filter {@code heartbeat} on the index keys, so they only fetch the
+     * expired items, not every item in progress.
+     * <p>
+     * A {@code {status, heartbeat}} index left by older versions lets the planner pick an in-memory
+     * sort again, it can be dropped.
+     */
+    public static final List<Bson> COMPOUND_INDEXES = Collections.singletonList(
+            Indexes.compoundIndex(Indexes.ascending("status"), Indexes.ascending("runDate"),
+                    Indexes.ascending("heartbeat"))
+    );
 
-        final SingleResultCallback<String> callback = (result, throwable) -> {
-            if (throwable == null) {
-                LOGGER.info("Done. Index name: {}", result);
-            } else {
-                LOGGER.error("ERROR Creating Okra Index! This may be dangerous!", throwable);
-            }
-        };
+    private static final Map<MongoClient, Map<String, CompletableFuture<Void>>> VERIFIED =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private IndexCreator() {
+    }
+
+    /**
+     * @return the index definitions of {@code okra} followed by {@link #COMPOUND_INDEXES}
+     */
+    public static <T extends OkraItem> List<IndexModel> requiredIndexes(final Okra<T> okra) {
+        final List<IndexModel> indexes = new ArrayList<>();
 
         okra.getIndexDefs()
                 .forEach(indexDef -> {
                     final boolean ascending = indexDef.getOrdering() == null
                             || indexDef.getOrdering().equals(Ordering.ASC);
 
-                    final Bson ordering = ascending
-                            ? Indexes.ascending(indexDef.getAttrs()) : Indexes.descending(indexDef.getAttrs());
+                    indexes.add(new IndexModel(ascending
+                            ? Indexes.ascending(indexDef.getAttrs()) : Indexes.descending(indexDef.getAttrs())));
+                });
+
+        COMPOUND_INDEXES.forEach(index -> indexes.add(new IndexModel(index)));
+
+        return indexes;
+    }
+
+    /**
+     * Index serving the claim queries of {@code strategy}:
+     * {@code {status, tenant, priority, runDate}}, without the fields the strategy does not use.
+     */
+    public static IndexModel claimIndex(final ClaimStrategy strategy) {
+        final List<Bson> keys = new ArrayList<>();
+        keys.add(Indexes.ascending("status"));
+        if (strategy.usesTenants()) {
+            keys.add(Indexes.ascending(ClaimStrategy.TENANT));
+        }
+        if (strategy.usesPriorities()) {
+            keys.add(Indexes.ascending(ClaimStrategy.PRIORITY));
+        }
+        keys.add(Indexes.ascending("runDate"));
+        return new IndexModel(Indexes.compoundIndex(keys));
+    }
+
+    /**
+     * Unique index on {@code uniqueKey}, see {@link okra.model.UniqueOkraItem}. It is partial, so items
+     * stored without a key are neither indexed nor taken for duplicates of each other.
+     */
+    public static IndexModel uniqueKeyIndex() {
+        return new IndexModel(Indexes.ascending(QueryUtil.UNIQUE_KEY), new IndexOptions()
+                .unique(true)
+                .partialFilterExpression(Filters.type(QueryUtil.UNIQUE_KEY, BsonType.STRING)));
+    }
+
+    /**
+     * Lets MongoDB delete documents {@code expireAfterSeconds} after the date stored in {@code field}
+     */
+    public static IndexModel ttlIndex(final String field, final long expireAfterSeconds) {
+        return new IndexModel(Indexes.ascending(field),
+                new IndexOptions().expireAfter(expireAfterSeconds, TimeUnit.SECONDS));
+    }
 
-                    mongo.getDatabase(database)
-                            .getCollection(collection)
-                            .createIndex(ordering, callback);
+    public static <T extends OkraItem> CompletableFuture<Void> ensureIndexes(final Okra<T> okra,
+                                                                            final MongoClient mongo,
+                                                                            final String database,
+                                                                            final String collection) {
+        return ensureIndexes(mongo, database, collection, requiredIndexes(okra));
+    }
+
+    /**
+     * @return completes once every index in {@code indexes} exists on the collection
+     */
+    public static CompletableFuture<Void> ensureIndexes(final MongoClient mongo,
+                                                        final String database,
+                                                        final String collection,
+                                                        final List<IndexModel> indexes) {
+        final List<String> signatures = indexes.stream()
+                .map(IndexCreator::signature)
+                .collect(Collectors.toList());
+
+        final String cacheKey = database + "." + collection + signatures;
+        final Map<String, CompletableFuture<Void>> verified =
+                VERIFIED.computeIfAbsent(mongo, client -> new ConcurrentHashMap<>());
+
+        final CompletableFuture<Void> cached = verified.get(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
+
+        final CompletableFuture<Void> verification = new CompletableFuture<>();
+        final CompletableFuture<Void> existing = verified.putIfAbsent(cacheKey, verification);
+        if (existing != null) {
+            return existing;
+        }
+
+        verification.whenComplete((ignored, throwable) -> {
+            if (throwable != null) {
+                verified.remove(cacheKey, verification);
+            }
+        });
+
+        mongo.getDatabase(database)
+                .getCollection(collection)
+                .listIndexes(BsonDocument.class)
+                .into(new ArrayList<>(), (existingIndexes, listThrowable) -> {
+                    // The driver lists no indexes for a collection that does not exist yet
+                    if (listThrowable != null) {
+                        LOGGER.error("Unable to list the indexes of {}.{}", database, collection, listThrowable);
+                        verification.completeExceptionally(listThrowable);
+                        return;
+                    }
+
+                    final Set<String> existingSignatures = existingIndexes.stream()
+                            .map(IndexCreator::signature)
+                            .collect(Collectors.toSet());
+                    final Map<String, BsonDocument> existingByKeys = existingIndexes.stream()
+                            .collect(Collectors.toMap(index -> normalize(index.getDocument("key")),
+                                    index -> index, (first, second) -> first));
+
+                    final List<IndexModel> missing = new ArrayList<>();
+                    final List<CompletableFuture<Void>> updates = new ArrayList<>();
+                    for (int i = 0; i < indexes.size(); i++) {
+                        if (existingSignatures.contains(signatures.get(i))) {
+                            continue;
+                        }
+
+                        final IndexModel index = indexes.get(i);
+                        final BsonDocument conflicting = existingByKeys.get(normalize(toBsonDocument(index.getKeys())));
+                        if (conflicting == null) {
+                            missing.add(withBackground(index));
+                        } else if (onlyExpirationDiffers(index, conflicting)) {
+                            updates.add(updateExpiration(mongo, database, collection, conflicting,
+                                    index.getOptions().getExpireAfter(TimeUnit.SECONDS)));
+                        } else {
+                            final IllegalStateException conflict = new IllegalStateException("Index "
+                                    + conflicting.getString("name").getValue() + " on " + database + "." + collection
+                                    + " has the keys of a required index but other options, drop it to let okra"
+                                    + " recreate it: existing " + signature(conflicting)
+                                    + ", required " + signatures.get(i));
+                            LOGGER.error("ERROR Creating Okra Index! This may be dangerous!", conflict);
+                            verification.completeExceptionally(conflict);
+                            return;
+                        }
+                    }
+
+                    CompletableFuture.allOf(updates.toArray(new CompletableFuture[updates.size()]))
+                            .thenCompose(ignored -> createIndexes(mongo, database, collection, missing))
+                            .whenComplete((ignored, throwable) -> {
+                                if (throwable == null) {
+                                    verification.complete(null);
+                                } else {
+                                    verification.completeExceptionally(throwable instanceof CompletionException
+                                            ? throwable.getCause() : throwable);
+                                }
+                            });
                 });
+
+        return verification;
+    }
+
+    private static CompletableFuture<Void> createIndexes(final MongoClient mongo,
+                                                         final String database,
+                                                         final String collection,
+                                                         final List<IndexModel> missing) {
+        final CompletableFuture<Void> created = new CompletableFuture<>();
+        if (missing.isEmpty()) {
+            created.complete(null);
+            return created;
+        }
+
+        LOGGER.info("Creating {} missing indexes on {}.{}", missing.size(), database, collection);
+
+        mongo.getDatabase(database)
+                .getCollection(collection)
+                .createIndexes(missing, (names, createThrowable) -> {
+                    if (createThrowable == null) {
+                        LOGGER.info("Done. Index names: {}", names);
+                        created.complete(null);
+                    } else {
+                        LOGGER.error("ERROR Creating Okra Index! This may be dangerous!", createThrowable);
+                        created.completeExceptionally(createThrowable);
+                    }
+                });
+
+        return created;
+    }
+
+    /**
+     * Changes {@code expireAfterSeconds} of the existing TTL index {@code index} with {@code collMod}
+     */
+    private static CompletableFuture<Void> updateExpiration(final MongoClient mongo,
+                                                            final String database,
+                                                            final String collection,
+                                                            final BsonDocument index,
+                                                            final long expireAfterSeconds) {
+        final CompletableFuture<Void> updated = new CompletableFuture<>();
+        final String name = index.getString("name").getValue();
+
+        LOGGER.info("Changing expireAfterSeconds of index {} on {}.{} to {}", name, database, collection,
+                expireAfterSeconds);
+
+        mongo.getDatabase(database)
+                .runCommand(new BsonDocument("collMod", new BsonString(collection))
+                        .append("index", new BsonDocument("keyPattern", index.getDocument("key"))
+                                .append("expireAfterSeconds", new BsonInt64(expireAfterSeconds))),
+                        (result, throwable) -> {
+                            if (throwable == null) {
+                                updated.complete(null);
+                            } else {
+                                LOGGER.error("Unable to change expireAfterSeconds of index {} on {}.{}",
+                                        name, database, collection, throwable);
+                                updated.completeExceptionally(throwable);
+                            }
+                        });
+
+        return updated;
+    }
+
+    /**
+     * @return whether {@code existing} is a TTL index that only needs another {@code expireAfterSeconds}
+     * to match {@code required}
+     */
+    private static boolean onlyExpirationDiffers(final IndexModel required, final BsonDocument existing) {
+        final Long expireAfterSeconds = required.getOptions().getExpireAfter(TimeUnit.SECONDS);
+        final BsonValue existingExpiration = existing.get("expireAfterSeconds");
+        if (expireAfterSeconds == null || existingExpiration == null || !existingExpiration.isNumber()) {
+            return false;
+        }
+
+        final BsonDocument updated = existing.clone();
+        updated.put("expireAfterSeconds", new BsonInt64(expireAfterSeconds));
+        return signature(updated).equals(signature(required));
+    }
+
+    /**
+     * @return a copy of {@code index} built in the background, leaving the caller's options untouched
+     */
+    private static IndexModel withBackground(final IndexModel index) {
+        final IndexOptions options = index.getOptions();
+        final IndexOptions copy = new IndexOptions()
+                .background(true)
+                .unique(options.isUnique())
+                .name(options.getName())
+                .sparse(options.isSparse())
+                .version(options.getVersion())
+                .weights(options.getWeights())
+                .defaultLanguage(options.getDefaultLanguage())
+                .languageOverride(options.getLanguageOverride())
+                .textVersion(options.getTextVersion())
+                .sphereVersion(options.getSphereVersion())
+                .bits(options.getBits())
+                .min(options.getMin())
+                .max(options.getMax())
+                .bucketSize(options.getBucketSize())
+                .storageEngine(options.getStorageEngine())
+                .partialFilterExpression(options.getPartialFilterExpression())
+                .collation(options.getCollation());
+
+        final Long expireAfterSeconds = options.getExpireAfter(TimeUnit.SECONDS);
+        if (expireAfterSeconds != null) {
+            copy.expireAfter(expireAfterSeconds, TimeUnit.SECONDS);
+        }
+
+        return new IndexModel(index.getKeys(), copy);
+    }
+
+    /**
+     * Keys and the options okra relies on, comparable between an {@link IndexModel} and a listed index
+     */
+    private static String signature(final IndexModel index) {
+        final IndexOptions options = index.getOptions();
+        final Long expireAfterSeconds = options.getExpireAfter(TimeUnit.SECONDS);
+
+        return signature(normalize(toBsonDocument(index.getKeys())),
+                options.isUnique(),
+                options.getPartialFilterExpression() == null
+                        ? null : toBsonDocument(options.getPartialFilterExpression()).toJson(),
+                expireAfterSeconds);
+    }
+
+    private static String signature(final BsonDocument index) {
+        final BsonValue unique = index.get("unique");
+        final BsonValue expireAfterSeconds = index.get("expireAfterSeconds");
+
+        return signature(normalize(index.getDocument("key")),
+                unique != null && unique.isBoolean() && unique.asBoolean().getValue(),
+                index.containsKey("partialFilterExpression") ? index.getDocument("partialFilterExpression").toJson() : null,
+                expireAfterSeconds != null && expireAfterSeconds.isNumber() ? expireAfterSeconds.asNumber().longValue() : null);
+    }
+
+    private static String signature(final String keys, final boolean unique, final String partialFilterExpression,
+                                    final Long expireAfterSeconds) {
+        return keys + "|unique=" + unique + "|partial=" + partialFilterExpression + "|ttl=" + expireAfterSeconds;
+    }
+
+    private static BsonDocument toBsonDocument(final Bson bson) {
+        return bson.toBsonDocument(BsonDocument.class, MongoClients.getDefaultCodecRegistry());
+    }
+
+    /**
+     * Index keys as {@code field:direction} pairs, so that {@code 1} and {@code 1.0} compare equal
+     */
+    private static String normalize(final BsonDocument keys) {
+        return keys.entrySet()
+                .stream()
+                .map(entry -> entry.getKey() + ":" + normalize(entry.getValue()))
+                .collect(Collectors.joining(","));
+    }
+
+    private static String normalize(final BsonValue direction) {
+        return direction.isNumber()
+                ? String.valueOf((int) Math.signum(direction.asNumber().doubleValue()))
+                : direction.toString();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.memory;
+
+import okra.base.async.AbstractOkraAsync;
+import okra.base.async.OkraAsync;
+import okra.base.async.callback.*;
+import okra.base.model.OkraItem;
+import okra.base.model.OkraStatus;
+import okra.exception.InvalidOkraItemException;
+import okra.model.FencedOkraItem;
+import okra.serialization.DocumentSerializer;
+import okra.util.DateUtil;
+import okra.util.QueryUtil;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * {@link OkraAsync} kept entirely in memory, for single-node deployments and fast tests.
+ * <p>
+ * Pending items are indexed by {@code runDate} and processing items by {@code heartbeat} in concurrent
+ * skip lists, so finding the next due item or the oldest expired lease is O(log n). Claims are lock-free:
+ * removing an index entry is what grants the right to claim it, and every state change is a
+ * compare-and-set on the item's current state. Items are stored as documents, the same way
+ * {@code OkraAsyncImpl} stores them, and callbacks run on the calling thread.
+ */
+public class InMemoryOkraAsync<T extends OkraItem> extends AbstractOkraAsync<T> implements OkraAsync<T> {
+
+    private static final Comparator<Key> KEY_ORDER = Comparator.<Key>comparingLong(key -> key.time)
+            .thenComparing(key -> key.id);
+
+    private final Class<T> itemClass;
+    private final long defaultHeartbeatExpirationMillis;
+    private final DocumentSerializer serializer;
+
+    private final Map<String, AtomicReference<State>> items = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<Key> pendingByRunDate = new ConcurrentSkipListSet<>(KEY_ORDER);
+    private final ConcurrentSkipListSet<Key> processingByHeartbeat = new ConcurrentSkipListSet<>(KEY_ORDER);
+
+    public InMemoryOkraAsync(final String database,
+                             final String collection,
+                             final Class<T> itemClass,
+                             final long defaultHeartbeatExpirationMillis) {
+        super(database, collection);
+        this.itemClass = itemClass;
+        this.defaultHeartbeatExpirationMillis = defaultHeartbeatExpirationMillis;
+        this.serializer = new DocumentSerializer();
+    }
+
+    @Override
+    public void peek(final OkraItemCallback<T> callback) {
+        final State claimed = claim();
+        callback.onSuccess(claimed == null ? null : toItem(claimed));
+    }
+
+    @Override
+    public void poll(final OkraItemCallback<T> callback) {
+        final State claimed = claim();
+
+        callback.onSuccess(claimed != null && remove(claimed.id, current -> current.leaseToken == claimed.leaseToken)
+                ? toItem(claimed) : null);
+    }
+
+    @Override
+    public void delete(final T item, final OkraItemDeleteCallback callback) {
+        callback.onSuccess(remove(item.getId(), current -> holdsToken(current, item)) ? 1 : 0);
+    }
+
+    @Override
+    public void reschedule(final T item, final OkraItemOperationCallback<T> callback) {
+        validateReschedule(item);
+
+        final long runDate = toMillis(item.getRunDate());
+
+        final State rescheduled = update(item.getId(),
+                current -> holdsLease(current, item),
+                current -> current.with(OkraStatus.PENDING.name(), runDate, null).withoutAttempts());
+
+        callback.onSuccess(rescheduled == null ? null : toItem(rescheduled));
+    }
+
+    @Override
+    public void heartbeat(final T item, final OkraItemOperationCallback<T> callback) {
+        final State renewed = update(item.getId(),
+                current -> isProcessing(current) && holdsLease(current, item),
+                current -> current.with(current.status, current.runDate, System.currentTimeMillis()));
+
+        callback.onSuccess(renewed == null ? null : toItem(renewed));
+    }
+
+    @Override
+    public void schedule(final T item, final OkraItemScheduleCallback callback) {
+        if (item.getStatus() == null) {
+            item.setStatus(OkraStatus.PENDING);
+        }
+
+        // Same as the MongoDB queue: the given id is kept, otherwise one is generated and set on the item
+        final ObjectId id = item.getId() == null ? new ObjectId() : new ObjectId(item.getId());
+        final Document document = serializer.toDocument(item);
+        document.put("_id", id);
+
+        final State state = State.of(id.toHexString(), document);
+        if (items.putIfAbsent(state.id, new AtomicReference<>(state)) != null) {
+            callback.onFailure(new IllegalStateException("An item with id " + state.id + " is already scheduled"));
+            return;
+        }
+        index(state);
+
+        item.setId(state.id);
+        callback.onSuccess();
+    }
+
+    @Override
+    public void countByStatus(final OkraStatus status, final OkraCountCallback callback) {
+        callback.onSuccess(items.values()
+                .stream()
+                .filter(reference -> status.name().equals(reference.get().status))
+                .count());
+    }
+
+    @Override
+    public void countDelayed(final OkraCountCallback callback) {
+        final long now = System.currentTimeMillis();
+
+        callback.onSuccess(items.values()
+                .stream()
+                .filter(reference -> reference.get().runDate != null && reference.get().runDate < now)
+                .count());
+    }
+
+    public long getHeartbeatExpirationMillis() {
+        return defaultHeartbeatExpirationMillis;
+    }
+
+    /**
+     * Claims the oldest expired lease if any, otherwise the item that became due first.
+     */
+    private State claim() {
+        final long now = System.currentTimeMillis();
+
+        final State expired = claimFirst(processingByHeartbeat, now - defaultHeartbeatExpirationMillis, now, true);
+        return expired != null ? expired : claimFirst(pendingByRunDate, now, now, false);
+    }
+
+    private State claimFirst(final ConcurrentSkipListSet<Key> index, final long before, final long now,
+                             final boolean processing) {
+        for (Key key = first(index); key != null && key.time < before; key = first(index)) {
+            // Whoever removes the key owns the right to claim it
+            if (!index.remove(key)) {
+                continue;
+            }
+
+            final AtomicReference<State> reference = items.get(key.id);
+            if (reference == null) {
+                continue;
+            }
+
+            final State current = reference.get();
+            final boolean stillIndexed = processing
+                    ? isProcessing(current) && indexTime(current) == key.time
+                    : isPending(current) && current.runDate == key.time;
+
+            if (!stillIndexed) {
+                continue;
+            }
+
+            final State claimed = current.claim(now);
+            if (reference.compareAndSet(current, claimed)) {
+                index(claimed);
+                return claimed;
+            }
+
+            // Concurrently updated, the updater re-indexed it
+        }
+
+        return null;
+    }
+
+    private State update(final String id,
+                         final Predicate<State> condition,
+                         final UnaryOperator<State> change) {
+        final AtomicReference<State> reference = items.get(id);
+        if (reference == null) {
+            return null;
+        }
+
+        while (true) {
+            final State current = reference.get();
+            if (!condition.test(current)) {
+                return null;
+            }
+
+            final State updated = change.apply(current);
+            if (reference.compareAndSet(current, updated)) {
+                unindex(current);
+                index(updated);
+                return updated;
+            }
+        }
+    }
+
+    /**
+     * Removes the item if {@code condition} holds. The state is first replaced by a tombstone, so that
+     * the condition cannot be invalidated by a concurrent claim between the check and the removal.
+     */
+    private boolean remove(final String id, final Predicate<State> condition) {
+        final AtomicReference<State> reference = items.get(id);
+        if (reference == null) {
+            return false;
+        }
+
+        while (true) {
+            final State current = reference.get();
+            if (current.isRemoved() || !condition.test(current)) {
+                return false;
+            }
+
+            if (reference.compareAndSet(current, current.removed())) {
+                items.remove(id, reference);
+                unindex(current);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Same as {@link QueryUtil#addLeaseCondition}: the lease token when the item carries one, the heartbeat
+     * otherwise
+     */
+    private static boolean holdsLease(final State state, final OkraItem item) {
+        if (item instanceof FencedOkraItem && ((FencedOkraItem) item).getLeaseToken() != null) {
+            return ((FencedOkraItem) item).getLeaseToken() == state.leaseToken;
+        }
+        return state.heartbeat != null && item.getHeartbeat() != null && state.heartbeat == toMillis(item.getHeartbeat());
+    }
+
+    /**
+     * Fenced items only match the claim they were returned by
+     */
+    private static boolean holdsToken(final State state, final OkraItem item) {
+        return !(item instanceof FencedOkraItem)
+                || ((FencedOkraItem) item).getLeaseToken() == null
+                || ((FencedOkraItem) item).getLeaseToken() == state.leaseToken;
+    }
+
+    private void index(final State state) {
+        if (isPending(state) && state.runDate != null) {
+            pendingByRunDate.add(new Key(state.runDate, state.id));
+        } else if (isProcessing(state)) {
+            processingByHeartbeat.add(new Key(indexTime(state), state.id));
+        }
+    }
+
+    private void unindex(final State state) {
+        if (isPending(state) && state.runDate != null) {
+            pendingByRunDate.remove(new Key(state.runDate, state.id));
+        } else if (isProcessing(state)) {
+            processingByHeartbeat.remove(new Key(indexTime(state), state.id));
+        }
+    }
+
+    private T toItem(final State state) {
+        return serializer.fromDocument(itemClass, state.toDocument());
+    }
+
+    private static Key first(final ConcurrentSkipListSet<Key> index) {
+        return index.ceiling(Key.MIN);
+    }
+
+    /**
+     * Processing items without heartbeat are claimable right away, like in the peek query
+     */
+    private static long indexTime(final State state) {
+        return state.heartbeat == null ? Long.MIN_VALUE : state.heartbeat;
+    }
+
+    private static boolean isPending(final State state) {
+        return OkraStatus.PENDING.name().equals(state.status);
+    }
+
+    private static boolean isProcessing(final State state) {
+        return OkraStatus.PROCESSING.name().equals(state.status);
+    }
+
+    private static long toMillis(final LocalDateTime dateTime) {
+        return DateUtil.toDate(dateTime).getTime();
+    }
+
+    private void validateReschedule(final T item) {
+        if (item == null
+                || item.getHeartbeat() == null
+                || item.getRunDate() == null
+                || item.getId() == null) {
+            throw new InvalidOkraItemException();
+        }
+    }
+
+    private static final class Key {
+
+        private static final Key MIN = new Key(Long.MIN_VALUE, "");
+
+        private final long time;
+        private final String id;
+
+        private Key(final long time, final String id) {
+            this.time = time;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Immutable snapshot of an item. The document is never mutated once the state is published.
+     */
+    private static final class State {
+
+        private static final String REMOVED = "REMOVED";
+
+        private final String id;
+        private final Document document;
+        private final String status;
+        private final Long runDate;
+        private final Long heartbeat;
+        private final long leaseToken;
+        private final int attempts;
+
+        private State(final String id, final Document document,
+                      final String status, final Long runDate, final Long heartbeat,
+                      final long leaseToken, final int attempts) {
+            this.id = id;
+            this.document = document;
+            this.status = status;
+            this.runDate = runDate;
+            this.heartbeat = heartbeat;
+            this.leaseToken = leaseToken;
+            this.attempts = attempts;
+        }
+
+        private static State of(final String id, final Document document) {
+            final Object status = document.get("status");
+            final Date runDate = document.getDate("runDate");
+            final Date heartbeat = document.getDate("heartbeat");
+            final Object leaseToken = document.get(QueryUtil.LEASE_TOKEN);
+            final Object attempts = document.get(QueryUtil.ATTEMPTS);
+
+            return new State(id, document,
+                    status == null ? null : status.toString(),
+                    runDate == null ? null : runDate.getTime(),
+                    heartbeat == null ? null : heartbeat.getTime(),
+                    leaseToken instanceof Number ? ((Number) leaseToken).longValue() : 0,
+                    attempts instanceof Number ? ((Number) attempts).intValue() : 0);
+        }
+
+        private State with(final String newStatus, final Long newRunDate, final Long newHeartbeat) {
+            return new State(id, document, newStatus, newRunDate, newHeartbeat, leaseToken, attempts);
+        }
+
+        /**
+         * Rescheduled items are healthy, their claims do not count towards the dead-letter collection
+         */
+        private State withoutAttempts() {
+            return new State(id, document, status, runDate, heartbeat, leaseToken, 0);
+        }
+
+        private State claim(final long now) {
+            return new State(id, document, OkraStatus.PROCESSING.name(), runDate, now, leaseToken + 1, attempts + 1);
+        }
+
+        /**
+         * Neither pending nor processing, so it is never claimed nor indexed again
+         */
+        private State removed() {
+            return new State(id, document, REMOVED, null, null, leaseToken, attempts);
+        }
+
+        private boolean isRemoved() {
+            return REMOVED.equals(status);
+        }
+
+        private Document toDocument() {
+            final Document copy = new Document(document);
+            copy.put("status", status);
+            copy.put("runDate", runDate == null ? null : new Date(runDate));
+            copy.put("heartbeat", heartbeat == null ? null : new Date(heartbeat));
+            copy.put(QueryUtil.LEASE_TOKEN, leaseToken);
+            copy.put(QueryUtil.ATTEMPTS, attempts);
+            return copy;
+        }
+    }
+}
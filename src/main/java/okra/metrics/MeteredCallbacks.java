@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.metrics;
+
+import okra.base.async.callback.*;
+import okra.base.model.OkraItem;
+import okra.callback.OkraItemFailCallback;
+import okra.callback.OkraItemsCallback;
+import okra.callback.OkraItemsScheduleCallback;
+import okra.model.ScheduleFailure;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wraps callbacks to time operations and track the ones in flight.
+ * Only used when metrics are enabled, so the default path allocates nothing more.
+ */
+public final class MeteredCallbacks {
+
+    private final OkraMetrics metrics;
+    private final LongAdder inFlight = new LongAdder();
+
+    public MeteredCallbacks(final OkraMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public long getInFlight() {
+        return inFlight.sum();
+    }
+
+    public <T extends OkraItem> OkraItemCallback<T> item(final OkraOperation operation,
+                                                          final OkraItemCallback<T> callback) {
+        final long start = begin();
+
+        return new OkraItemCallback<T>() {
+
+            @Override
+            public void onSuccess(final T item) {
+                end(operation, start, true);
+                if (item == null && operation == OkraOperation.PEEK) {
+                    metrics.recordEmptyPeek();
+                }
+                callback.onSuccess(item);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                end(operation, start, false);
+                callback.onFailure(throwable);
+            }
+        };
+    }
+
+    public <T extends OkraItem> OkraItemOperationCallback<T> operation(final OkraOperation operation,
+                                                                        final OkraItemOperationCallback<T> callback) {
+        final long start = begin();
+
+        return new OkraItemOperationCallback<T>() {
+
+            @Override
+            public void onSuccess(final T item) {
+                end(operation, start, true);
+                if (item == null) {
+                    recordMismatch(operation);
+                }
+                callback.onSuccess(item);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                end(operation, start, false);
+                if (operation == OkraOperation.RESCHEDULE) {
+                    metrics.recordFailedReschedule();
+                }
+                callback.onFailure(throwable);
+            }
+        };
+    }
+
+    public <T extends OkraItem> OkraItemsCallback<T> items(final OkraOperation operation,
+                                                            final OkraItemsCallback<T> callback) {
+        final long start = begin();
+
+        return new OkraItemsCallback<T>() {
+
+            @Override
+            public void onSuccess(final List<T> items) {
+                end(operation, start, true);
+                if (operation == OkraOperation.HEARTBEAT_ALL) {
+                    if (!items.isEmpty()) {
+                        metrics.recordLostLeases(items.size());
+                    }
+                } else if (items.isEmpty() && operation == OkraOperation.PEEK_BATCH) {
+                    metrics.recordEmptyPeek();
+                }
+                callback.onSuccess(items);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                end(operation, start, false);
+                callback.onFailure(throwable);
+            }
+        };
+    }
+
+    public OkraItemDeleteCallback delete(final OkraOperation operation, final OkraItemDeleteCallback callback) {
+        final long start = begin();
+
+        return new OkraItemDeleteCallback() {
+
+            @Override
+            public void onSuccess(final long deletedCount) {
+                end(operation, start, true);
+                callback.onSuccess(deletedCount);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                end(operation, start, false);
+                callback.onFailure(throwable);
+            }
+        };
+    }
+
+    public OkraItemScheduleCallback schedule(final OkraOperation operation, final OkraItemScheduleCallback callback) {
+        final long start = begin();
+
+        return new OkraItemScheduleCallback() {
+
+            @Override
+            public void onSuccess() {
+                end(operation, start, true);
+                callback.onSuccess();
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                end(operation, start, false);
+                callback.onFailure(throwable);
+            }
+        };
+    }
+
+    public <T extends OkraItem> OkraItemsScheduleCallback<T> scheduleAll(final OkraOperation operation,
+                                                                          final OkraItemsScheduleCallback<T> callback) {
+        final long start = begin();
+
+        return new OkraItemsScheduleCallback<T>() {
+
+            @Override
+            public void onSuccess(final int scheduledCount, final List<ScheduleFailure<T>> failures) {
+                end(operation, start, failures.isEmpty());
+                callback.onSuccess(scheduledCount, failures);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                end(operation, start, false);
+                callback.onFailure(throwable);
+            }
+        };
+    }
+
+    public OkraCountCallback count(final OkraOperation operation, final OkraCountCallback callback) {
+        final long start = begin();
+
+        return new OkraCountCallback() {
+
+            @Override
+            public void onSuccess(final long count) {
+                end(operation, start, true);
+                callback.onSuccess(count);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                end(operation, start, false);
+                callback.onFailure(throwable);
+            }
+        };
+    }
+
+    public OkraItemFailCallback fail(final OkraOperation operation, final OkraItemFailCallback callback) {
+        final long start = begin();
+
+        return new OkraItemFailCallback() {
+
+            @Override
+            public void onSuccess(final Outcome outcome) {
+                end(operation, start, true);
+                if (outcome == Outcome.DEAD_LETTERED) {
+                    metrics.recordDeadLetter();
+                } else if (outcome == Outcome.LEASE_LOST) {
+                    metrics.recordLostLeases(1);
+                }
+                callback.onSuccess(outcome);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                end(operation, start, false);
+                callback.onFailure(throwable);
+            }
+        };
+    }
+
+    /**
+     * An item claimed beyond its retry policy was dead-lettered instead of being handed out
+     */
+    public void recordDeadLetter() {
+        metrics.recordDeadLetter();
+    }
+
+    private long begin() {
+        inFlight.increment();
+        return System.nanoTime();
+    }
+
+    private void end(final OkraOperation operation, final long start, final boolean success) {
+        inFlight.decrement();
+        metrics.recordLatency(operation, System.nanoTime() - start, success);
+    }
+
+    private void recordMismatch(final OkraOperation operation) {
+        if (operation == OkraOperation.HEARTBEAT) {
+            metrics.recordLostLeases(1);
+        } else if (operation == OkraOperation.RESCHEDULE) {
+            metrics.recordFailedReschedule();
+        }
+    }
+}
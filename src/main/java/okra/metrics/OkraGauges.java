@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.metrics;
+
+import okra.base.model.OkraStatus;
+
+/**
+ * Values meant to be exposed as gauges. Reading them never hits the database:
+ * queue depth and scheduling lag are sampled in the background.
+ */
+public interface OkraGauges {
+
+    /**
+     * Operations sent to the database whose callback was not called yet
+     */
+    long getInFlight();
+
+    /**
+     * Number of items with the given status, as of the last sample. {@code -1} until the first sample.
+     */
+    long getQueueDepth(OkraStatus status);
+
+    /**
+     * How long the oldest due pending item has been waiting, as of the last sample. {@code 0} when none is due.
+     */
+    long getSchedulingLagMillis();
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.metrics;
+
+/**
+ * Receives measurements from an {@code OkraAsyncImpl}, e.g. to forward them to Micrometer:
+ * <pre>
+ * public void recordLatency(OkraOperation operation, long elapsedNanos, boolean success) {
+ *     registry.timer("okra.operation", "operation", operation.name(), "success", String.valueOf(success))
+ *             .record(elapsedNanos, TimeUnit.NANOSECONDS);
+ * }
+ * </pre>
+ * Every method does nothing by default. When {@link #NOOP} is used, callbacks are not instrumented at all.
+ */
+public interface OkraMetrics {
+
+    OkraMetrics NOOP = new OkraMetrics() {
+    };
+
+    /**
+     * Called once per operation, when its callback is invoked
+     */
+    default void recordLatency(OkraOperation operation, long elapsedNanos, boolean success) {
+    }
+
+    /**
+     * A claim attempt found nothing to claim
+     */
+    default void recordEmptyPeek() {
+    }
+
+    /**
+     * Heartbeats failed because the items' leases were lost
+     */
+    default void recordLostLeases(int count) {
+    }
+
+    /**
+     * A reschedule failed or did not match the item anymore
+     */
+    default void recordFailedReschedule() {
+    }
+
+    /**
+     * An item exhausted its retry policy and was moved to the dead-letter collection
+     */
+    default void recordDeadLetter() {
+    }
+
+    /**
+     * Called once, when the okra is built, with the gauges to register
+     */
+    default void bindGauges(OkraGauges gauges) {
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.metrics;
+
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import okra.base.model.OkraStatus;
+import okra.util.QueryUtil;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Periodically samples queue depth per status and the age of the oldest due item, so
+ * that {@link OkraGauges} can be read at any rate without querying the database.
+ */
+public final class QueueSampler implements OkraGauges {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueueSampler.class);
+
+    private final MongoCollection<Document> collection;
+    private final LongSupplier inFlight;
+    private final ScheduledExecutorService executor;
+
+    private volatile long pending = -1;
+    private volatile long processing = -1;
+    private volatile long done = -1;
+    private volatile long oldestDueRunDate = -1;
+
+    public QueueSampler(final MongoCollection<Document> collection,
+                        final LongSupplier inFlight,
+                        final long interval,
+                        final TimeUnit unit) {
+        this.collection = collection;
+        this.inFlight = inFlight;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "okra-queue-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::sample, 0, interval, unit);
+    }
+
+    @Override
+    public long getInFlight() {
+        return inFlight.getAsLong();
+    }
+
+    @Override
+    public long getQueueDepth(final OkraStatus status) {
+        switch (status) {
+            case PENDING:
+                return pending;
+            case PROCESSING:
+                return processing;
+            default:
+                return done;
+        }
+    }
+
+    @Override
+    public long getSchedulingLagMillis() {
+        final long oldest = oldestDueRunDate;
+        return oldest < 0 ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void sample() {
+        collection.count(Filters.eq("status", OkraStatus.PENDING.name()), (count, throwable) -> {
+            if (throwable == null) {
+                pending = count;
+            } else {
+                LOGGER.debug("Unable to sample pending items", throwable);
+            }
+        });
+
+        collection.count(Filters.eq("status", OkraStatus.PROCESSING.name()), (count, throwable) -> {
+            if (throwable == null) {
+                processing = count;
+            } else {
+                LOGGER.debug("Unable to sample processing items", throwable);
+            }
+        });
+
+        collection.count(Filters.eq("status", OkraStatus.DONE.name()), (count, throwable) -> {
+            if (throwable == null) {
+                done = count;
+            } else {
+                LOGGER.debug("Unable to sample done items", throwable);
+            }
+        });
+
+        // Served by the {status, runDate} compound index
+        collection.find(Filters.and(
+                Filters.eq("status", OkraStatus.PENDING.name()),
+                Filters.lte("runDate", new Date())))
+                .projection(Projections.include("runDate"))
+                .sort(QueryUtil.generatePeekSort())
+                .limit(1)
+                .first((oldest, throwable) -> {
+                    if (throwable == null) {
+                        oldestDueRunDate = oldest == null ? -1 : oldest.getDate("runDate").getTime();
+                    } else {
+                        LOGGER.debug("Unable to sample scheduling lag", throwable);
+                    }
+                });
+    }
+}
@@ -22,13 +22,12 @@
 package okra.model;
 
 import lombok.Data;
-import okra.base.model.OkraItem;
 import okra.base.model.OkraStatus;
 
 import java.time.LocalDateTime;
 
 @Data
-public class DefaultOkraItem implements OkraItem {
+public class DefaultOkraItem implements FencedOkraItem, RetryableOkraItem {
 
     private String id;
 
@@ -37,4 +36,10 @@ public class DefaultOkraItem implements OkraItem {
     private LocalDateTime runDate;
 
     private OkraStatus status;
+
+    private Long leaseToken = 0L;
+
+    private Integer attempts = 0;
+
+    private String lastError;
 }
\ No newline at end of file
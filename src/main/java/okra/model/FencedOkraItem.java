@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.model;
+
+import okra.base.model.OkraItem;
+
+/**
+ * Item carrying a fencing token. The token is incremented by every claim, and operations on a
+ * claimed item only apply while the stored token is still the one it was claimed with, so a worker
+ * whose lease was taken over can never act on the item again, whatever the clocks say.
+ * Items without a token fall back to the {@code heartbeat} check alone.
+ * <p>
+ * New items should start with a token of {@code 0}: a token stored as {@code null} cannot be incremented.
+ */
+public interface FencedOkraItem extends OkraItem {
+
+    Long getLeaseToken();
+
+    void setLeaseToken(Long leaseToken);
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.model;
+
+import okra.base.model.OkraItem;
+
+/**
+ * Item keeping track of how many times it was claimed, so that {@code OkraAsyncImpl#fail} can back off
+ * and move it to the dead-letter collection once its retry policy is exhausted.
+ * <p>
+ * {@code attempts} is incremented by every claim, including re-claims of expired leases, and decremented
+ * again when the item is released. It is reset when the item is rescheduled or a recurring item completes.
+ * It must start at {@code 0}: a {@code null} attempts field cannot be incremented.
+ */
+public interface RetryableOkraItem extends OkraItem {
+
+    Integer getAttempts();
+
+    void setAttempts(Integer attempts);
+
+    /**
+     * @return the error the last failed attempt was reported with, if any
+     */
+    String getLastError();
+
+    void setLastError(String lastError);
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.partition;
+
+import okra.base.model.OkraStatus;
+import okra.metrics.OkraGauges;
+
+import java.util.List;
+
+/**
+ * {@link OkraGauges} of a {@link PartitionedOkraAsync}: counts are summed over the partitions and the
+ * scheduling lag is the largest one.
+ */
+final class PartitionedGauges implements OkraGauges {
+
+    private final List<OkraGauges> partitions;
+
+    PartitionedGauges(final List<OkraGauges> partitions) {
+        this.partitions = partitions;
+    }
+
+    @Override
+    public long getInFlight() {
+        return partitions.stream().mapToLong(OkraGauges::getInFlight).sum();
+    }
+
+    /**
+     * {@code -1} until every partition was sampled
+     */
+    @Override
+    public long getQueueDepth(final OkraStatus status) {
+        long depth = 0;
+        for (final OkraGauges partition : partitions) {
+            final long partitionDepth = partition.getQueueDepth(status);
+            if (partitionDepth < 0) {
+                return -1;
+            }
+            depth += partitionDepth;
+        }
+        return depth;
+    }
+
+    @Override
+    public long getSchedulingLagMillis() {
+        return partitions.stream().mapToLong(OkraGauges::getSchedulingLagMillis).max().orElse(0);
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.partition;
+
+import okra.OkraAsyncImpl;
+import okra.base.async.AbstractOkraAsync;
+import okra.base.async.OkraAsync;
+import okra.base.async.callback.*;
+import okra.base.model.OkraItem;
+import okra.base.model.OkraStatus;
+import okra.callback.OkraItemFailCallback;
+import okra.dispatch.CallbackDispatcher;
+import okra.metrics.OkraGauges;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * {@link OkraAsync} spreading items over several partitions, each one an independent collection,
+ * so that concurrent claims do not all fight over the head of the same index.
+ * <p>
+ * The partition of an item is derived from its id, which is generated on {@code schedule} when absent.
+ * Any instance can therefore heartbeat, reschedule or delete an item without any extra lookup.
+ * <p>
+ * Each instance has a home partition it claims from first. When its home partition has nothing due,
+ * it steals from the other ones, starting from a rotating offset so that idle consumers do not all
+ * fall back on the same partition. Consumers should be spread over home partitions evenly, e.g. with
+ * {@code consumerIndex % partitionCount}.
+ */
+public class PartitionedOkraAsync<T extends OkraItem> extends AbstractOkraAsync<T> implements OkraAsync<T> {
+
+    private final List<OkraAsyncImpl<T>> partitions;
+    private final int homePartition;
+    private final CallbackDispatcher dispatcher;
+    private final OkraGauges gauges;
+    private final AtomicInteger stealOffset = new AtomicInteger();
+
+    /**
+     * @param partitions    one okra per partition, in the same order for every instance
+     * @param homePartition index of the partition this instance claims from first
+     */
+    public PartitionedOkraAsync(final List<OkraAsyncImpl<T>> partitions, final int homePartition) {
+        this(partitions, homePartition, CallbackDispatcher.INLINE);
+    }
+
+    /**
+     * @param dispatcher shared by the partitions, closed once by {@link #close()}
+     */
+    public PartitionedOkraAsync(final List<OkraAsyncImpl<T>> partitions,
+                                final int homePartition,
+                                final CallbackDispatcher dispatcher) {
+        super(partitions.get(0).getDatabase(), partitions.get(0).getCollection());
+
+        if (homePartition < 0 || homePartition >= partitions.size()) {
+            throw new IllegalArgumentException("homePartition must be between 0 and " + (partitions.size() - 1));
+        }
+
+        this.partitions = new ArrayList<>(partitions);
+        this.homePartition = homePartition;
+        this.dispatcher = dispatcher;
+        this.gauges = partitions.stream().allMatch(partition -> partition.getGauges() != null)
+                ? new PartitionedGauges(partitions.stream().map(OkraAsyncImpl::getGauges).collect(Collectors.toList()))
+                : null;
+    }
+
+    @Override
+    public void peek(final OkraItemCallback<T> callback) {
+        partitions.get(homePartition).peek(new OkraItemCallback<T>() {
+
+            @Override
+            public void onSuccess(final T item) {
+                if (item != null || partitions.size() == 1) {
+                    callback.onSuccess(item);
+                } else {
+                    steal(Math.floorMod(stealOffset.getAndIncrement(), partitions.size() - 1), 0, callback);
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                callback.onFailure(throwable);
+            }
+        });
+    }
+
+    @Override
+    public void poll(final OkraItemCallback<T> callback) {
+        peek(new OkraItemCallback<T>() {
+
+            @Override
+            public void onSuccess(final T item) {
+                if (item == null) {
+                    callback.onSuccess(null);
+                    return;
+                }
+
+                delete(item, new OkraItemDeleteCallback() {
+
+                    @Override
+                    public void onSuccess(final long deletedCount) {
+                        callback.onSuccess(deletedCount > 0 ? item : null);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable throwable) {
+                        callback.onFailure(throwable);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                callback.onFailure(throwable);
+            }
+        });
+    }
+
+    @Override
+    public void delete(final T item, final OkraItemDeleteCallback callback) {
+        partitionOf(item).delete(item, callback);
+    }
+
+    @Override
+    public void reschedule(final T item, final OkraItemOperationCallback<T> callback) {
+        partitionOf(item).reschedule(item, callback);
+    }
+
+    @Override
+    public void heartbeat(final T item, final OkraItemOperationCallback<T> callback) {
+        partitionOf(item).heartbeat(item, callback);
+    }
+
+    /**
+     * @see OkraAsyncImpl#fail(OkraItem, Throwable, OkraItemFailCallback)
+     */
+    public void fail(final T item, final Throwable error, final OkraItemFailCallback callback) {
+        partitionOf(item).fail(item, error, callback);
+    }
+
+    @Override
+    public void schedule(final T item, final OkraItemScheduleCallback callback) {
+        if (item.getId() == null) {
+            item.setId(new ObjectId().toHexString());
+        }
+        partitionOf(item).schedule(item, callback);
+    }
+
+    @Override
+    public void countByStatus(final OkraStatus status, final OkraCountCallback callback) {
+        sum(callback, (partition, partitionCallback) -> partition.countByStatus(status, partitionCallback));
+    }
+
+    @Override
+    public void countDelayed(final OkraCountCallback callback) {
+        sum(callback, OkraAsyncImpl::countDelayed);
+    }
+
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    public int getHomePartition() {
+        return homePartition;
+    }
+
+    /**
+     * Index of the partition holding the item with the given id
+     */
+    public int partitionIndex(final String id) {
+        return Math.floorMod(id.hashCode(), partitions.size());
+    }
+
+    /**
+     * Gauges summed over every partition, or {@code null} when metrics are disabled
+     */
+    public OkraGauges getGauges() {
+        return gauges;
+    }
+
+    public void close() {
+        partitions.forEach(OkraAsyncImpl::close);
+        dispatcher.close();
+    }
+
+    private OkraAsyncImpl<T> partitionOf(final T item) {
+        if (item.getId() == null) {
+            throw new IllegalArgumentException("The item does not contain an id");
+        }
+        return partitions.get(partitionIndex(item.getId()));
+    }
+
+    /**
+     * Tries every partition but the home one, once, starting {@code offset} partitions after it
+     */
+    private void steal(final int offset, final int attempt, final OkraItemCallback<T> callback) {
+        if (attempt == partitions.size() - 1) {
+            callback.onSuccess(null);
+            return;
+        }
+
+        final int index = (homePartition + 1 + (offset + attempt) % (partitions.size() - 1)) % partitions.size();
+
+        partitions.get(index).peek(new OkraItemCallback<T>() {
+
+            @Override
+            public void onSuccess(final T item) {
+                if (item == null) {
+                    steal(offset, attempt + 1, callback);
+                } else {
+                    callback.onSuccess(item);
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                callback.onFailure(throwable);
+            }
+        });
+    }
+
+    private void sum(final OkraCountCallback callback, final PartitionCount<T> count) {
+        final AtomicLong total = new AtomicLong();
+        final AtomicInteger remaining = new AtomicInteger(partitions.size());
+        final AtomicInteger failed = new AtomicInteger();
+
+        partitions.forEach(partition -> count.count(partition, new OkraCountCallback() {
+
+            @Override
+            public void onSuccess(final long partitionCount) {
+                total.addAndGet(partitionCount);
+                if (remaining.decrementAndGet() == 0 && failed.get() == 0) {
+                    callback.onSuccess(total.get());
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                if (failed.getAndIncrement() == 0) {
+                    callback.onFailure(throwable);
+                }
+            }
+        }));
+    }
+
+    @FunctionalInterface
+    private interface PartitionCount<T extends OkraItem> {
+        void count(OkraAsyncImpl<T> partition, OkraCountCallback callback);
+    }
+}
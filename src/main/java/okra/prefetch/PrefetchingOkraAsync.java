@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.prefetch;
+
+import okra.OkraAsyncImpl;
+import okra.base.async.AbstractOkraAsync;
+import okra.base.async.OkraAsync;
+import okra.base.async.callback.*;
+import okra.base.model.OkraItem;
+import okra.base.model.OkraStatus;
+import okra.callback.OkraItemsCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * {@link OkraAsync} that claims items in bulk ahead of time and hands them out without any I/O.
+ * <p>
+ * Up to {@code capacity} items are claimed with {@link OkraAsyncImpl#peekBatch} and kept in a local
+ * lock-free queue, refilled asynchronously whenever it drops below {@code lowWaterMark}. Buffered
+ * items are heartbeated in the background, with a single bulk write per round, so their leases do not
+ * expire before being handed out.
+ * {@link #close()} gives every item that was never handed out back to the queue.
+ */
+public class PrefetchingOkraAsync<T extends OkraItem> extends AbstractOkraAsync<T> implements OkraAsync<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PrefetchingOkraAsync.class);
+
+    private static final long DEFAULT_IDLE_BACKOFF_MILLIS = 100;
+
+    private static final int BUFFERED = 0;
+    private static final int RENEWING = 1;
+    private static final int TAKEN = 2;
+    private static final int DROPPED = 3;
+
+    private final OkraAsyncImpl<T> delegate;
+    private final int capacity;
+    private final int lowWaterMark;
+    private final long idleBackoffNanos;
+
+    private final ConcurrentLinkedQueue<BufferedItem<T>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger buffered = new AtomicInteger();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final ScheduledExecutorService heartbeatExecutor;
+
+    private volatile long idleUntil;
+    private volatile boolean closed;
+
+    public PrefetchingOkraAsync(final OkraAsyncImpl<T> delegate, final int capacity, final int lowWaterMark) {
+        this(delegate, capacity, lowWaterMark, DEFAULT_IDLE_BACKOFF_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param delegate     okra used to claim, renew and release items
+     * @param capacity     maximum number of buffered items
+     * @param lowWaterMark a refill is triggered when fewer items than this are buffered
+     * @param idleBackoff  time to wait before claiming again after a refill came back empty
+     * @param unit         unit of {@code idleBackoff}
+     */
+    public PrefetchingOkraAsync(final OkraAsyncImpl<T> delegate,
+                                final int capacity,
+                                final int lowWaterMark,
+                                final long idleBackoff,
+                                final TimeUnit unit) {
+        super(delegate.getDatabase(), delegate.getCollection());
+
+        if (capacity <= 0 || lowWaterMark <= 0 || lowWaterMark > capacity) {
+            throw new IllegalArgumentException("lowWaterMark must be between 1 and capacity");
+        }
+
+        this.delegate = delegate;
+        this.capacity = capacity;
+        this.lowWaterMark = lowWaterMark;
+        this.idleBackoffNanos = unit.toNanos(idleBackoff);
+
+        this.heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "okra-prefetch-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        final long heartbeatPeriod = Math.max(1, delegate.getHeartbeatExpirationMillis() / 3);
+        heartbeatExecutor.scheduleAtFixedRate(this::renewBuffered, heartbeatPeriod, heartbeatPeriod, TimeUnit.MILLISECONDS);
+
+        refillIfNeeded();
+    }
+
+    @Override
+    public void peek(final OkraItemCallback<T> callback) {
+        final T item = take();
+        refillIfNeeded();
+
+        if (item != null) {
+            callback.onSuccess(item);
+        } else {
+            delegate.peek(callback);
+        }
+    }
+
+    @Override
+    public void poll(final OkraItemCallback<T> callback) {
+        peek(new OkraItemCallback<T>() {
+
+            @Override
+            public void onSuccess(final T item) {
+                if (item == null) {
+                    callback.onSuccess(null);
+                    return;
+                }
+
+                delegate.delete(item, new OkraItemDeleteCallback() {
+
+                    @Override
+                    public void onSuccess(final long deletedCount) {
+                        // Lost the lease before deleting it, somebody else owns the item now
+                        callback.onSuccess(deletedCount > 0 ? item : null);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable throwable) {
+                        callback.onFailure(throwable);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                callback.onFailure(throwable);
+            }
+        });
+    }
+
+    @Override
+    public void delete(final T item, final OkraItemDeleteCallback callback) {
+        delegate.delete(item, callback);
+    }
+
+    @Override
+    public void reschedule(final T item, final OkraItemOperationCallback<T> callback) {
+        delegate.reschedule(item, callback);
+    }
+
+    @Override
+    public void heartbeat(final T item, final OkraItemOperationCallback<T> callback) {
+        delegate.heartbeat(item, callback);
+    }
+
+    @Override
+    public void schedule(final T item, final OkraItemScheduleCallback callback) {
+        delegate.schedule(item, callback);
+    }
+
+    @Override
+    public void countByStatus(final OkraStatus status, final OkraCountCallback callback) {
+        delegate.countByStatus(status, callback);
+    }
+
+    @Override
+    public void countDelayed(final OkraCountCallback callback) {
+        delegate.countDelayed(callback);
+    }
+
+    /**
+     * Number of items currently buffered and not handed out yet
+     */
+    public int getBufferedCount() {
+        return buffered.get();
+    }
+
+    /**
+     * Stops prefetching and gives buffered items back to the queue.
+     * The delegate is left open.
+     *
+     * @param callback receives the number of released items
+     */
+    public void close(final OkraCountCallback callback) {
+        closed = true;
+        heartbeatExecutor.shutdownNow();
+        delegate.releaseAll(drain(), callback);
+    }
+
+    public void close() {
+        close(new OkraCountCallback() {
+
+            @Override
+            public void onSuccess(final long count) {
+                LOGGER.debug("Released {} prefetched items", count);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                LOGGER.warn("Unable to release prefetched items, they will be available once their lease expires",
+                        throwable);
+            }
+        });
+    }
+
+    private T take() {
+        int renewing = 0;
+        BufferedItem<T> bufferedItem;
+
+        while ((bufferedItem = queue.poll()) != null) {
+            if (bufferedItem.state.compareAndSet(BUFFERED, TAKEN)) {
+                buffered.decrementAndGet();
+                return bufferedItem.item;
+            }
+
+            if (bufferedItem.state.get() == RENEWING) {
+                // Handing it out now would leave the caller with a stale heartbeat
+                queue.offer(bufferedItem);
+
+                if (++renewing >= buffered.get()) {
+                    return null;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private List<T> drain() {
+        final List<T> items = new ArrayList<>();
+        BufferedItem<T> bufferedItem;
+
+        while ((bufferedItem = queue.poll()) != null) {
+            if (bufferedItem.state.compareAndSet(BUFFERED, TAKEN)) {
+                buffered.decrementAndGet();
+                items.add(bufferedItem.item);
+            }
+        }
+
+        return items;
+    }
+
+    private void refillIfNeeded() {
+        if (closed
+                || buffered.get() >= lowWaterMark
+                || System.nanoTime() - idleUntil < 0
+                || !refilling.compareAndSet(false, true)) {
+            return;
+        }
+
+        delegate.peekBatch(capacity - buffered.get(), new OkraItemsCallback<T>() {
+
+            @Override
+            public void onSuccess(final List<T> items) {
+                items.forEach(item -> queue.offer(new BufferedItem<>(item)));
+                buffered.addAndGet(items.size());
+
+                if (items.isEmpty()) {
+                    idleUntil = System.nanoTime() + idleBackoffNanos;
+                }
+
+                refilling.set(false);
+
+                if (closed) {
+                    releaseQuietly(drain());
+                } else if (!items.isEmpty()) {
+                    refillIfNeeded();
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                LOGGER.warn("Unable to prefetch items", throwable);
+                idleUntil = System.nanoTime() + idleBackoffNanos;
+                refilling.set(false);
+            }
+        });
+    }
+
+    private void renewBuffered() {
+        final List<BufferedItem<T>> renewing = new ArrayList<>();
+
+        queue.forEach(bufferedItem -> {
+            if (bufferedItem.state.compareAndSet(BUFFERED, RENEWING)) {
+                renewing.add(bufferedItem);
+            }
+        });
+
+        if (renewing.isEmpty()) {
+            return;
+        }
+
+        final List<T> items = renewing.stream()
+                .map(bufferedItem -> bufferedItem.item)
+                .collect(Collectors.toList());
+
+        delegate.heartbeatAll(items, new OkraItemsCallback<T>() {
+
+            @Override
+            public void onSuccess(final List<T> lost) {
+                final Set<T> lostItems = Collections.newSetFromMap(new IdentityHashMap<>());
+                lostItems.addAll(lost);
+
+                final List<BufferedItem<T>> renewed = new ArrayList<>(renewing.size());
+
+                renewing.forEach(bufferedItem -> {
+                    if (lostItems.contains(bufferedItem.item)) {
+                        // Lease lost, somebody else owns this item now
+                        bufferedItem.state.set(DROPPED);
+                        buffered.decrementAndGet();
+                    } else {
+                        renewed.add(bufferedItem);
+                    }
+                });
+
+                restore(renewed);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                LOGGER.warn("Unable to renew {} prefetched items", renewing.size(), throwable);
+                restore(renewing);
+            }
+        });
+    }
+
+    /**
+     * Makes items whose renewal completed available again. Once closed, they are released instead:
+     * {@code close()} may have drained the queue while they were being renewed, leaving them in no queue.
+     */
+    private void restore(final List<BufferedItem<T>> renewed) {
+        final List<T> released = new ArrayList<>();
+
+        renewed.forEach(bufferedItem -> {
+            bufferedItem.state.set(BUFFERED);
+
+            // Read after the state is back, so either drain() or this takes the item
+            if (closed && bufferedItem.state.compareAndSet(BUFFERED, TAKEN)) {
+                buffered.decrementAndGet();
+                released.add(bufferedItem.item);
+            }
+        });
+
+        releaseQuietly(released);
+    }
+
+    private void releaseQuietly(final List<T> items) {
+        if (items.isEmpty()) {
+            return;
+        }
+
+        delegate.releaseAll(items, new OkraCountCallback() {
+
+            @Override
+            public void onSuccess(final long count) {
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                LOGGER.warn("Unable to release prefetched items", throwable);
+            }
+        });
+    }
+
+    private static final class BufferedItem<T> {
+
+        private final T item;
+        private final AtomicInteger state = new AtomicInteger(BUFFERED);
+
+        private BufferedItem(final T item) {
+            this.item = item;
+        }
+    }
+}
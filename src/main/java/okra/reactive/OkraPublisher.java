@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.reactive;
+
+import okra.OkraAsyncImpl;
+import okra.base.async.OkraAsync;
+import okra.base.async.callback.OkraCountCallback;
+import okra.base.async.callback.OkraItemCallback;
+import okra.base.async.callback.OkraItemOperationCallback;
+import okra.base.model.OkraItem;
+import okra.callback.OkraItemsCallback;
+import okra.dispatch.OkraSaturatedException;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stream of claimed items.
+ * <p>
+ * Items are claimed only while the subscriber has outstanding demand, so the claim rate follows the
+ * consumer's throughput and nothing is buffered. With an {@link OkraAsyncImpl}, a claim takes up to
+ * {@code min(demand, maxBatch)} items with a single {@code peekBatch}, otherwise items are claimed with
+ * {@code peek} one at a time. When the queue is empty, or the okra is saturated, claiming resumes after
+ * {@code idleDelay}. Each subscriber claims its own items; processed items still need to be deleted or
+ * rescheduled by the subscriber. Items whose claim completes after {@code cancel} are given back to the queue.
+ */
+public final class OkraPublisher<T extends OkraItem> implements Publisher<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OkraPublisher.class);
+
+    private static final ScheduledExecutorService IDLE_TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "okra-publisher-idle-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static final int DEFAULT_MAX_BATCH = 32;
+
+    private final OkraAsync<T> okra;
+    private final long idleDelayNanos;
+    private final int maxBatch;
+
+    public OkraPublisher(final OkraAsync<T> okra, final long idleDelay, final TimeUnit unit) {
+        this(okra, idleDelay, unit, DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * @param maxBatch maximum number of items claimed at once, when backed by an {@link OkraAsyncImpl}
+     */
+    public OkraPublisher(final OkraAsync<T> okra, final long idleDelay, final TimeUnit unit, final int maxBatch) {
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("maxBatch must be greater than zero");
+        }
+        this.okra = okra;
+        this.idleDelayNanos = unit.toNanos(idleDelay);
+        this.maxBatch = maxBatch;
+    }
+
+    @Override
+    public void subscribe(final Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+
+        final ClaimSubscription subscription = new ClaimSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private final class ClaimSubscription implements Subscription {
+
+        private final Subscriber<? super T> subscriber;
+
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicBoolean claiming = new AtomicBoolean();
+
+        private volatile boolean done;
+
+        private ClaimSubscription(final Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("Rule 3.9: request must be positive, got " + n));
+                return;
+            }
+
+            demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            done = true;
+        }
+
+        /**
+         * Starts a claim whenever there is demand and none is in flight. Re-entrant calls,
+         * e.g. {@code request} from within {@code onNext}, are folded into the running loop.
+         */
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+
+            int missed = 1;
+
+            do {
+                if (!done && demand.get() > 0 && claiming.compareAndSet(false, true)) {
+                    claim();
+                }
+
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void claim() {
+            if (okra instanceof OkraAsyncImpl) {
+                final int max = (int) Math.min(demand.get(), maxBatch);
+
+                ((OkraAsyncImpl<T>) okra).peekBatch(max, new OkraItemsCallback<T>() {
+
+                    @Override
+                    public void onSuccess(final List<T> items) {
+                        deliver(items);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable throwable) {
+                        claimFailed(throwable);
+                    }
+                });
+                return;
+            }
+
+            okra.peek(new OkraItemCallback<T>() {
+
+                @Override
+                public void onSuccess(final T item) {
+                    deliver(item == null ? Collections.emptyList() : Collections.singletonList(item));
+                }
+
+                @Override
+                public void onFailure(final Throwable throwable) {
+                    claimFailed(throwable);
+                }
+            });
+        }
+
+        /**
+         * Hands the claimed items to the subscriber, at most as many as it requested since the claim started
+         */
+        private void deliver(final List<T> items) {
+            if (items.isEmpty()) {
+                retryLater();
+                return;
+            }
+
+            for (int i = 0; i < items.size(); i++) {
+                if (done) {
+                    release(items.subList(i, items.size()));
+                    return;
+                }
+
+                demand.getAndUpdate(current -> current == Long.MAX_VALUE ? current : current - 1);
+                subscriber.onNext(items.get(i));
+            }
+
+            claiming.set(false);
+            drain();
+        }
+
+        /**
+         * Saturation is backpressure from the okra rather than an error, the claim is retried like on an
+         * empty queue
+         */
+        private void claimFailed(final Throwable throwable) {
+            if (throwable instanceof OkraSaturatedException) {
+                retryLater();
+            } else {
+                fail(throwable);
+            }
+        }
+
+        private void retryLater() {
+            claiming.set(false);
+            if (!done) {
+                IDLE_TIMER.schedule(ClaimSubscription.this::drain, idleDelayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * Gives back items nobody will receive, keeping their {@code runDate}, rather than leaving them leased
+         * until their lease expires
+         */
+        private void release(final List<T> items) {
+            if (okra instanceof OkraAsyncImpl) {
+                ((OkraAsyncImpl<T>) okra).releaseAll(items, new OkraCountCallback() {
+
+                    @Override
+                    public void onSuccess(final long count) {
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable throwable) {
+                        LOGGER.warn("Unable to release {} items claimed after cancel", items.size(), throwable);
+                    }
+                });
+                return;
+            }
+
+            items.forEach(item -> okra.reschedule(item, new OkraItemOperationCallback<T>() {
+
+                @Override
+                public void onSuccess(final T rescheduled) {
+                }
+
+                @Override
+                public void onFailure(final Throwable throwable) {
+                    LOGGER.warn("Unable to release item {} claimed after cancel", item.getId(), throwable);
+                }
+            }));
+        }
+
+        private void fail(final Throwable throwable) {
+            if (!done) {
+                done = true;
+                subscriber.onError(throwable);
+            }
+        }
+    }
+}
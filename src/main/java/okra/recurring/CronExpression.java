@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.recurring;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+
+/**
+ * Standard five-field cron expression: {@code minute hour day-of-month month day-of-week}.
+ * <p>
+ * Each field accepts {@code *}, values, ranges ({@code 1-5}), steps ({@code *}{@code /15}, {@code 10-40/10})
+ * and comma-separated lists of those. Day-of-week goes from {@code 0} (Sunday) to {@code 7} (Sunday again).
+ * As in cron, when both day-of-month and day-of-week are restricted, a day matching either one matches.
+ */
+public final class CronExpression {
+
+    private static final int MAX_YEARS_AHEAD = 5;
+
+    private final String expression;
+    private final BitSet minutes;
+    private final BitSet hours;
+    private final BitSet daysOfMonth;
+    private final BitSet months;
+    private final BitSet daysOfWeek;
+    private final boolean daysOfMonthRestricted;
+    private final boolean daysOfWeekRestricted;
+
+    private CronExpression(final String expression) {
+        final String[] fields = expression.trim().split("\\s+");
+        if (fields.length != 5) {
+            throw new IllegalArgumentException("Cron expression must have 5 fields: " + expression);
+        }
+
+        this.expression = expression;
+        this.minutes = parseField(fields[0], 0, 59, expression);
+        this.hours = parseField(fields[1], 0, 23, expression);
+        this.daysOfMonth = parseField(fields[2], 1, 31, expression);
+        this.months = parseField(fields[3], 1, 12, expression);
+        this.daysOfWeek = parseField(fields[4], 0, 7, expression);
+
+        // 7 and 0 are both Sunday
+        if (daysOfWeek.get(7)) {
+            daysOfWeek.set(0);
+        }
+
+        this.daysOfMonthRestricted = !fields[2].equals("*");
+        this.daysOfWeekRestricted = !fields[4].equals("*");
+    }
+
+    public static CronExpression parse(final String expression) {
+        return new CronExpression(expression);
+    }
+
+    /**
+     * @return the first matching minute strictly after {@code after}
+     */
+    public LocalDateTime next(final LocalDateTime after) {
+        LocalDateTime candidate = after.truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+        final LocalDateTime limit = candidate.plusYears(MAX_YEARS_AHEAD);
+
+        while (candidate.isBefore(limit)) {
+            if (!months.get(candidate.getMonthValue())) {
+                candidate = candidate.withDayOfMonth(1).truncatedTo(ChronoUnit.DAYS).plusMonths(1);
+            } else if (!dayMatches(candidate)) {
+                candidate = candidate.truncatedTo(ChronoUnit.DAYS).plusDays(1);
+            } else if (!hours.get(candidate.getHour())) {
+                candidate = candidate.truncatedTo(ChronoUnit.HOURS).plusHours(1);
+            } else if (!minutes.get(candidate.getMinute())) {
+                candidate = candidate.plusMinutes(1);
+            } else {
+                return candidate;
+            }
+        }
+
+        throw new IllegalStateException("Cron expression never matches: " + expression);
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    private boolean dayMatches(final LocalDateTime date) {
+        final boolean dayOfMonth = daysOfMonth.get(date.getDayOfMonth());
+        final boolean dayOfWeek = daysOfWeek.get(date.getDayOfWeek().getValue() % 7);
+
+        if (daysOfMonthRestricted && daysOfWeekRestricted) {
+            return dayOfMonth || dayOfWeek;
+        }
+        return dayOfMonth && dayOfWeek;
+    }
+
+    private static BitSet parseField(final String field, final int min, final int max, final String expression) {
+        final BitSet values = new BitSet(max + 1);
+
+        for (final String part : field.split(",")) {
+            final String[] rangeAndStep = part.split("/", -1);
+            if (rangeAndStep.length > 2) {
+                throw invalid(expression);
+            }
+
+            final int step = rangeAndStep.length == 2 ? parseValue(rangeAndStep[1], 1, max, expression) : 1;
+            final String range = rangeAndStep[0];
+
+            final int start;
+            final int end;
+
+            if (range.equals("*")) {
+                start = min;
+                end = max;
+            } else if (range.contains("-")) {
+                final String[] bounds = range.split("-", -1);
+                if (bounds.length != 2) {
+                    throw invalid(expression);
+                }
+                start = parseValue(bounds[0], min, max, expression);
+                end = parseValue(bounds[1], min, max, expression);
+            } else {
+                start = parseValue(range, min, max, expression);
+                end = rangeAndStep.length == 2 ? max : start;
+            }
+
+            if (start > end) {
+                throw invalid(expression);
+            }
+
+            for (int value = start; value <= end; value += step) {
+                values.set(value);
+            }
+        }
+
+        return values;
+    }
+
+    private static int parseValue(final String value, final int min, final int max, final String expression) {
+        try {
+            final int parsed = Integer.parseInt(value);
+            if (parsed < min || parsed > max) {
+                throw invalid(expression);
+            }
+            return parsed;
+        } catch (final NumberFormatException e) {
+            throw invalid(expression);
+        }
+    }
+
+    private static IllegalArgumentException invalid(final String expression) {
+        return new IllegalArgumentException("Invalid cron expression: " + expression);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.recurring;
+
+import okra.base.model.OkraItem;
+import okra.model.RecurringOkraItem;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class RecurrenceUtil {
+
+    private static final Map<String, CronExpression> CRON_CACHE = new ConcurrentHashMap<>();
+
+    private RecurrenceUtil() {
+    }
+
+    public static boolean isRecurring(final OkraItem item) {
+        if (!(item instanceof RecurringOkraItem)) {
+            return false;
+        }
+        final RecurringOkraItem recurring = (RecurringOkraItem) item;
+        return recurring.getCron() != null || recurring.getIntervalMillis() != null;
+    }
+
+    /**
+     * Next run of a recurring item completed at {@code now}.
+     * <p>
+     * Intervals are fixed-rate: the next run is a whole number of intervals after the previous
+     * {@code runDate}, skipping runs that were missed. Cron items run at the next match after {@code now}.
+     */
+    public static LocalDateTime nextRunDate(final RecurringOkraItem item, final LocalDateTime now) {
+        if (item.getCron() != null) {
+            return CRON_CACHE.computeIfAbsent(item.getCron(), CronExpression::parse).next(now);
+        }
+
+        final long intervalMillis = item.getIntervalMillis();
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("intervalMillis must be greater than zero");
+        }
+
+        final LocalDateTime previous = item.getRunDate() == null ? now : item.getRunDate();
+        final long elapsedMillis = Math.max(0, Duration.between(previous, now).toMillis());
+        final long intervals = elapsedMillis / intervalMillis + 1;
+
+        return previous.plus(Duration.ofMillis(intervals * intervalMillis));
+    }
+}
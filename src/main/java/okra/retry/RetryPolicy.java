@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.retry;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How failed items are retried: the n-th failed attempt is retried {@code min(maxDelay, initialDelay * multiplier^(n-1))}
+ * later, shortened by up to {@code jitter} of that delay so that items failing together are not retried together.
+ * <p>
+ * Once an item was claimed {@code maxAttempts} times, a failure moves it to the dead-letter collection instead,
+ * and so does a claim beyond that, which catches items whose processing never reports back, such as
+ * those crashing the worker. Released items do not count the claim, and rescheduled items start over.
+ * {@link #UNLIMITED} never dead-letters.
+ */
+public final class RetryPolicy {
+
+    public static final int UNLIMITED = 0;
+
+    /**
+     * Retries forever, after 1 second then doubling up to 1 hour
+     */
+    public static final RetryPolicy DEFAULT = builder().build();
+
+    private final int maxAttempts;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final double multiplier;
+    private final double jitter;
+
+    private RetryPolicy(final Builder builder) {
+        this.maxAttempts = builder.maxAttempts;
+        this.initialDelayMillis = builder.initialDelayMillis;
+        this.maxDelayMillis = builder.maxDelayMillis;
+        this.multiplier = builder.multiplier;
+        this.jitter = builder.jitter;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public boolean isLimited() {
+        return maxAttempts != UNLIMITED;
+    }
+
+    /**
+     * @param attempts number of times the item was claimed, the failed attempt included
+     */
+    public boolean isExhausted(final int attempts) {
+        return isLimited() && attempts >= maxAttempts;
+    }
+
+    /**
+     * @param attempts number of times the item was claimed, the failed attempt included
+     * @return the delay before the next attempt
+     */
+    public long delayMillis(final int attempts) {
+        final double exponential = initialDelayMillis * Math.pow(multiplier, Math.max(0, attempts - 1));
+        final long delay = exponential >= maxDelayMillis ? maxDelayMillis : (long) exponential;
+
+        if (jitter == 0 || delay == 0) {
+            return delay;
+        }
+        return delay - (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    public LocalDateTime nextRunDate(final int attempts, final LocalDateTime now) {
+        return now.plusNanos(TimeUnit.MILLISECONDS.toNanos(delayMillis(attempts)));
+    }
+
+    public static final class Builder {
+
+        private int maxAttempts = UNLIMITED;
+        private long initialDelayMillis = TimeUnit.SECONDS.toMillis(1);
+        private long maxDelayMillis = TimeUnit.HOURS.toMillis(1);
+        private double multiplier = 2;
+        private double jitter;
+
+        private Builder() {
+        }
+
+        /**
+         * Dead-letters items after {@code maxAttempts} claims, or never with {@link #UNLIMITED}
+         */
+        public Builder withMaxAttempts(final int maxAttempts) {
+            if (maxAttempts < 0) {
+                throw new IllegalArgumentException("maxAttempts must not be negative");
+            }
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * Delay before the first retry and upper bound of the following ones
+         */
+        public Builder withBackoff(final long initialDelay, final long maxDelay, final TimeUnit unit) {
+            if (initialDelay < 0 || maxDelay < initialDelay) {
+                throw new IllegalArgumentException("initialDelay must not be negative nor greater than maxDelay");
+            }
+            this.initialDelayMillis = unit.toMillis(initialDelay);
+            this.maxDelayMillis = unit.toMillis(maxDelay);
+            return this;
+        }
+
+        public Builder withMultiplier(final double multiplier) {
+            if (multiplier < 1) {
+                throw new IllegalArgumentException("multiplier must be at least 1");
+            }
+            this.multiplier = multiplier;
+            return this;
+        }
+
+        /**
+         * Fraction of each delay, between 0 and 1, that may be randomly cut off
+         */
+        public Builder withJitter(final double jitter) {
+            if (jitter < 0 || jitter > 1) {
+                throw new IllegalArgumentException("jitter must be between 0 and 1");
+            }
+            this.jitter = jitter;
+            return this;
+        }
+
+        public RetryPolicy build() {
+            return new RetryPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.schedule;
+
+import okra.base.async.callback.OkraItemScheduleCallback;
+import okra.base.model.OkraItem;
+import okra.callback.OkraItemsScheduleCallback;
+import okra.model.ScheduleFailure;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Groups concurrent {@code schedule} calls into {@code insertMany} bulk writes.
+ * <p>
+ * A batch is flushed as soon as it reaches {@code maxBatchSize} items or {@code maxDelayNanos}
+ * after its first item was added, whatever comes first. Each caller is notified on its own callback.
+ * Batches are handed to {@code writer}, which inserts them like {@code OkraAsyncImpl.scheduleAll} but
+ * leaves metering to the individual {@code schedule} calls.
+ */
+public final class ScheduleCoalescer<T extends OkraItem> {
+
+    private final BiConsumer<List<T>, OkraItemsScheduleCallback<T>> writer;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final ScheduledExecutorService timer;
+
+    private List<T> items;
+    private List<OkraItemScheduleCallback> callbacks;
+    private boolean closed;
+
+    public ScheduleCoalescer(final BiConsumer<List<T>, OkraItemsScheduleCallback<T>> writer,
+                             final int maxBatchSize,
+                             final long maxDelayNanos) {
+        this.writer = writer;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = maxDelayNanos;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "okra-schedule-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reset();
+    }
+
+    public void add(final T item, final OkraItemScheduleCallback callback) {
+        final List<T> fullItems;
+        final List<OkraItemScheduleCallback> fullCallbacks;
+
+        final boolean rejected;
+
+        synchronized (this) {
+            rejected = closed;
+            if (rejected) {
+                fullItems = null;
+                fullCallbacks = null;
+            } else {
+                items.add(item);
+                callbacks.add(callback);
+
+                if (items.size() == 1) {
+                    final List<T> batch = items;
+                    timer.schedule(() -> flushIfCurrent(batch), maxDelayNanos, TimeUnit.NANOSECONDS);
+                }
+
+                if (items.size() < maxBatchSize) {
+                    return;
+                }
+
+                fullItems = items;
+                fullCallbacks = callbacks;
+                reset();
+            }
+        }
+
+        // Callbacks are never invoked while holding the lock
+        if (rejected) {
+            callback.onFailure(new IllegalStateException("Okra is closed"));
+        } else {
+            write(fullItems, fullCallbacks);
+        }
+    }
+
+    public void close() {
+        final List<T> pendingItems;
+        final List<OkraItemScheduleCallback> pendingCallbacks;
+
+        synchronized (this) {
+            closed = true;
+            pendingItems = items;
+            pendingCallbacks = callbacks;
+            reset();
+        }
+
+        timer.shutdownNow();
+
+        if (!pendingItems.isEmpty()) {
+            write(pendingItems, pendingCallbacks);
+        }
+    }
+
+    private void flushIfCurrent(final List<T> batch) {
+        final List<OkraItemScheduleCallback> batchCallbacks;
+
+        synchronized (this) {
+            // The batch was already flushed because it reached maxBatchSize
+            if (items != batch) {
+                return;
+            }
+            batchCallbacks = callbacks;
+            reset();
+        }
+
+        write(batch, batchCallbacks);
+    }
+
+    private void reset() {
+        items = new ArrayList<>(maxBatchSize);
+        callbacks = new ArrayList<>(maxBatchSize);
+    }
+
+    private void write(final List<T> batch, final List<OkraItemScheduleCallback> batchCallbacks) {
+        writer.accept(batch, new OkraItemsScheduleCallback<T>() {
+
+            @Override
+            public void onSuccess(final int scheduledCount, final List<ScheduleFailure<T>> failures) {
+                final Throwable[] errors = new Throwable[batchCallbacks.size()];
+                failures.forEach(failure -> errors[failure.getIndex()] = failure.getError());
+
+                for (int i = 0; i < batchCallbacks.size(); i++) {
+                    if (errors[i] == null) {
+                        batchCallbacks.get(i).onSuccess();
+                    } else {
+                        batchCallbacks.get(i).onFailure(errors[i]);
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                batchCallbacks.forEach(callback -> callback.onFailure(throwable));
+            }
+        });
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.subscription;
+
+import com.mongodb.CursorType;
+import com.mongodb.async.AsyncBatchCursor;
+import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import okra.OkraAsyncImpl;
+import okra.base.async.callback.OkraItemCallback;
+import okra.base.model.OkraItem;
+import okra.base.model.OkraStatus;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Push-style consumer created by {@link OkraAsyncImpl#subscribe(OkraItemCallback)}.
+ * <p>
+ * Instead of polling, the subscription tails a capped signal collection written by producers on
+ * {@code schedule} and {@code reschedule}, and only claims items when some might be due.
+ * Items scheduled in the future are picked up by a single timer armed at the earliest pending
+ * {@code runDate}. The timer never sleeps longer than the heartbeat expiration, so expired leases
+ * and producers that do not write signals are still served.
+ * <p>
+ * Signals are followed by their {@link #SIGNAL_TIMESTAMP}, assigned by the server, rather than by
+ * their {@code _id}, whose {@link ObjectId} comes from the clock of the producer.
+ */
+public final class OkraSubscription<T extends OkraItem> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OkraSubscription.class);
+
+    public static final long SIGNAL_COLLECTION_SIZE_BYTES = 1024 * 1024;
+
+    /**
+     * Server-assigned {@link BsonTimestamp} of a signal, increasing in the order signals are written
+     */
+    public static final String SIGNAL_TIMESTAMP = "ts";
+
+    private static final long RETRY_TAIL_DELAY_MILLIS = 1000;
+
+    private final OkraAsyncImpl<T> okra;
+    private final MongoClient client;
+    private final OkraItemCallback<T> callback;
+    private final long heartbeatExpirationMillis;
+    private final ScheduledExecutorService timer;
+
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean drainRequested = new AtomicBoolean();
+
+    private volatile boolean cancelled;
+    private volatile AsyncBatchCursor<Document> cursor;
+    private volatile BsonTimestamp lastSignal;
+
+    private ScheduledFuture<?> wakeUp;
+    private long wakeUpAt = Long.MAX_VALUE;
+
+    public OkraSubscription(final OkraAsyncImpl<T> okra,
+                            final MongoClient client,
+                            final OkraItemCallback<T> callback,
+                            final long heartbeatExpirationMillis) {
+        this.okra = okra;
+        this.client = client;
+        this.callback = callback;
+        this.heartbeatExpirationMillis = heartbeatExpirationMillis;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "okra-subscription-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        ensureSignalCollection(this::tail);
+        drain();
+    }
+
+    public void cancel() {
+        cancelled = true;
+
+        final AsyncBatchCursor<Document> current = cursor;
+        if (current != null) {
+            current.close();
+        }
+
+        timer.shutdownNow();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Claims items until none is due anymore, then arms the timer for the next one.
+     * Signals received in the meantime are folded into the running drain.
+     */
+    void drain() {
+        drainRequested.set(true);
+
+        if (cancelled || !draining.compareAndSet(false, true)) {
+            return;
+        }
+
+        drainRequested.set(false);
+        claimNext();
+    }
+
+    private void claimNext() {
+        if (cancelled) {
+            draining.set(false);
+            return;
+        }
+
+        okra.peek(new OkraItemCallback<T>() {
+
+            @Override
+            public void onSuccess(final T item) {
+                if (item == null) {
+                    finishDrain();
+                    return;
+                }
+
+                try {
+                    callback.onSuccess(item);
+                } finally {
+                    claimNext();
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                callback.onFailure(throwable);
+                finishDrain();
+            }
+        });
+    }
+
+    private void finishDrain() {
+        draining.set(false);
+
+        if (drainRequested.get()) {
+            drain();
+        } else {
+            armForEarliestPending();
+        }
+    }
+
+    private void armForEarliestPending() {
+        final Date now = new Date();
+
+        getCollection()
+                .find(Filters.and(
+                        Filters.eq("status", OkraStatus.PENDING.name()),
+                        Filters.gte("runDate", now)))
+                .projection(Projections.include("runDate"))
+                .sort(Sorts.ascending("runDate"))
+                .first((document, throwable) -> {
+                    if (throwable != null) {
+                        LOGGER.warn("Unable to find the next pending item", throwable);
+                    }
+
+                    final long fallback = now.getTime() + heartbeatExpirationMillis;
+                    final long next = document == null ? fallback : document.getDate("runDate").getTime();
+
+                    armAt(Math.min(next, fallback));
+                });
+    }
+
+    private synchronized void armAt(final long timestamp) {
+        if (cancelled || (wakeUp != null && !wakeUp.isDone() && wakeUpAt <= timestamp)) {
+            return;
+        }
+
+        if (wakeUp != null) {
+            wakeUp.cancel(false);
+        }
+
+        wakeUpAt = timestamp;
+        wakeUp = timer.schedule(this::drain, Math.max(0, timestamp - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    private void onSignal(final Document signal) {
+        final Object timestamp = signal.get(SIGNAL_TIMESTAMP);
+        if (timestamp instanceof BsonTimestamp) {
+            lastSignal = (BsonTimestamp) timestamp;
+        }
+
+        final Date runDate = signal.getDate("runDate");
+
+        if (runDate == null || runDate.getTime() <= System.currentTimeMillis()) {
+            drain();
+        } else {
+            armAt(runDate.getTime());
+        }
+    }
+
+    private void ensureSignalCollection(final Runnable onReady) {
+        okra.ensureSignalCollection().whenComplete((ignored, throwable) -> {
+            if (throwable == null) {
+                // Only signals written from now on are followed, earlier ones are covered by the first drain
+                findLatestSignal(() -> {
+                    // A tailable cursor over an empty capped collection dies immediately
+                    okra.signal(new Date(), (insertResult, insertThrowable) -> onReady.run());
+                });
+            } else {
+                LOGGER.error("Unable to use signal collection {}, falling back to timed wake-ups",
+                        okra.getSignalCollection(), throwable);
+                armForEarliestPending();
+            }
+        });
+    }
+
+    private void findLatestSignal(final Runnable onFound) {
+        getSignalCollection()
+                .find(Filters.exists(SIGNAL_TIMESTAMP))
+                .sort(new Document("$natural", -1))
+                .projection(Projections.include(SIGNAL_TIMESTAMP))
+                .first((latest, throwable) -> {
+                    if (throwable != null) {
+                        LOGGER.warn("Unable to find the latest signal, following every signal", throwable);
+                    }
+
+                    lastSignal = latest == null
+                            ? new BsonTimestamp(0, 0)
+                            : (BsonTimestamp) latest.get(SIGNAL_TIMESTAMP);
+                    onFound.run();
+                });
+    }
+
+    private void tail() {
+        if (cancelled) {
+            return;
+        }
+
+        getSignalCollection()
+                .find(Filters.gt(SIGNAL_TIMESTAMP, lastSignal))
+                .cursorType(CursorType.TailableAwait)
+                .noCursorTimeout(true)
+                .batchCursor((batchCursor, throwable) -> {
+                    if (throwable != null) {
+                        retryTail(throwable);
+                        return;
+                    }
+
+                    cursor = batchCursor;
+
+                    if (cancelled) {
+                        batchCursor.close();
+                    } else {
+                        next(batchCursor);
+                    }
+                });
+    }
+
+    private void next(final AsyncBatchCursor<Document> batchCursor) {
+        batchCursor.next((List<Document> batch, Throwable throwable) -> {
+            if (throwable != null) {
+                retryTail(throwable);
+                return;
+            }
+
+            if (batch != null) {
+                batch.forEach(this::onSignal);
+            }
+
+            if (batchCursor.isClosed()) {
+                retryTail(null);
+            } else if (!cancelled) {
+                next(batchCursor);
+            }
+        });
+    }
+
+    private void retryTail(final Throwable throwable) {
+        if (cancelled) {
+            return;
+        }
+
+        if (throwable != null) {
+            LOGGER.warn("Signal cursor failed, tailing again in {} ms", RETRY_TAIL_DELAY_MILLIS, throwable);
+        }
+
+        timer.schedule(this::tail, RETRY_TAIL_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private MongoCollection<Document> getCollection() {
+        return client.getDatabase(okra.getDatabase()).getCollection(okra.getCollection());
+    }
+
+    private MongoCollection<Document> getSignalCollection() {
+        return client.getDatabase(okra.getDatabase()).getCollection(okra.getSignalCollection());
+    }
+}
@@ -23,14 +23,33 @@
 package okra.util;
 
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import okra.base.model.OkraItem;
 import okra.base.model.OkraStatus;
+import okra.model.FencedOkraItem;
 import org.bson.Document;
 import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 
 import java.time.LocalDateTime;
+import java.util.Date;
 
 public final class QueryUtil {
 
+    public static final String LEASE_TOKEN = "leaseToken";
+    public static final String ATTEMPTS = "attempts";
+    public static final String LAST_ERROR = "lastError";
+    public static final String UNIQUE_KEY = "uniqueKey";
+
+    /**
+     * Peek order: items that became due first are claimed first.
+     * Every peek query branch has a {@code status} equality followed by this sort, so the
+     * {@code {status: 1, runDate: 1}} index provides the order without an in-memory sort.
+     */
+    public static Bson generatePeekSort() {
+        return Sorts.ascending("runDate");
+    }
+
     public static Document generateRunDateQueryPart() {
         final Document query = new Document();
         query.put("status", OkraStatus.PENDING.name());
@@ -38,10 +57,10 @@ public final class QueryUtil {
         return query;
     }
 
-    public static Document generateStatusProcessingAndHeartbeatExpiredQuery(final long secondsToGetExpired) {
+    public static Document generateStatusProcessingAndHeartbeatExpiredQuery(final long heartbeatExpirationMillis) {
         final Document query = new Document();
         query.put("status", OkraStatus.PROCESSING.name());
-        query.put("heartbeat", DateUtil.nowMinusSeconds(secondsToGetExpired));
+        query.put("heartbeat", new Document("$lt", new Date(System.currentTimeMillis() - heartbeatExpirationMillis)));
         return query;
     }
 
@@ -52,11 +71,68 @@ public final class QueryUtil {
         return query;
     }
 
-    public static Bson generatePeekQuery(final long secondsToGetExpired) {
+    public static Bson generatePeekQuery(final long heartbeatExpirationMillis) {
         return Filters.or(
                 QueryUtil.generateRunDateQueryPart(),
-                QueryUtil.generateStatusProcessingAndHeartbeatExpiredQuery(secondsToGetExpired),
+                QueryUtil.generateStatusProcessingAndHeartbeatExpiredQuery(heartbeatExpirationMillis),
                 QueryUtil.generateStatusProcessingAndHeartbeatNullQuery()
         );
     }
-}
\ No newline at end of file
+
+    /**
+     * Claims an item: it becomes PROCESSING with a fresh heartbeat, a new lease token and one more attempt.
+     * The attempt is taken back if the item is released, and forgotten if it is rescheduled.
+     */
+    public static Bson generatePeekUpdate() {
+        final Document setDoc = new Document();
+        setDoc.put("heartbeat", new Date());
+        setDoc.put("status", OkraStatus.PROCESSING.name());
+        return new Document("$set", setDoc).append("$inc", generateClaimIncrements());
+    }
+
+    public static Document generateClaimIncrements() {
+        return new Document(LEASE_TOKEN, 1L).append(ATTEMPTS, 1);
+    }
+
+    /**
+     * Gives a claimed item back untouched: PENDING again, without counting the claim as an attempt
+     */
+    public static Document generateReleaseUpdate() {
+        final Document setDoc = new Document();
+        setDoc.put("heartbeat", null);
+        setDoc.put("status", OkraStatus.PENDING.name());
+        return new Document("$set", setDoc).append("$inc", new Document(ATTEMPTS, -1));
+    }
+
+    /**
+     * Matches the item only while the caller still holds the lease it was claimed with
+     */
+    public static Document generateLeaseQuery(final OkraItem item) {
+        final Document query = new Document();
+        query.put("_id", new ObjectId(item.getId()));
+        query.put("status", OkraStatus.PROCESSING.name());
+        addLeaseCondition(query, item);
+        return query;
+    }
+
+    /**
+     * Restricts {@code query} to the claim the item comes from: through its lease token when it carries one,
+     * which heartbeats leave untouched, through its {@code heartbeat} otherwise
+     */
+    public static void addLeaseCondition(final Document query, final OkraItem item) {
+        if (item instanceof FencedOkraItem && ((FencedOkraItem) item).getLeaseToken() != null) {
+            query.put(LEASE_TOKEN, ((FencedOkraItem) item).getLeaseToken());
+        } else {
+            query.put("heartbeat", DateUtil.toDate(item.getHeartbeat()));
+        }
+    }
+
+    /**
+     * Restricts {@code query} to the claim the item comes from, when it carries a lease token
+     */
+    public static void addLeaseTokenCondition(final Document query, final OkraItem item) {
+        if (item instanceof FencedOkraItem && ((FencedOkraItem) item).getLeaseToken() != null) {
+            query.put(LEASE_TOKEN, ((FencedOkraItem) item).getLeaseToken());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.worker;
+
+/**
+ * Additive-increase / multiplicative-decrease limit on concurrent claims.
+ * <p>
+ * The lowest claim latency seen is taken as the latency of an idle database. As long as claims
+ * stay within {@code tolerance} times that latency, the limit grows by about one per round-trip,
+ * since by Little's law more concurrency then means more throughput. Once latency grows beyond it,
+ * or a claim fails, the database is saturated: the limit is multiplied by {@code backoffRatio},
+ * at most once per round-trip so that a burst of slow claims only counts once.
+ */
+public final class AimdConcurrencyLimit {
+
+    private static final double EWMA_WEIGHT = 0.2;
+    private static final long MIN_LATENCY_DECAY_NANOS = 60_000_000_000L;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double backoffRatio;
+
+    private double limit;
+    private double smoothedLatencyNanos;
+    private long minLatencyNanos = Long.MAX_VALUE;
+    private long minLatencySetAt;
+    private long lastDecreaseAt;
+
+    public AimdConcurrencyLimit(final int minLimit, final int maxLimit, final double tolerance, final double backoffRatio) {
+        if (minLimit <= 0 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("minLimit must be greater than zero and not greater than maxLimit");
+        }
+        if (tolerance < 1 || backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("tolerance must be at least 1 and backoffRatio between 0 and 1");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.backoffRatio = backoffRatio;
+        this.limit = minLimit;
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized void onSuccess(final long latencyNanos) {
+        final long now = System.nanoTime();
+
+        // Let the baseline move up again if the database got durably slower
+        if (latencyNanos < minLatencyNanos || now - minLatencySetAt > MIN_LATENCY_DECAY_NANOS) {
+            minLatencyNanos = latencyNanos;
+            minLatencySetAt = now;
+        }
+
+        smoothedLatencyNanos = smoothedLatencyNanos == 0
+                ? latencyNanos
+                : smoothedLatencyNanos + EWMA_WEIGHT * (latencyNanos - smoothedLatencyNanos);
+
+        if (smoothedLatencyNanos > tolerance * minLatencyNanos) {
+            decrease(now);
+        } else {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    public synchronized void onError() {
+        decrease(System.nanoTime());
+    }
+
+    private void decrease(final long now) {
+        if (now - lastDecreaseAt > smoothedLatencyNanos) {
+            limit = Math.max(minLimit, limit * backoffRatio);
+            lastDecreaseAt = now;
+        }
+    }
+}
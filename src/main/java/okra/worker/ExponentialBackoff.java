@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.worker;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exponential backoff with full jitter: the n-th consecutive delay is picked uniformly
+ * between {@code 0} and {@code min(maxDelay, minDelay * 2^n)}, so idle workers do not poll in lockstep.
+ */
+public final class ExponentialBackoff {
+
+    private static final int MAX_SHIFT = 30;
+
+    private final long minDelayNanos;
+    private final long maxDelayNanos;
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    public ExponentialBackoff(final long minDelayNanos, final long maxDelayNanos) {
+        if (minDelayNanos <= 0 || maxDelayNanos < minDelayNanos) {
+            throw new IllegalArgumentException("minDelay must be greater than zero and not greater than maxDelay");
+        }
+        this.minDelayNanos = minDelayNanos;
+        this.maxDelayNanos = maxDelayNanos;
+    }
+
+    /**
+     * @return the delay to wait before the next attempt
+     */
+    public long nextDelayNanos() {
+        final int shift = Math.min(attempts.getAndIncrement(), MAX_SHIFT);
+        final long ceiling = minDelayNanos > maxDelayNanos >> shift ? maxDelayNanos : minDelayNanos << shift;
+        return ThreadLocalRandom.current().nextLong(ceiling) + 1;
+    }
+
+    /**
+     * Back to full speed
+     */
+    public void reset() {
+        if (attempts.get() != 0) {
+            attempts.set(0);
+        }
+    }
+
+    public boolean isBackingOff() {
+        return attempts.get() > 0;
+    }
+}
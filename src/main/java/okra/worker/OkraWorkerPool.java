@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra.worker;
+
+import okra.OkraAsyncImpl;
+import okra.base.async.OkraAsync;
+import okra.base.async.callback.OkraItemCallback;
+import okra.base.async.callback.OkraItemDeleteCallback;
+import okra.base.async.callback.OkraItemOperationCallback;
+import okra.base.model.OkraItem;
+import okra.callback.OkraItemFailCallback;
+import okra.dispatch.OkraSaturatedException;
+import okra.memory.InMemoryOkraAsync;
+import okra.model.RetryableOkraItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Consumer loop claiming items with {@code peek} and handing them to an {@link OkraWorker}.
+ * <p>
+ * After an empty peek, claiming pauses with {@link ExponentialBackoff}, so an idle pool costs the
+ * database almost nothing, and resumes at full speed as soon as a claim returns an item. The number
+ * of concurrent claims is driven by an {@link AimdConcurrencyLimit} fed with claim latencies and
+ * errors, while {@code maxConcurrency} bounds claimed plus processed items.
+ * <p>
+ * When the okra dispatches callbacks on bounded threads, {@link OkraSaturatedException}s make the pool
+ * back off and lower its concurrency like any failed claim, without logging them.
+ * <p>
+ * Items are heartbeated every {@code heartbeatInterval}, half the lease expiration by default, until
+ * their processing completes, so that long jobs are not claimed again by another worker meanwhile.
+ * Processed items are deleted. Items whose processing failed are reported with {@link OkraAsyncImpl#fail} when
+ * the okra supports it, i.e. retried or dead-lettered according to its {@link okra.retry.RetryPolicy}, and
+ * rescheduled {@code retryDelay} later otherwise.
+ */
+public class OkraWorkerPool<T extends OkraItem> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OkraWorkerPool.class);
+
+    private final OkraAsync<T> okra;
+    private final OkraWorker<T> worker;
+    private final int maxConcurrency;
+    private final long retryDelayMillis;
+    private final long heartbeatIntervalMillis;
+
+    private final ExponentialBackoff backoff;
+    private final AimdConcurrencyLimit concurrencyLimit;
+    private final ScheduledExecutorService timer;
+
+    private final AtomicInteger claiming = new AtomicInteger();
+    private final AtomicInteger processing = new AtomicInteger();
+    private final AtomicBoolean wakeUpScheduled = new AtomicBoolean();
+    private final AtomicInteger pumpRequests = new AtomicInteger();
+
+    private volatile boolean running;
+
+    private OkraWorkerPool(final Builder<T> builder) {
+        this.okra = builder.okra;
+        this.worker = builder.worker;
+        this.maxConcurrency = builder.maxConcurrency;
+        this.retryDelayMillis = builder.retryDelayMillis;
+        this.heartbeatIntervalMillis = builder.heartbeatIntervalMillis;
+        this.backoff = new ExponentialBackoff(builder.minBackoffNanos, builder.maxBackoffNanos);
+        this.concurrencyLimit = new AimdConcurrencyLimit(1, builder.maxConcurrency, builder.latencyTolerance, 0.9);
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "okra-worker-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static <T extends OkraItem> Builder<T> builder(final OkraAsync<T> okra, final OkraWorker<T> worker) {
+        return new Builder<>(okra, worker);
+    }
+
+    public void start() {
+        running = true;
+        pump();
+    }
+
+    /**
+     * Stops claiming new items. Items being processed are still heartbeated, then deleted or rescheduled when done.
+     */
+    public void close() {
+        running = false;
+        shutdownIfIdle();
+    }
+
+    public int getConcurrencyLimit() {
+        return concurrencyLimit.getLimit();
+    }
+
+    public int getProcessingCount() {
+        return processing.get();
+    }
+
+    public boolean isBackingOff() {
+        return backoff.isBackingOff();
+    }
+
+    /**
+     * Callbacks may run on the calling thread, so claims are started from a single loop
+     * instead of recursively, whichever thread asks for it
+     */
+    private void pump() {
+        if (pumpRequests.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        do {
+            fill();
+            missed = pumpRequests.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void fill() {
+        while (running && !wakeUpScheduled.get()) {
+            final int claims = claiming.get();
+
+            if (claims >= concurrencyLimit.getLimit() || claims + processing.get() >= maxConcurrency) {
+                return;
+            }
+
+            if (claiming.compareAndSet(claims, claims + 1)) {
+                claim();
+            }
+        }
+    }
+
+    private void claim() {
+        final long start = System.nanoTime();
+
+        okra.peek(new OkraItemCallback<T>() {
+
+            @Override
+            public void onSuccess(final T item) {
+                concurrencyLimit.onSuccess(System.nanoTime() - start);
+
+                if (item == null) {
+                    claiming.decrementAndGet();
+                    idle();
+                    return;
+                }
+
+                backoff.reset();
+                wakeUpScheduled.set(false);
+                processing.incrementAndGet();
+                claiming.decrementAndGet();
+
+                process(item);
+                pump();
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                // Saturation is expected backpressure from the callback dispatcher, not an error
+                if (!(throwable instanceof OkraSaturatedException)) {
+                    LOGGER.warn("Unable to claim an item", throwable);
+                }
+                concurrencyLimit.onError();
+                claiming.decrementAndGet();
+                idle();
+            }
+        });
+    }
+
+    private void idle() {
+        if (!running) {
+            shutdownIfIdle();
+        } else if (wakeUpScheduled.compareAndSet(false, true)) {
+            try {
+                timer.schedule(() -> {
+                    wakeUpScheduled.set(false);
+                    pump();
+                }, backoff.nextDelayNanos(), TimeUnit.NANOSECONDS);
+            } catch (final RejectedExecutionException e) {
+                // Closed meanwhile
+                wakeUpScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * The timer heartbeats items being processed, so it outlives {@link #close()} until they are all done
+     */
+    private void shutdownIfIdle() {
+        if (!running && claiming.get() + processing.get() == 0) {
+            timer.shutdownNow();
+        }
+    }
+
+    private void process(final T item) {
+        final Lease lease = new Lease(item);
+        lease.start();
+
+        CompletionStage<?> result;
+        try {
+            result = worker.process(item);
+        } catch (final RuntimeException e) {
+            final CompletableFuture<?> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            result = failed;
+        }
+
+        result.whenComplete((ignored, throwable) -> lease.finish().thenRun(() -> {
+            if (throwable == null) {
+                delete(lease.item);
+            } else {
+                retry(lease.item, throwable);
+            }
+        }));
+    }
+
+    private void delete(final T item) {
+        okra.delete(item, new OkraItemDeleteCallback() {
+
+            @Override
+            public void onSuccess(final long deletedCount) {
+                if (deletedCount == 0) {
+                    LOGGER.warn("Item {} was processed after its lease expired", item.getId());
+                }
+                done();
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                LOGGER.error("Unable to delete processed item {}", item.getId(), throwable);
+                done();
+            }
+        });
+    }
+
+    private void retry(final T item, final Throwable error) {
+        if (okra instanceof OkraAsyncImpl && item instanceof RetryableOkraItem) {
+            fail((OkraAsyncImpl<T>) okra, item, error);
+            return;
+        }
+
+        LOGGER.warn("Unable to process item {}, retrying in {} ms", item.getId(), retryDelayMillis, error);
+        item.setRunDate(LocalDateTime.now().plusNanos(TimeUnit.MILLISECONDS.toNanos(retryDelayMillis)));
+
+        okra.reschedule(item, new OkraItemOperationCallback<T>() {
+
+            @Override
+            public void onSuccess(final T rescheduled) {
+                done();
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                LOGGER.error("Unable to reschedule item {}, it will be retried once its lease expires",
+                        item.getId(), throwable);
+                done();
+            }
+        });
+    }
+
+    private void fail(final OkraAsyncImpl<T> retryingOkra, final T item, final Throwable error) {
+        retryingOkra.fail(item, error, new OkraItemFailCallback() {
+
+            @Override
+            public void onSuccess(final Outcome outcome) {
+                if (outcome == Outcome.DEAD_LETTERED) {
+                    LOGGER.warn("Unable to process item {}, moved to the dead-letter collection", item.getId(), error);
+                } else if (outcome == Outcome.RETRY_SCHEDULED) {
+                    LOGGER.warn("Unable to process item {}, retrying at {}", item.getId(), item.getRunDate(), error);
+                } else {
+                    LOGGER.warn("Unable to process item {}, and its lease was lost meanwhile", item.getId(), error);
+                }
+                done();
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                LOGGER.error("Unable to report the failure of item {}, it will be retried once its lease expires",
+                        item.getId(), throwable);
+                done();
+            }
+        });
+    }
+
+    private void done() {
+        processing.decrementAndGet();
+        shutdownIfIdle();
+        pump();
+    }
+
+    /**
+     * Heartbeats an item while it is processed. Renewals change the {@code heartbeat} of the item, so the
+     * latest renewed copy is the one to delete or reschedule.
+     */
+    private final class Lease implements Runnable {
+
+        private volatile T item;
+
+        private ScheduledFuture<?> renewals;
+        private CompletableFuture<Void> renewal = CompletableFuture.completedFuture(null);
+        private boolean finished;
+
+        private Lease(final T item) {
+            this.item = item;
+        }
+
+        private synchronized void start() {
+            try {
+                renewals = timer.scheduleAtFixedRate(this, heartbeatIntervalMillis, heartbeatIntervalMillis,
+                        TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException e) {
+                LOGGER.warn("Worker pool is closed, item {} will not be heartbeated", item.getId());
+            }
+        }
+
+        @Override
+        public void run() {
+            final CompletableFuture<Void> current;
+            synchronized (this) {
+                if (finished || !renewal.isDone()) {
+                    return;
+                }
+                current = new CompletableFuture<>();
+                renewal = current;
+            }
+
+            okra.heartbeat(item, new OkraItemOperationCallback<T>() {
+
+                @Override
+                public void onSuccess(final T renewed) {
+                    if (renewed == null) {
+                        LOGGER.warn("Lease of item {} was lost while processing it", item.getId());
+                        finish();
+                    } else {
+                        item = renewed;
+                    }
+                    current.complete(null);
+                }
+
+                @Override
+                public void onFailure(final Throwable throwable) {
+                    LOGGER.warn("Unable to heartbeat item {}", item.getId(), throwable);
+                    current.complete(null);
+                }
+            });
+        }
+
+        /**
+         * Stops renewing the item. The returned future completes once the renewal in flight, if any, is done.
+         */
+        private synchronized CompletableFuture<Void> finish() {
+            finished = true;
+            if (renewals != null) {
+                renewals.cancel(false);
+            }
+            return renewal;
+        }
+    }
+
+    public static final class Builder<T extends OkraItem> {
+
+        private final OkraAsync<T> okra;
+        private final OkraWorker<T> worker;
+
+        private int maxConcurrency = 16;
+        private long minBackoffNanos = TimeUnit.MILLISECONDS.toNanos(10);
+        private long maxBackoffNanos = TimeUnit.SECONDS.toNanos(5);
+        private long retryDelayMillis = TimeUnit.SECONDS.toMillis(30);
+        private double latencyTolerance = 2;
+        private long heartbeatIntervalMillis;
+
+        private Builder(final OkraAsync<T> okra, final OkraWorker<T> worker) {
+            this.okra = okra;
+            this.worker = worker;
+        }
+
+        /**
+         * Maximum number of items being claimed or processed at the same time
+         */
+        public Builder<T> withMaxConcurrency(final int maxConcurrency) {
+            if (maxConcurrency <= 0) {
+                throw new IllegalArgumentException("maxConcurrency must be greater than zero");
+            }
+            this.maxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        /**
+         * Bounds of the pause after empty peeks, doubled after each consecutive empty peek
+         */
+        public Builder<T> withBackoff(final long minDelay, final long maxDelay, final TimeUnit unit) {
+            this.minBackoffNanos = unit.toNanos(minDelay);
+            this.maxBackoffNanos = unit.toNanos(maxDelay);
+            return this;
+        }
+
+        /**
+         * Delay before failed items are retried, when the okra has no retry policy of its own
+         */
+        public Builder<T> withRetryDelay(final long retryDelay, final TimeUnit unit) {
+            this.retryDelayMillis = unit.toMillis(retryDelay);
+            return this;
+        }
+
+        /**
+         * Claim latency, as a multiple of the lowest one seen, above which concurrency is reduced
+         */
+        public Builder<T> withLatencyTolerance(final double latencyTolerance) {
+            this.latencyTolerance = latencyTolerance;
+            return this;
+        }
+
+        /**
+         * Delay between heartbeats of items being processed, half the lease expiration of the okra by default
+         */
+        public Builder<T> withHeartbeatInterval(final long heartbeatInterval, final TimeUnit unit) {
+            if (heartbeatInterval <= 0) {
+                throw new IllegalArgumentException("heartbeatInterval must be greater than zero");
+            }
+            this.heartbeatIntervalMillis = unit.toMillis(heartbeatInterval);
+            return this;
+        }
+
+        public OkraWorkerPool<T> build() {
+            if (heartbeatIntervalMillis == 0) {
+                heartbeatIntervalMillis = Math.max(1, expirationMillis(okra) / 2);
+            }
+            return new OkraWorkerPool<>(this);
+        }
+
+        private static long expirationMillis(final OkraAsync<?> okra) {
+            if (okra instanceof OkraAsyncImpl) {
+                return ((OkraAsyncImpl<?>) okra).getHeartbeatExpirationMillis();
+            }
+            if (okra instanceof InMemoryOkraAsync) {
+                return ((InMemoryOkraAsync<?>) okra).getHeartbeatExpirationMillis();
+            }
+            throw new IllegalStateException("Lease expiration of " + okra.getClass().getName()
+                    + " is unknown, heartbeatInterval must be set");
+        }
+    }
+}
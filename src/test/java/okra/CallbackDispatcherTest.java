@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import okra.dispatch.CallbackDispatcher;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.Assume.assumeTrue;
+
+public class CallbackDispatcherTest {
+
+    @Test
+    public void boundedExecutorReportsSaturationTest() throws InterruptedException {
+        final CallbackDispatcher dispatcher = CallbackDispatcher.boundedExecutor(1, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+
+        dispatcher.dispatch(() -> {
+            started.countDown();
+            await(release);
+            done.countDown();
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+        dispatcher.dispatch(done::countDown);
+        assertThat(dispatcher.isSaturated()).isFalse();
+
+        dispatcher.dispatch(done::countDown);
+        assertThat(dispatcher.isSaturated()).isTrue();
+
+        release.countDown();
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(dispatcher.isSaturated()).isFalse();
+
+        dispatcher.close();
+    }
+
+    @Test
+    public void boundedExecutorRejectsWhenFullTest() throws InterruptedException {
+        final CallbackDispatcher dispatcher = CallbackDispatcher.boundedExecutor(1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        dispatcher.dispatch(() -> {
+            started.countDown();
+            await(release);
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        dispatcher.dispatch(() -> {
+        });
+
+        final Thread caller = Thread.currentThread();
+        final Thread[] rejectedThread = {null};
+
+        // Never runs on the caller, even when there is no room left
+        assertThatThrownBy(() -> dispatcher.dispatch(() -> rejectedThread[0] = Thread.currentThread()))
+                .isInstanceOf(RejectedExecutionException.class);
+        assertThat(rejectedThread[0]).isNotSameAs(caller);
+
+        release.countDown();
+        dispatcher.close();
+    }
+
+    @Test
+    public void virtualThreadsRejectBeyondMaxInFlightTest() throws InterruptedException {
+        assumeTrue(CallbackDispatcher.virtualThreadsSupported());
+
+        final CallbackDispatcher dispatcher = CallbackDispatcher.virtualThreads(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        dispatcher.dispatch(() -> {
+            started.countDown();
+            await(release);
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(dispatcher.isSaturated()).isTrue();
+
+        assertThatThrownBy(() -> dispatcher.dispatch(() -> {
+        })).isInstanceOf(RejectedExecutionException.class);
+
+        release.countDown();
+        dispatcher.close();
+    }
+
+    @Test
+    public void callbacksLeaveCallingThreadTest() throws InterruptedException {
+        final CallbackDispatcher dispatcher = CallbackDispatcher.virtualThreadsSupported()
+                ? CallbackDispatcher.virtualThreads(16)
+                : CallbackDispatcher.boundedExecutor(2, 16);
+
+        final Thread caller = Thread.currentThread();
+        final Thread[] callbackThread = {null};
+        final CountDownLatch done = new CountDownLatch(1);
+
+        dispatcher.dispatch(() -> {
+            callbackThread[0] = Thread.currentThread();
+            done.countDown();
+        });
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(callbackThread[0]).isNotSameAs(caller);
+
+        dispatcher.close();
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
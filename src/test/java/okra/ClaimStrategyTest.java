@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import okra.base.async.OkraAsync;
+import okra.base.async.callback.OkraItemCallback;
+import okra.base.async.callback.OkraItemScheduleCallback;
+import okra.base.model.OkraStatus;
+import okra.claim.ClaimStrategy;
+import okra.model.DefaultPrioritizedOkraItem;
+import okra.partition.PartitionedOkraAsync;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static okra.OkraContractTest.await;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClaimStrategyTest extends OkraBaseContainerTest {
+
+    private static final String NAMESPACE = "okra.items";
+
+    @Test
+    public void tenantsAreServedByWeightTest() {
+        final ClaimStrategy strategy = ClaimStrategy.builder()
+                .withTenantWeight("big", 3)
+                .withTenantWeight("small", 1)
+                .build();
+
+        final Map<Object, Integer> servedFirst = new HashMap<>();
+        for (int i = 0; i < 40; i++) {
+            final Document first = (Document) strategy.nextClaimQueries(NAMESPACE).get(0);
+            servedFirst.merge(first.get(ClaimStrategy.TENANT), 1, Integer::sum);
+        }
+
+        assertThat(servedFirst).containsEntry("big", 30).containsEntry("small", 10);
+    }
+
+    @Test
+    public void emptyPairsAreSkippedForAWhileTest() {
+        final ClaimStrategy strategy = ClaimStrategy.builder()
+                .withStrictPriorities(10, 0)
+                .withTenantWeight("a", 1)
+                .build();
+
+        final List<Bson> queries = strategy.nextClaimQueries(NAMESPACE);
+        assertThat(queries).hasSize(2);
+
+        strategy.recordEmpty(NAMESPACE, queries.get(0));
+
+        // Only the other priority is tried until the backoff elapsed
+        final List<Bson> remaining = strategy.nextClaimQueries(NAMESPACE);
+        assertThat(remaining).hasSize(1);
+        assertThat(((Document) remaining.get(0)).get(ClaimStrategy.PRIORITY)).isEqualTo(0);
+
+        // Other collections sharing the strategy still try every pair
+        assertThat(strategy.nextClaimQueries("okra.other")).hasSize(2);
+
+        final ClaimStrategy withoutBackoff = ClaimStrategy.builder()
+                .withStrictPriorities(10, 0)
+                .withEmptyBackoff(0, TimeUnit.MILLISECONDS)
+                .build();
+        withoutBackoff.recordEmpty(NAMESPACE, withoutBackoff.nextClaimQueries(NAMESPACE).get(0));
+        assertThat(withoutBackoff.nextClaimQueries(NAMESPACE)).hasSize(2);
+    }
+
+    @Test
+    public void strictPrioritiesTest() {
+        final OkraAsyncImpl<DefaultPrioritizedOkraItem> okra = new OkraAsyncBuilder<DefaultPrioritizedOkraItem>()
+                .withMongo(getDefaultMongo())
+                .withDatabase("okraClaimStrategyTests")
+                .withCollection("strict")
+                .withItemClass(DefaultPrioritizedOkraItem.class)
+                .withExpiration(5, TimeUnit.MINUTES)
+                .withClaimStrategy(ClaimStrategy.builder()
+                        .withStrictPriorities(10, 0)
+                        .withTenantWeight("a", 1)
+                        .withTenantWeight("b", 1)
+                        .build())
+                .build();
+
+        // The low priority item is older, it would be claimed first without a strategy
+        schedule(okra, newItem(0, "a", LocalDateTime.now().minusMinutes(10)));
+        schedule(okra, newItem(10, "b", LocalDateTime.now().minusMinutes(5)));
+        schedule(okra, newItem(10, "unknown", LocalDateTime.now().minusMinutes(1)));
+
+        assertThat(peek(okra).getPriority()).isEqualTo(10);
+        assertThat(peek(okra).getPriority()).isEqualTo(0);
+
+        // Not matched by any strategy query, claimed through the regular peek query
+        assertThat(peek(okra).getTenant()).isEqualTo("unknown");
+    }
+
+    @Test
+    public void emptyPairsAreSkippedPerPartitionTest() {
+        final PartitionedOkraAsync<DefaultPrioritizedOkraItem> okra = new OkraAsyncBuilder<DefaultPrioritizedOkraItem>()
+                .withMongo(getDefaultMongo())
+                .withDatabase("okraClaimStrategyTests")
+                .withCollection("partitioned")
+                .withItemClass(DefaultPrioritizedOkraItem.class)
+                .withExpiration(5, TimeUnit.MINUTES)
+                .withClaimStrategy(ClaimStrategy.builder()
+                        .withStrictPriorities(10, 0)
+                        .withEmptyBackoff(1, TimeUnit.HOURS)
+                        .build())
+                .buildPartitioned(2, 0);
+
+        // Both items live in the other partition, so every pair is found empty in the home partition first
+        final DefaultPrioritizedOkraItem low = newItem(0, null, LocalDateTime.now().minusMinutes(10));
+        low.setId(idInPartition(okra, 1));
+        final DefaultPrioritizedOkraItem high = newItem(10, null, LocalDateTime.now().minusMinutes(5));
+        high.setId(idInPartition(okra, 1));
+        schedule(okra, low);
+        schedule(okra, high);
+
+        assertThat(peek(okra).getPriority()).isEqualTo(10);
+        assertThat(peek(okra).getPriority()).isEqualTo(0);
+    }
+
+    private static String idInPartition(final PartitionedOkraAsync<?> okra, final int partition) {
+        String id = new ObjectId().toHexString();
+        while (okra.partitionIndex(id) != partition) {
+            id = new ObjectId().toHexString();
+        }
+        return id;
+    }
+
+    private static DefaultPrioritizedOkraItem newItem(final int priority, final String tenant,
+                                                      final LocalDateTime runDate) {
+        final DefaultPrioritizedOkraItem item = new DefaultPrioritizedOkraItem();
+        item.setPriority(priority);
+        item.setTenant(tenant);
+        item.setRunDate(runDate);
+        item.setStatus(OkraStatus.PENDING);
+        return item;
+    }
+
+    private static void schedule(final OkraAsync<DefaultPrioritizedOkraItem> okra,
+                                 final DefaultPrioritizedOkraItem item) {
+        OkraContractTest.<Void>await(future -> okra.schedule(item, new OkraItemScheduleCallback() {
+
+            @Override
+            public void onSuccess() {
+                future.complete(null);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        }));
+    }
+
+    private static DefaultPrioritizedOkraItem peek(final OkraAsync<DefaultPrioritizedOkraItem> okra) {
+        return await(future -> okra.peek(new OkraItemCallback<DefaultPrioritizedOkraItem>() {
+
+            @Override
+            public void onSuccess(final DefaultPrioritizedOkraItem item) {
+                future.complete(item);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        }));
+    }
+}
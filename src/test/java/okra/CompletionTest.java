@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import okra.base.async.callback.OkraCountCallback;
+import okra.base.async.callback.OkraItemCallback;
+import okra.base.async.callback.OkraItemScheduleCallback;
+import okra.base.model.OkraStatus;
+import okra.model.DefaultOkraItem;
+import okra.model.DefaultRecurringOkraItem;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static okra.OkraContractTest.*;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompletionTest extends OkraBaseContainerTest {
+
+    @Test
+    public void completeAllDeletesOwnedItemsTest() throws InterruptedException {
+        final OkraAsyncImpl<DefaultOkraItem> okra = okra("completeDelete", false);
+        final List<DefaultOkraItem> claimed = claim(okra, 3);
+
+        // Lease lost: this one must not be completed
+        final DefaultOkraItem stale = claimed.get(0);
+        assertThat(reclaim(okra, stale).getId()).isEqualTo(stale.getId());
+
+        assertThat(OkraContractTest.<Long>await(future -> okra.completeAll(claimed, countCallback(future))))
+                .isEqualTo(2);
+        assertThat(count(okra, OkraStatus.PROCESSING)).isEqualTo(1);
+    }
+
+    @Test
+    public void completeAllArchivesItemsTest() {
+        final OkraAsyncImpl<DefaultOkraItem> okra = okra("completeArchive", true);
+        final List<DefaultOkraItem> claimed = claim(okra, 3);
+
+        assertThat(OkraContractTest.<Long>await(future -> okra.completeAll(claimed, countCallback(future))))
+                .isEqualTo(3);
+        assertThat(count(okra, OkraStatus.PROCESSING)).isZero();
+        assertThat(count(okra, OkraStatus.DONE)).isZero();
+        assertThat(OkraContractTest.<Long>await(future -> getDefaultMongo()
+                .getDatabase("okraCompletionTests")
+                .getCollection(okra.getArchiveCollection())
+                .count(new Document("status", OkraStatus.DONE.name()), (count, throwable) -> future.complete(count))))
+                .isEqualTo(3);
+    }
+
+    @Test
+    public void purgeDoneRemovesDoneItemsInChunksTest() {
+        final OkraAsyncImpl<DefaultOkraItem> okra = okra("purge", false);
+
+        for (int i = 0; i < 5; i++) {
+            final DefaultOkraItem item = newItem(LocalDateTime.now().minusMinutes(5));
+            item.setStatus(OkraStatus.DONE);
+            schedule(okra, item);
+        }
+        schedule(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+
+        assertThat(OkraContractTest.<Long>await(future -> okra.purgeDone(3, countCallback(future)))).isEqualTo(3);
+        assertThat(OkraContractTest.<Long>await(future -> okra.purgeDone(3, countCallback(future)))).isEqualTo(2);
+        assertThat(count(okra, OkraStatus.DONE)).isZero();
+        assertThat(count(okra, OkraStatus.PENDING)).isEqualTo(1);
+    }
+
+    @Test
+    public void completeAllReschedulesRecurringItemsTest() {
+        final OkraAsyncImpl<DefaultRecurringOkraItem> okra = new OkraAsyncBuilder<DefaultRecurringOkraItem>()
+                .withMongo(getDefaultMongo())
+                .withDatabase("okraCompletionTests")
+                .withCollection("recurring")
+                .withItemClass(DefaultRecurringOkraItem.class)
+                .withExpiration(5, TimeUnit.MINUTES)
+                .build();
+
+        final DefaultRecurringOkraItem item = new DefaultRecurringOkraItem();
+        item.setRunDate(LocalDateTime.now().minusMinutes(5));
+        item.setStatus(OkraStatus.PENDING);
+        item.setCron("0 0 * * *");
+
+        OkraContractTest.<Void>await(future -> okra.schedule(item, new OkraItemScheduleCallback() {
+
+            @Override
+            public void onSuccess() {
+                future.complete(null);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        }));
+
+        final DefaultRecurringOkraItem claimed = OkraContractTest.<DefaultRecurringOkraItem>await(future ->
+                okra.peek(new OkraItemCallback<DefaultRecurringOkraItem>() {
+
+                    @Override
+                    public void onSuccess(final DefaultRecurringOkraItem claimedItem) {
+                        future.complete(claimedItem);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable throwable) {
+                        future.completeExceptionally(throwable);
+                    }
+                }));
+
+        assertThat(OkraContractTest.<Long>await(future -> okra.complete(claimed, countCallback(future)))).isEqualTo(1);
+
+        final Document stored = OkraContractTest.await(future -> getDefaultMongo()
+                .getDatabase("okraCompletionTests")
+                .getCollection("recurring")
+                .find()
+                .first((document, throwable) -> future.complete(document)));
+
+        assertThat(stored.getString("status")).isEqualTo(OkraStatus.PENDING.name());
+        assertThat(stored.get("heartbeat")).isNull();
+        assertThat(stored.getDate("runDate")).isAfter(new Date());
+    }
+
+    private OkraAsyncImpl<DefaultOkraItem> okra(final String collection, final boolean archiving) {
+        final OkraAsyncBuilder<DefaultOkraItem> builder = new OkraAsyncBuilder<DefaultOkraItem>()
+                .withMongo(getDefaultMongo())
+                .withDatabase("okraCompletionTests")
+                .withCollection(collection)
+                .withItemClass(DefaultOkraItem.class)
+                .withExpiration(5, TimeUnit.MINUTES);
+
+        return archiving ? builder.withArchiving(1, TimeUnit.DAYS).build() : builder.build();
+    }
+
+    private static List<DefaultOkraItem> claim(final OkraAsyncImpl<DefaultOkraItem> okra, final int count) {
+        final List<DefaultOkraItem> claimed = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            schedule(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+        }
+        for (int i = 0; i < count; i++) {
+            claimed.add(peek(okra));
+        }
+        return Collections.unmodifiableList(claimed);
+    }
+
+    private static OkraCountCallback countCallback(final CompletableFuture<Long> future) {
+        return new OkraCountCallback() {
+
+            @Override
+            public void onSuccess(final long count) {
+                future.complete(count);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        };
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import okra.model.DefaultRecurringOkraItem;
+import okra.recurring.CronExpression;
+import okra.recurring.RecurrenceUtil;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CronExpressionTest {
+
+    private static final LocalDateTime NOW = LocalDateTime.of(2017, 3, 15, 10, 7, 30);
+
+    @Test
+    public void everyQuarterHourTest() {
+        assertThat(CronExpression.parse("*/15 * * * *").next(NOW)).isEqualTo(NOW.withMinute(15).withSecond(0));
+    }
+
+    @Test
+    public void dailyTest() {
+        assertThat(CronExpression.parse("30 2 * * *").next(NOW)).isEqualTo(LocalDateTime.of(2017, 3, 16, 2, 30));
+    }
+
+    @Test
+    public void weekdaysAndMonthsTest() {
+        // 2017-03-15 is a Wednesday
+        assertThat(CronExpression.parse("0 9 * * 1-5").next(NOW)).isEqualTo(LocalDateTime.of(2017, 3, 16, 9, 0));
+        assertThat(CronExpression.parse("0 0 1 1,7 *").next(NOW)).isEqualTo(LocalDateTime.of(2017, 7, 1, 0, 0));
+        assertThat(CronExpression.parse("0 0 * * 7").next(NOW)).isEqualTo(LocalDateTime.of(2017, 3, 19, 0, 0));
+    }
+
+    @Test
+    public void dayOfMonthOrDayOfWeekTest() {
+        // The 20th or any Friday, whichever comes first
+        assertThat(CronExpression.parse("0 0 20 * 5").next(NOW)).isEqualTo(LocalDateTime.of(2017, 3, 17, 0, 0));
+    }
+
+    @Test
+    public void invalidExpressionTest() {
+        assertThatThrownBy(() -> CronExpression.parse("60 * * * *")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> CronExpression.parse("* * *")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> CronExpression.parse("5-1 * * * *")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void fixedRateIntervalSkipsMissedRunsTest() {
+        final DefaultRecurringOkraItem item = new DefaultRecurringOkraItem();
+        item.setIntervalMillis(60_000L);
+        item.setRunDate(NOW.minusMinutes(3).minusSeconds(10));
+
+        assertThat(RecurrenceUtil.nextRunDate(item, NOW)).isEqualTo(NOW.plusSeconds(50));
+    }
+}
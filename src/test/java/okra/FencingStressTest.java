@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import okra.base.async.OkraAsync;
+import okra.base.model.OkraStatus;
+import okra.model.DefaultOkraItem;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static okra.OkraContractTest.delete;
+import static okra.OkraContractTest.heartbeat;
+import static okra.OkraContractTest.newItem;
+import static okra.OkraContractTest.peek;
+import static okra.OkraContractTest.schedule;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Hundreds of claimers racing on a queue whose leases expire while items are being processed.
+ * Leases are taken over all the time, yet every item must be completed exactly once, and once an item
+ * was claimed again no write of a former holder, heartbeat or completion, may be accepted.
+ */
+public abstract class FencingStressTest {
+
+    private static final int ITEMS = 2_000;
+    private static final int CLAIMERS = 256;
+    private static final long EXPIRATION_MILLIS = 15;
+    private static final int MAX_STEPS = 3;
+    private static final int MAX_STEP_MILLIS = 20;
+
+    protected abstract OkraAsync<DefaultOkraItem> createOkra(long heartbeatExpirationMillis);
+
+    /**
+     * Acknowledges a processed item, returns the number of completed items
+     */
+    protected long complete(final OkraAsync<DefaultOkraItem> okra, final DefaultOkraItem item) {
+        return delete(okra, item);
+    }
+
+    @Test
+    public void staleHolderIsRejectedTest() throws Exception {
+        final OkraAsync<DefaultOkraItem> okra = createOkra(50);
+        schedule(okra, newItem(LocalDateTime.now().minusMinutes(1)));
+
+        final DefaultOkraItem stale = peek(okra);
+        assertThat(stale).isNotNull();
+
+        Thread.sleep(100);
+
+        final DefaultOkraItem current = peek(okra);
+        assertThat(current).isNotNull();
+        assertThat(current.getId()).isEqualTo(stale.getId());
+        assertThat(current.getLeaseToken()).isGreaterThan(stale.getLeaseToken());
+
+        assertThat(heartbeat(okra, stale)).isNull();
+        assertThat(complete(okra, stale)).isZero();
+
+        final DefaultOkraItem renewed = heartbeat(okra, current);
+        assertThat(renewed).isNotNull();
+        assertThat(complete(okra, renewed)).isEqualTo(1);
+    }
+
+    @Test
+    public void itemsAreNeverHeldByTwoClaimersTest() throws Exception {
+        final OkraAsync<DefaultOkraItem> okra = createOkra(EXPIRATION_MILLIS);
+
+        for (int i = 0; i < ITEMS; i++) {
+            schedule(okra, newItem(LocalDateTime.now().minusMinutes(1)));
+        }
+
+        final Map<String, AtomicLong> newestTokens = new ConcurrentHashMap<>();
+        final Map<String, AtomicInteger> completions = new ConcurrentHashMap<>();
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicLong staleWrites = new AtomicLong();
+        final AtomicLong overlappingWrites = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(CLAIMERS);
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(CLAIMERS);
+
+        for (int claimer = 0; claimer < CLAIMERS; claimer++) {
+            executor.execute(() -> {
+                try {
+                    while (completed.get() < ITEMS && System.currentTimeMillis() < deadline) {
+                        DefaultOkraItem item = peek(okra);
+                        if (item == null) {
+                            Thread.yield();
+                            continue;
+                        }
+
+                        final long token = item.getLeaseToken();
+                        final AtomicLong newestToken = newestTokens.computeIfAbsent(item.getId(), id -> new AtomicLong());
+                        newestToken.accumulateAndGet(token, Math::max);
+
+                        // Steps sometimes last longer than the lease: someone else claims the item meanwhile
+                        final int steps = ThreadLocalRandom.current().nextInt(MAX_STEPS + 1);
+                        for (int step = 0; step < steps && item != null; step++) {
+                            Thread.sleep(ThreadLocalRandom.current().nextInt(MAX_STEP_MILLIS));
+
+                            // A claim seen before the write was sent happened before it on the server
+                            final long newestBefore = newestToken.get();
+                            item = heartbeat(okra, item);
+
+                            if (item == null) {
+                                staleWrites.incrementAndGet();
+                            } else if (newestBefore > token) {
+                                overlappingWrites.incrementAndGet();
+                            }
+                        }
+
+                        if (item == null) {
+                            continue;
+                        }
+
+                        final long newestBefore = newestToken.get();
+                        if (complete(okra, item) == 1) {
+                            if (newestBefore > token) {
+                                overlappingWrites.incrementAndGet();
+                            }
+                            completions.computeIfAbsent(item.getId(), id -> new AtomicInteger()).incrementAndGet();
+                            completed.incrementAndGet();
+                        } else {
+                            staleWrites.incrementAndGet();
+                        }
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        assertThat(done.await(90, TimeUnit.SECONDS)).isTrue();
+        executor.shutdown();
+
+        assertThat(completions).hasSize(ITEMS);
+        assertThat(completions.values()).allMatch(count -> count.get() == 1);
+        assertThat(completed.get()).isEqualTo(ITEMS);
+        assertThat(overlappingWrites.get()).isZero();
+        assertThat(staleWrites.get()).isPositive();
+        assertThat(count(okra)).isZero();
+    }
+
+    private static long count(final OkraAsync<DefaultOkraItem> okra) {
+        return OkraContractTest.count(okra, OkraStatus.PENDING) + OkraContractTest.count(okra, OkraStatus.PROCESSING);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import okra.callback.OkraItemsCallback;
+import okra.heartbeat.HeartbeatManager;
+import okra.model.DefaultOkraItem;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static okra.OkraContractTest.*;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HeartbeatManagerTest extends OkraBaseContainerTest {
+
+    @Test
+    public void heartbeatAllRenewsOwnedItemsAndReportsLostOnesTest() throws InterruptedException {
+        final OkraAsyncImpl<DefaultOkraItem> okra = okra("heartbeatAll");
+        final DefaultOkraItem first = claim(okra);
+        final DefaultOkraItem second = claim(okra);
+        final LocalDateTime firstHeartbeat = first.getHeartbeat();
+
+        // Claimed again by someone else, the second item holds an outdated lease token
+        assertThat(reclaim(okra, second).getId()).isEqualTo(second.getId());
+
+        Thread.sleep(10);
+        final List<DefaultOkraItem> lost = heartbeatAll(okra, Arrays.asList(first, second));
+
+        assertThat(lost).containsExactly(second);
+        assertThat(first.getHeartbeat()).isAfter(firstHeartbeat);
+
+        // Refreshed in place, so the item can still be rescheduled
+        assertThat(reschedule(okra, first)).isNotNull();
+    }
+
+    @Test
+    public void unregisteredItemsKeepTheirLeaseTest() throws Exception {
+        final OkraAsyncImpl<DefaultOkraItem> okra = okra("renewed");
+        final HeartbeatManager<DefaultOkraItem> manager =
+                new HeartbeatManager<>(okra, 20, TimeUnit.MILLISECONDS, item -> {
+                });
+
+        final DefaultOkraItem item = claim(okra);
+        final LocalDateTime claimedHeartbeat = item.getHeartbeat();
+        manager.register(item);
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!item.getHeartbeat().isAfter(claimedHeartbeat) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(item.getHeartbeat()).isAfter(claimedHeartbeat);
+
+        // Whatever renewal is in flight, the item matches its lease once unregister completed
+        manager.unregister(item).get(5, TimeUnit.SECONDS);
+        assertThat(manager.size()).isZero();
+        assertThat(reschedule(okra, item)).isNotNull();
+
+        manager.close();
+    }
+
+    @Test
+    public void lostLeasesAreReportedAndUnregisteredTest() throws Exception {
+        final OkraAsyncImpl<DefaultOkraItem> okra = okra("lost");
+        final CompletableFuture<DefaultOkraItem> lost = new CompletableFuture<>();
+        final HeartbeatManager<DefaultOkraItem> manager =
+                new HeartbeatManager<>(okra, 20, TimeUnit.MILLISECONDS, lost::complete);
+
+        final DefaultOkraItem item = claim(okra);
+        assertThat(reclaim(okra, item).getId()).isEqualTo(item.getId());
+
+        manager.register(item);
+
+        assertThat(lost.get(5, TimeUnit.SECONDS)).isSameAs(item);
+        assertThat(manager.size()).isZero();
+
+        manager.close();
+    }
+
+    private OkraAsyncImpl<DefaultOkraItem> okra(final String collection) {
+        return new OkraAsyncBuilder<DefaultOkraItem>()
+                .withMongo(getDefaultMongo())
+                .withDatabase("okraHeartbeatTests")
+                .withCollection(collection)
+                .withItemClass(DefaultOkraItem.class)
+                .withExpiration(5, TimeUnit.MINUTES)
+                .build();
+    }
+
+    private static DefaultOkraItem claim(final OkraAsyncImpl<DefaultOkraItem> okra) {
+        schedule(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+        return peek(okra);
+    }
+
+    private static List<DefaultOkraItem> heartbeatAll(final OkraAsyncImpl<DefaultOkraItem> okra,
+                                                      final List<DefaultOkraItem> items) {
+        return OkraContractTest.await(future -> okra.heartbeatAll(items, new OkraItemsCallback<DefaultOkraItem>() {
+
+            @Override
+            public void onSuccess(final List<DefaultOkraItem> lostItems) {
+                future.complete(lostItems);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        }));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import com.mongodb.async.client.MongoClient;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import okra.index.IndexCreator;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class IndexCreatorTest extends OkraBaseContainerTest {
+
+    @Test
+    public void missingIndexesAreCreatedOnceTest() throws Exception {
+        final List<IndexModel> indexes = IndexCreator.requiredIndexes(getDefaultOkra());
+
+        final CompletableFuture<Void> first =
+                IndexCreator.ensureIndexes(getDefaultMongo(), "okraIndexTests", "indexes", indexes);
+        first.get(5, TimeUnit.SECONDS);
+
+        // _id plus at least the compound indexes
+        assertThat(listIndexes(getDefaultMongo(), "indexes").size()).isGreaterThan(IndexCreator.COMPOUND_INDEXES.size());
+
+        // Verified state is cached for the collection
+        assertThat(IndexCreator.ensureIndexes(getDefaultMongo(), "okraIndexTests", "indexes", indexes))
+                .isSameAs(first);
+    }
+
+    @Test
+    public void anotherClientVerifiesAgainTest() throws Exception {
+        final List<IndexModel> indexes = IndexCreator.requiredIndexes(getDefaultOkra());
+
+        IndexCreator.ensureIndexes(getDefaultMongo(), "okraIndexTests", "dropped", indexes)
+                .get(5, TimeUnit.SECONDS);
+        drop(getDefaultMongo(), "dropped");
+
+        final MongoClient otherMongo = createMongo();
+        try {
+            IndexCreator.ensureIndexes(otherMongo, "okraIndexTests", "dropped", indexes)
+                    .get(5, TimeUnit.SECONDS);
+
+            assertThat(listIndexes(otherMongo, "dropped").size()).isGreaterThan(IndexCreator.COMPOUND_INDEXES.size());
+        } finally {
+            otherMongo.close();
+        }
+    }
+
+    @Test
+    public void indexWithSameKeysButOtherOptionsIsNotTakenAsExistingTest() throws Exception {
+        final IndexModel plain = new IndexModel(Indexes.ascending("uniqueKey"));
+        final IndexModel unique = new IndexModel(Indexes.ascending("uniqueKey"), new IndexOptions().unique(true));
+
+        IndexCreator.ensureIndexes(getDefaultMongo(), "okraIndexTests", "options", Collections.singletonList(plain))
+                .get(5, TimeUnit.SECONDS);
+
+        // The server refuses to create the unique index over the plain one, the conflict must surface
+        final CompletableFuture<Void> verification = IndexCreator.ensureIndexes(
+                getDefaultMongo(), "okraIndexTests", "options", Collections.singletonList(unique));
+
+        assertThatThrownBy(() -> verification.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("uniqueKey_1");
+
+        // The caller's options are not changed by the background build
+        assertThat(unique.getOptions().isBackground()).isFalse();
+    }
+
+    @Test
+    public void changedExpirationIsUpdatedInPlaceTest() throws Exception {
+        IndexCreator.ensureIndexes(getDefaultMongo(), "okraIndexTests", "ttl",
+                Collections.singletonList(IndexCreator.ttlIndex("completedAt", 3600)))
+                .get(5, TimeUnit.SECONDS);
+
+        IndexCreator.ensureIndexes(getDefaultMongo(), "okraIndexTests", "ttl",
+                Collections.singletonList(IndexCreator.ttlIndex("completedAt", 60)))
+                .get(5, TimeUnit.SECONDS);
+
+        final Document ttlIndex = listIndexes(getDefaultMongo(), "ttl").stream()
+                .filter(index -> index.containsKey("expireAfterSeconds"))
+                .findFirst()
+                .orElseThrow(IllegalStateException::new);
+        assertThat(((Number) ttlIndex.get("expireAfterSeconds")).longValue()).isEqualTo(60);
+    }
+
+    private static List<Document> listIndexes(final MongoClient mongo, final String collection) throws Exception {
+        final CompletableFuture<List<Document>> listed = new CompletableFuture<>();
+        mongo.getDatabase("okraIndexTests")
+                .getCollection(collection)
+                .listIndexes()
+                .into(new ArrayList<>(), (result, throwable) -> listed.complete(result));
+        return listed.get(5, TimeUnit.SECONDS);
+    }
+
+    private static void drop(final MongoClient mongo, final String collection) throws Exception {
+        final CompletableFuture<Void> dropped = new CompletableFuture<>();
+        mongo.getDatabase("okraIndexTests")
+                .getCollection(collection)
+                .drop((result, throwable) -> dropped.complete(null));
+        dropped.get(5, TimeUnit.SECONDS);
+    }
+}
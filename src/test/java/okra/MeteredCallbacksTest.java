@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import okra.base.async.callback.OkraItemCallback;
+import okra.base.async.callback.OkraItemOperationCallback;
+import okra.metrics.MeteredCallbacks;
+import okra.metrics.OkraMetrics;
+import okra.metrics.OkraOperation;
+import okra.model.DefaultOkraItem;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MeteredCallbacksTest {
+
+    private final List<String> recorded = new ArrayList<>();
+
+    private final MeteredCallbacks metered = new MeteredCallbacks(new OkraMetrics() {
+
+        @Override
+        public void recordLatency(final OkraOperation operation, final long elapsedNanos, final boolean success) {
+            assertThat(elapsedNanos).isGreaterThanOrEqualTo(0);
+            recorded.add(operation + ":" + success);
+        }
+
+        @Override
+        public void recordEmptyPeek() {
+            recorded.add("emptyPeek");
+        }
+
+        @Override
+        public void recordLostLeases(final int count) {
+            recorded.add("lostLeases:" + count);
+        }
+
+        @Override
+        public void recordFailedReschedule() {
+            recorded.add("failedReschedule");
+        }
+    });
+
+    @Test
+    public void emptyPeekTest() {
+        final OkraItemCallback<DefaultOkraItem> callback = metered.item(OkraOperation.PEEK, noopItemCallback());
+        assertThat(metered.getInFlight()).isEqualTo(1);
+
+        callback.onSuccess(null);
+
+        assertThat(metered.getInFlight()).isZero();
+        assertThat(recorded).containsExactly("PEEK:true", "emptyPeek");
+    }
+
+    @Test
+    public void lostLeaseTest() {
+        metered.operation(OkraOperation.HEARTBEAT, noopOperationCallback()).onSuccess(null);
+        metered.operation(OkraOperation.HEARTBEAT, noopOperationCallback()).onSuccess(new DefaultOkraItem());
+
+        assertThat(recorded).containsExactly("HEARTBEAT:true", "lostLeases:1", "HEARTBEAT:true");
+    }
+
+    @Test
+    public void failedRescheduleTest() {
+        metered.operation(OkraOperation.RESCHEDULE, noopOperationCallback()).onFailure(new IllegalStateException());
+
+        assertThat(recorded).containsExactly("RESCHEDULE:false", "failedReschedule");
+        assertThat(metered.getInFlight()).isZero();
+    }
+
+    private static OkraItemCallback<DefaultOkraItem> noopItemCallback() {
+        return new OkraItemCallback<DefaultOkraItem>() {
+
+            @Override
+            public void onSuccess(final DefaultOkraItem item) {
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+            }
+        };
+    }
+
+    private static OkraItemOperationCallback<DefaultOkraItem> noopOperationCallback() {
+        return new OkraItemOperationCallback<DefaultOkraItem>() {
+
+            @Override
+            public void onSuccess(final DefaultOkraItem item) {
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+            }
+        };
+    }
+}
@@ -26,7 +26,6 @@ import com.mongodb.async.client.MongoClient;
 import com.mongodb.async.client.MongoClientSettings;
 import com.mongodb.async.client.MongoClients;
 import com.mongodb.connection.ClusterSettings;
-import okra.base.async.OkraAsync;
 import okra.model.DefaultOkraItem;
 import org.junit.After;
 import org.junit.Before;
@@ -47,6 +46,20 @@ public abstract class OkraBaseContainerTest {
 
     @Before
     public void setUp() throws UnknownHostException {
+        mongoClient = createMongo();
+        okra = new OkraAsyncImpl<>(
+                getDefaultMongo(),
+                "okraAsyncTests",
+                "okraAsync",
+                DefaultOkraItem.class,
+                TimeUnit.MINUTES.toMillis(5)
+        );
+    }
+
+    /**
+     * A new client connected to the test container, closing it is up to the caller
+     */
+    protected MongoClient createMongo() throws UnknownHostException {
         final ClusterSettings clusterSettings = ClusterSettings
                 .builder()
                 .hosts(
@@ -62,14 +75,7 @@ public abstract class OkraBaseContainerTest {
                 .clusterSettings(clusterSettings)
                 .build();
 
-        mongoClient = MongoClients.create(settings);
-        okra = new OkraAsyncImpl<>(
-                getDefaultMongo(),
-                "okraAsyncTests",
-                "okraAsync",
-                DefaultOkraItem.class,
-                TimeUnit.MINUTES.toMillis(5)
-        );
+        return MongoClients.create(settings);
     }
 
     @After
@@ -81,7 +87,7 @@ public abstract class OkraBaseContainerTest {
         return mongoClient;
     }
 
-    public OkraAsync<DefaultOkraItem> getDefaultOkra() {
+    public OkraAsyncImpl<DefaultOkraItem> getDefaultOkra() {
         return okra;
     }
 }
\ No newline at end of file
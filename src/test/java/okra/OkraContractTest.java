@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import okra.base.async.OkraAsync;
+import okra.base.async.callback.OkraCountCallback;
+import okra.base.async.callback.OkraItemCallback;
+import okra.base.async.callback.OkraItemDeleteCallback;
+import okra.base.async.callback.OkraItemOperationCallback;
+import okra.base.async.callback.OkraItemScheduleCallback;
+import okra.base.model.OkraStatus;
+import okra.model.DefaultOkraItem;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Scenarios every {@link OkraAsync} backend must satisfy
+ */
+public abstract class OkraContractTest {
+
+    private static final long DEFAULT_EXPIRATION_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * @return an okra backed by a new, empty queue
+     */
+    protected abstract OkraAsync<DefaultOkraItem> createOkra(long heartbeatExpirationMillis);
+
+    @Test
+    public void peekReturnsNullWhenEmptyTest() {
+        final OkraAsync<DefaultOkraItem> okra = createOkra(DEFAULT_EXPIRATION_MILLIS);
+
+        assertThat(peek(okra)).isNull();
+    }
+
+    @Test
+    public void dueItemIsClaimedOnceTest() {
+        final OkraAsync<DefaultOkraItem> okra = createOkra(DEFAULT_EXPIRATION_MILLIS);
+        schedule(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+
+        final DefaultOkraItem claimed = peek(okra);
+
+        assertThat(claimed).isNotNull();
+        assertThat(claimed.getId()).isNotNull();
+        assertThat(claimed.getStatus()).isEqualTo(OkraStatus.PROCESSING);
+        assertThat(claimed.getHeartbeat()).isNotNull();
+        assertThat(peek(okra)).isNull();
+    }
+
+    @Test
+    public void scheduleSetsTheItemIdTest() {
+        final OkraAsync<DefaultOkraItem> okra = createOkra(DEFAULT_EXPIRATION_MILLIS);
+
+        final DefaultOkraItem generated = newItem(LocalDateTime.now().minusMinutes(10));
+        schedule(okra, generated);
+        assertThat(generated.getId()).isNotNull();
+
+        final DefaultOkraItem given = newItem(LocalDateTime.now().minusMinutes(5));
+        final String givenId = new ObjectId().toHexString();
+        given.setId(givenId);
+        schedule(okra, given);
+        assertThat(given.getId()).isEqualTo(givenId);
+
+        assertThat(peek(okra).getId()).isEqualTo(generated.getId());
+        assertThat(peek(okra).getId()).isEqualTo(givenId);
+    }
+
+    @Test
+    public void futureItemIsNotClaimedTest() {
+        final OkraAsync<DefaultOkraItem> okra = createOkra(DEFAULT_EXPIRATION_MILLIS);
+        schedule(okra, newItem(LocalDateTime.now().plusMinutes(5)));
+
+        assertThat(peek(okra)).isNull();
+        assertThat(count(okra, OkraStatus.PENDING)).isEqualTo(1);
+    }
+
+    @Test
+    public void oldestDueItemIsClaimedFirstTest() {
+        final OkraAsync<DefaultOkraItem> okra = createOkra(DEFAULT_EXPIRATION_MILLIS);
+        final LocalDateTime oldest = LocalDateTime.now().minusMinutes(10).withNano(0);
+
+        schedule(okra, newItem(oldest.plusMinutes(5)));
+        schedule(okra, newItem(oldest));
+
+        assertThat(peek(okra).getRunDate()).isEqualTo(oldest);
+    }
+
+    @Test
+    public void heartbeatRenewsLeaseTest() throws InterruptedException {
+        final OkraAsync<DefaultOkraItem> okra = createOkra(DEFAULT_EXPIRATION_MILLIS);
+        schedule(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+
+        final DefaultOkraItem claimed = peek(okra);
+        Thread.sleep(10);
+
+        final DefaultOkraItem renewed = heartbeat(okra, claimed);
+
+        assertThat(renewed).isNotNull();
+        assertThat(renewed.getHeartbeat()).isAfter(claimed.getHeartbeat());
+
+        // The lease is the claim, not its heartbeat: the copy from before the renewal still holds it
+        assertThat(heartbeat(okra, claimed)).isNotNull();
+    }
+
+    @Test
+    public void rescheduleMakesItemPendingAgainTest() {
+        final OkraAsync<DefaultOkraItem> okra = createOkra(DEFAULT_EXPIRATION_MILLIS);
+        schedule(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+
+        final DefaultOkraItem claimed = peek(okra);
+        claimed.setRunDate(LocalDateTime.now().minusMinutes(1));
+
+        final DefaultOkraItem rescheduled = reschedule(okra, claimed);
+
+        assertThat(rescheduled.getStatus()).isEqualTo(OkraStatus.PENDING);
+        assertThat(rescheduled.getHeartbeat()).isNull();
+        assertThat(count(okra, OkraStatus.PENDING)).isEqualTo(1);
+        assertThat(peek(okra).getId()).isEqualTo(claimed.getId());
+    }
+
+    @Test
+    public void rescheduleResetsAttemptsTest() {
+        final OkraAsync<DefaultOkraItem> okra = createOkra(DEFAULT_EXPIRATION_MILLIS);
+        schedule(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+
+        for (int i = 0; i < 3; i++) {
+            final DefaultOkraItem claimed = peek(okra);
+            assertThat(claimed.getAttempts()).isEqualTo(1);
+
+            claimed.setRunDate(LocalDateTime.now().minusMinutes(1));
+            assertThat(reschedule(okra, claimed).getAttempts()).isZero();
+        }
+    }
+
+    @Test
+    public void pollDeletesItemTest() {
+        final OkraAsync<DefaultOkraItem> okra = createOkra(DEFAULT_EXPIRATION_MILLIS);
+        schedule(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+
+        assertThat(poll(okra)).isNotNull();
+        assertThat(count(okra, OkraStatus.PENDING)).isZero();
+        assertThat(count(okra, OkraStatus.PROCESSING)).isZero();
+    }
+
+    @Test
+    public void deleteRemovesItemTest() {
+        final OkraAsync<DefaultOkraItem> okra = createOkra(DEFAULT_EXPIRATION_MILLIS);
+        schedule(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+
+        final DefaultOkraItem claimed = peek(okra);
+
+        assertThat(delete(okra, claimed)).isEqualTo(1);
+        assertThat(delete(okra, claimed)).isZero();
+        assertThat(count(okra, OkraStatus.PROCESSING)).isZero();
+    }
+
+    @Test
+    public void expiredLeaseIsClaimedAgainTest() throws InterruptedException {
+        final OkraAsync<DefaultOkraItem> okra = createOkra(100);
+        schedule(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+
+        final DefaultOkraItem claimed = peek(okra);
+        assertThat(peek(okra)).isNull();
+
+        Thread.sleep(300);
+
+        final DefaultOkraItem reclaimed = peek(okra);
+
+        assertThat(reclaimed).isNotNull();
+        assertThat(reclaimed.getId()).isEqualTo(claimed.getId());
+        assertThat(reclaimed.getHeartbeat()).isAfter(claimed.getHeartbeat());
+    }
+
+    @Test
+    public void countDelayedTest() {
+        final OkraAsync<DefaultOkraItem> okra = createOkra(DEFAULT_EXPIRATION_MILLIS);
+        schedule(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+        schedule(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+        schedule(okra, newItem(LocalDateTime.now().plusMinutes(5)));
+
+        assertThat(countDelayed(okra)).isEqualTo(2);
+    }
+
+    protected static DefaultOkraItem newItem(final LocalDateTime runDate) {
+        final DefaultOkraItem item = new DefaultOkraItem();
+        item.setRunDate(runDate);
+        item.setStatus(OkraStatus.PENDING);
+        return item;
+    }
+
+    protected static void schedule(final OkraAsync<DefaultOkraItem> okra, final DefaultOkraItem item) {
+        OkraContractTest.<Void>await(future -> okra.schedule(item, new OkraItemScheduleCallback() {
+
+            @Override
+            public void onSuccess() {
+                future.complete(null);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        }));
+    }
+
+    protected static DefaultOkraItem peek(final OkraAsync<DefaultOkraItem> okra) {
+        return await(future -> okra.peek(itemCallback(future)));
+    }
+
+    protected static DefaultOkraItem poll(final OkraAsync<DefaultOkraItem> okra) {
+        return await(future -> okra.poll(itemCallback(future)));
+    }
+
+    protected static DefaultOkraItem heartbeat(final OkraAsync<DefaultOkraItem> okra, final DefaultOkraItem item) {
+        return await(future -> okra.heartbeat(item, operationCallback(future)));
+    }
+
+    protected static DefaultOkraItem reschedule(final OkraAsync<DefaultOkraItem> okra, final DefaultOkraItem item) {
+        return await(future -> okra.reschedule(item, operationCallback(future)));
+    }
+
+    /**
+     * Makes {@code item} lose its lease to another claimer: rescheduled, then claimed again with a new lease token
+     */
+    protected static DefaultOkraItem reclaim(final OkraAsync<DefaultOkraItem> okra, final DefaultOkraItem item) {
+        final DefaultOkraItem copy = new DefaultOkraItem();
+        copy.setId(item.getId());
+        copy.setRunDate(item.getRunDate());
+        copy.setHeartbeat(item.getHeartbeat());
+        copy.setLeaseToken(item.getLeaseToken());
+        assertThat(reschedule(okra, copy)).isNotNull();
+        return peek(okra);
+    }
+
+    protected static long delete(final OkraAsync<DefaultOkraItem> okra, final DefaultOkraItem item) {
+        return await(future -> okra.delete(item, new OkraItemDeleteCallback() {
+
+            @Override
+            public void onSuccess(final long deletedCount) {
+                future.complete(deletedCount);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        }));
+    }
+
+    protected static long count(final OkraAsync<DefaultOkraItem> okra, final OkraStatus status) {
+        return await(future -> okra.countByStatus(status, countCallback(future)));
+    }
+
+    protected static long countDelayed(final OkraAsync<DefaultOkraItem> okra) {
+        return await(future -> okra.countDelayed(countCallback(future)));
+    }
+
+    protected static <R> R await(final Consumer<CompletableFuture<R>> operation) {
+        final CompletableFuture<R> future = new CompletableFuture<>();
+        operation.accept(future);
+
+        try {
+            return future.get(5, TimeUnit.SECONDS);
+        } catch (final Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static OkraItemCallback<DefaultOkraItem> itemCallback(final CompletableFuture<DefaultOkraItem> future) {
+        return new OkraItemCallback<DefaultOkraItem>() {
+
+            @Override
+            public void onSuccess(final DefaultOkraItem item) {
+                future.complete(item);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        };
+    }
+
+    private static OkraItemOperationCallback<DefaultOkraItem> operationCallback(
+            final CompletableFuture<DefaultOkraItem> future) {
+        return new OkraItemOperationCallback<DefaultOkraItem>() {
+
+            @Override
+            public void onSuccess(final DefaultOkraItem item) {
+                future.complete(item);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        };
+    }
+
+    private static OkraCountCallback countCallback(final CompletableFuture<Long> future) {
+        return new OkraCountCallback() {
+
+            @Override
+            public void onSuccess(final long count) {
+                future.complete(count);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        };
+    }
+}
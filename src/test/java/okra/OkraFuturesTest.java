@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import okra.base.model.OkraStatus;
+import okra.callback.OkraItemFailCallback;
+import okra.exception.InvalidOkraItemException;
+import okra.future.OkraFutures;
+import okra.memory.InMemoryOkraAsync;
+import okra.model.DefaultOkraItem;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static okra.OkraContractTest.newItem;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class OkraFuturesTest extends OkraBaseContainerTest {
+
+    private OkraFutures<DefaultOkraItem> futures;
+
+    @Before
+    public void setUpFutures() throws Exception {
+        futures = new OkraFutures<>(getDefaultOkra());
+        getDefaultOkra().ready().get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void invalidArgumentsFailTheFutureTest() {
+        // Not claimed, so neither held nor failable
+        final DefaultOkraItem unclaimed = newItem(LocalDateTime.now());
+
+        assertFailsWith(futures.peekBatch(0), IllegalArgumentException.class);
+        assertFailsWith(futures.pollBatch(-1), IllegalArgumentException.class);
+        assertFailsWith(futures.fail(unclaimed, new IllegalStateException("boom")), InvalidOkraItemException.class);
+        assertFailsWith(futures.scheduleIfAbsent(unclaimed), InvalidOkraItemException.class);
+    }
+
+    @Test
+    public void batchOperationsNeedAnOkraAsyncImplTest() {
+        final OkraFutures<DefaultOkraItem> inMemory = new OkraFutures<>(
+                new InMemoryOkraAsync<>("okraFuturesTests", "okra", DefaultOkraItem.class, TimeUnit.MINUTES.toMillis(5)));
+
+        assertFailsWith(inMemory.peekBatch(1), UnsupportedOperationException.class);
+        assertFailsWith(inMemory.releaseAll(Collections.emptyList()), UnsupportedOperationException.class);
+    }
+
+    @Test
+    public void leasesCanBeRenewedReleasedFailedAndCompletedTest() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            futures.schedule(newItem(LocalDateTime.now().minusMinutes(5))).get(5, TimeUnit.SECONDS);
+        }
+
+        final List<DefaultOkraItem> claimed = futures.peekBatch(4).get(5, TimeUnit.SECONDS);
+        assertThat(claimed).hasSize(4);
+
+        final List<DefaultOkraItem> renewed = futures.heartbeatAll(claimed).get(5, TimeUnit.SECONDS);
+        assertThat(renewed).hasSize(4);
+
+        assertThat(futures.releaseAll(Collections.singletonList(renewed.get(0))).get(5, TimeUnit.SECONDS))
+                .isEqualTo(1);
+        assertThat(futures.fail(renewed.get(1), new IllegalStateException("boom")).get(5, TimeUnit.SECONDS))
+                .isEqualTo(OkraItemFailCallback.Outcome.RETRY_SCHEDULED);
+        assertThat(futures.completeAll(Arrays.asList(renewed.get(2), renewed.get(3))).get(5, TimeUnit.SECONDS))
+                .isEqualTo(2);
+
+        assertThat(futures.countByStatus(OkraStatus.PROCESSING).get(5, TimeUnit.SECONDS)).isZero();
+        assertThat(futures.countByStatus(OkraStatus.PENDING).get(5, TimeUnit.SECONDS)).isEqualTo(2);
+    }
+
+    private static void assertFailsWith(final CompletableFuture<?> future, final Class<? extends Throwable> cause) {
+        assertThat(future).isCompletedExceptionally();
+        assertThatThrownBy(() -> future.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(cause);
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import okra.base.async.callback.OkraItemCallback;
+import okra.base.async.callback.OkraItemOperationCallback;
+import okra.base.model.OkraStatus;
+import okra.dispatch.OkraSaturatedException;
+import okra.future.OkraFutures;
+import okra.memory.InMemoryOkraAsync;
+import okra.model.DefaultOkraItem;
+import okra.reactive.OkraPublisher;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OkraPublisherTest {
+
+    private final InMemoryOkraAsync<DefaultOkraItem> okra =
+            new InMemoryOkraAsync<>("okraPublisherTests", "okra", DefaultOkraItem.class, TimeUnit.MINUTES.toMillis(5));
+
+    private final OkraFutures<DefaultOkraItem> futures = new OkraFutures<>(okra);
+
+    @Test
+    public void claimsOnlyRequestedItemsTest() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            final DefaultOkraItem item = new DefaultOkraItem();
+            item.setRunDate(LocalDateTime.now().minusMinutes(5));
+            item.setStatus(OkraStatus.PENDING);
+            futures.schedule(item).get(5, TimeUnit.SECONDS);
+        }
+
+        final List<DefaultOkraItem> received = new CopyOnWriteArrayList<>();
+        final Subscription[] subscription = {null};
+
+        new OkraPublisher<>(okra, 10, TimeUnit.MILLISECONDS).subscribe(new Subscriber<DefaultOkraItem>() {
+
+            @Override
+            public void onSubscribe(final Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(final DefaultOkraItem item) {
+                received.add(item);
+            }
+
+            @Override
+            public void onError(final Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        subscription[0].request(3);
+
+        assertThat(received).hasSize(3);
+        assertThat(futures.countByStatus(OkraStatus.PROCESSING).get(5, TimeUnit.SECONDS)).isEqualTo(3);
+        assertThat(futures.countByStatus(OkraStatus.PENDING).get(5, TimeUnit.SECONDS)).isEqualTo(7);
+
+        subscription[0].cancel();
+    }
+
+    @Test
+    public void itemClaimedAfterCancelIsReleasedTest() throws Exception {
+        final DefaultOkraItem scheduled = new DefaultOkraItem();
+        scheduled.setRunDate(LocalDateTime.now().minusMinutes(5));
+        scheduled.setStatus(OkraStatus.PENDING);
+        futures.schedule(scheduled).get(5, TimeUnit.SECONDS);
+
+        final List<Runnable> claims = new CopyOnWriteArrayList<>();
+        final InMemoryOkraAsync<DefaultOkraItem> deferredOkra =
+                new InMemoryOkraAsync<DefaultOkraItem>("okraPublisherTests", "okra", DefaultOkraItem.class,
+                        TimeUnit.MINUTES.toMillis(5)) {
+
+                    @Override
+                    public void peek(final OkraItemCallback<DefaultOkraItem> callback) {
+                        claims.add(() -> okra.peek(callback));
+                    }
+
+                    @Override
+                    public void reschedule(final DefaultOkraItem item,
+                                           final OkraItemOperationCallback<DefaultOkraItem> callback) {
+                        okra.reschedule(item, callback);
+                    }
+                };
+
+        final List<DefaultOkraItem> received = new CopyOnWriteArrayList<>();
+        final Subscription[] subscription = {null};
+
+        new OkraPublisher<>(deferredOkra, 10, TimeUnit.MILLISECONDS).subscribe(new Subscriber<DefaultOkraItem>() {
+
+            @Override
+            public void onSubscribe(final Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(final DefaultOkraItem item) {
+                received.add(item);
+            }
+
+            @Override
+            public void onError(final Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        subscription[0].request(1);
+        subscription[0].cancel();
+
+        assertThat(claims).hasSize(1);
+        claims.get(0).run();
+
+        assertThat(received).isEmpty();
+        assertThat(futures.countByStatus(OkraStatus.PROCESSING).get(5, TimeUnit.SECONDS)).isZero();
+        assertThat(futures.countByStatus(OkraStatus.PENDING).get(5, TimeUnit.SECONDS)).isEqualTo(1);
+    }
+
+    @Test
+    public void saturationIsRetriedInsteadOfEndingTheStreamTest() throws Exception {
+        final DefaultOkraItem scheduled = new DefaultOkraItem();
+        scheduled.setRunDate(LocalDateTime.now().minusMinutes(5));
+        scheduled.setStatus(OkraStatus.PENDING);
+        futures.schedule(scheduled).get(5, TimeUnit.SECONDS);
+
+        final AtomicInteger rejected = new AtomicInteger();
+        final InMemoryOkraAsync<DefaultOkraItem> saturatedOkra =
+                new InMemoryOkraAsync<DefaultOkraItem>("okraPublisherTests", "okra", DefaultOkraItem.class,
+                        TimeUnit.MINUTES.toMillis(5)) {
+
+                    @Override
+                    public void peek(final OkraItemCallback<DefaultOkraItem> callback) {
+                        if (rejected.getAndIncrement() < 2) {
+                            callback.onFailure(new OkraSaturatedException());
+                        } else {
+                            okra.peek(callback);
+                        }
+                    }
+                };
+
+        final List<DefaultOkraItem> received = new CopyOnWriteArrayList<>();
+        final List<Throwable> errors = new CopyOnWriteArrayList<>();
+        final Subscription[] subscription = {null};
+
+        new OkraPublisher<>(saturatedOkra, 10, TimeUnit.MILLISECONDS).subscribe(new Subscriber<DefaultOkraItem>() {
+
+            @Override
+            public void onSubscribe(final Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(final DefaultOkraItem item) {
+                received.add(item);
+            }
+
+            @Override
+            public void onError(final Throwable throwable) {
+                errors.add(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        subscription[0].request(1);
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (received.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        subscription[0].cancel();
+
+        assertThat(errors).isEmpty();
+        assertThat(received).hasSize(1);
+        assertThat(rejected.get()).isGreaterThanOrEqualTo(3);
+    }
+
+    @Test
+    public void emptyQueueCompletesWithEmptyOptionalTest() throws Exception {
+        assertThat(futures.peek().get(5, TimeUnit.SECONDS)).isEmpty();
+        assertThat(futures.poll().get(5, TimeUnit.SECONDS)).isEmpty();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import okra.base.model.OkraStatus;
+import okra.future.OkraFutures;
+import okra.memory.InMemoryOkraAsync;
+import okra.model.DefaultOkraItem;
+import okra.worker.ExponentialBackoff;
+import okra.worker.OkraWorkerPool;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OkraWorkerPoolTest {
+
+    private final InMemoryOkraAsync<DefaultOkraItem> okra =
+            new InMemoryOkraAsync<>("okraWorkerPoolTests", "okra", DefaultOkraItem.class, TimeUnit.MINUTES.toMillis(5));
+
+    private final OkraFutures<DefaultOkraItem> futures = new OkraFutures<>(okra);
+
+    @Test
+    public void processesBacklogThenBacksOffAndResumesTest() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            schedule();
+        }
+
+        final AtomicInteger processed = new AtomicInteger();
+
+        final OkraWorkerPool<DefaultOkraItem> pool = OkraWorkerPool.builder(okra, (DefaultOkraItem item) -> {
+            processed.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        })
+                .withBackoff(1, 50, TimeUnit.MILLISECONDS)
+                .build();
+
+        pool.start();
+
+        awaitProcessed(processed, 1000);
+        assertThat(futures.countByStatus(OkraStatus.PENDING).get(5, TimeUnit.SECONDS)).isZero();
+
+        Thread.sleep(200);
+        assertThat(pool.isBackingOff()).isTrue();
+
+        schedule();
+        awaitProcessed(processed, 1001);
+
+        pool.close();
+    }
+
+    @Test
+    public void failedItemsAreRescheduledTest() throws Exception {
+        schedule();
+
+        final OkraWorkerPool<DefaultOkraItem> pool = OkraWorkerPool.builder(okra, (DefaultOkraItem item) -> {
+            final CompletableFuture<Void> result = new CompletableFuture<>();
+            result.completeExceptionally(new IllegalStateException("boom"));
+            return result;
+        })
+                .withRetryDelay(1, TimeUnit.HOURS)
+                .build();
+
+        pool.start();
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (futures.countByStatus(OkraStatus.PENDING).get(5, TimeUnit.SECONDS) == 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        pool.close();
+
+        assertThat(futures.countByStatus(OkraStatus.PENDING).get(5, TimeUnit.SECONDS)).isEqualTo(1);
+        assertThat(futures.countDelayed().get(5, TimeUnit.SECONDS)).isZero();
+    }
+
+    @Test
+    public void itemsAreHeartbeatedWhileProcessedTest() throws Exception {
+        final InMemoryOkraAsync<DefaultOkraItem> shortLeases =
+                new InMemoryOkraAsync<>("okraWorkerPoolTests", "okra", DefaultOkraItem.class, 200);
+        final OkraFutures<DefaultOkraItem> shortLeaseFutures = new OkraFutures<>(shortLeases);
+
+        final DefaultOkraItem item = new DefaultOkraItem();
+        item.setRunDate(LocalDateTime.now().minusMinutes(1));
+        item.setStatus(OkraStatus.PENDING);
+        shortLeaseFutures.schedule(item).get(5, TimeUnit.SECONDS);
+
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger processed = new AtomicInteger();
+
+        final OkraWorkerPool<DefaultOkraItem> pool = OkraWorkerPool.builder(shortLeases, (DefaultOkraItem claimed) -> {
+            started.incrementAndGet();
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    Thread.sleep(1000);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                processed.incrementAndGet();
+            });
+        })
+                .withBackoff(1, 10, TimeUnit.MILLISECONDS)
+                .build();
+
+        pool.start();
+        awaitProcessed(processed, 1);
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getProcessingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        pool.close();
+
+        assertThat(started.get()).isEqualTo(1);
+        assertThat(shortLeaseFutures.countByStatus(OkraStatus.PROCESSING).get(5, TimeUnit.SECONDS)).isZero();
+        assertThat(shortLeaseFutures.countByStatus(OkraStatus.PENDING).get(5, TimeUnit.SECONDS)).isZero();
+    }
+
+    @Test
+    public void backoffIsBoundedTest() {
+        final ExponentialBackoff backoff = new ExponentialBackoff(10, 1000);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(backoff.nextDelayNanos()).isBetween(1L, 1000L);
+        }
+
+        backoff.reset();
+        assertThat(backoff.nextDelayNanos()).isBetween(1L, 10L);
+    }
+
+    private void schedule() throws Exception {
+        final DefaultOkraItem item = new DefaultOkraItem();
+        item.setRunDate(LocalDateTime.now().minusMinutes(1));
+        item.setStatus(OkraStatus.PENDING);
+        futures.schedule(item).get(5, TimeUnit.SECONDS);
+    }
+
+    private static void awaitProcessed(final AtomicInteger processed, final int expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (processed.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(processed.get()).isEqualTo(expected);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import okra.base.model.OkraStatus;
+import okra.dispatch.CallbackDispatcher;
+import okra.metrics.OkraGauges;
+import okra.metrics.OkraMetrics;
+import okra.model.DefaultOkraItem;
+import okra.partition.PartitionedOkraAsync;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static okra.OkraContractTest.*;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PartitionedOkraTest extends OkraBaseContainerTest {
+
+    private static final int PARTITIONS = 4;
+
+    @Test
+    public void itemsAreSpreadAndStolenTest() {
+        final PartitionedOkraAsync<DefaultOkraItem> producer = partitioned("spread", 0);
+        final PartitionedOkraAsync<DefaultOkraItem> consumer = partitioned("spread", 1);
+
+        final Set<Integer> usedPartitions = new HashSet<>();
+        for (int i = 0; i < 40; i++) {
+            final DefaultOkraItem item = newItem(LocalDateTime.now().minusMinutes(5));
+            schedule(producer, item);
+            usedPartitions.add(producer.partitionIndex(item.getId()));
+        }
+
+        assertThat(usedPartitions).hasSize(PARTITIONS);
+        assertThat(count(consumer, OkraStatus.PENDING)).isEqualTo(40);
+
+        // Home partition first, then every other partition through work-stealing
+        for (int i = 0; i < 40; i++) {
+            assertThat(poll(consumer)).isNotNull();
+        }
+
+        assertThat(poll(consumer)).isNull();
+        assertThat(count(producer, OkraStatus.PENDING)).isZero();
+    }
+
+    @Test
+    public void operationsAreRoutedByIdTest() {
+        final PartitionedOkraAsync<DefaultOkraItem> first = partitioned("routing", 0);
+        final PartitionedOkraAsync<DefaultOkraItem> second = partitioned("routing", 2);
+
+        schedule(first, newItem(LocalDateTime.now().minusMinutes(5)));
+
+        final DefaultOkraItem claimed = peek(first);
+        assertThat(claimed).isNotNull();
+
+        final DefaultOkraItem renewed = heartbeat(second, claimed);
+        assertThat(renewed).isNotNull();
+        assertThat(delete(second, renewed)).isEqualTo(1);
+        assertThat(count(first, OkraStatus.PROCESSING)).isZero();
+    }
+
+    @Test
+    public void dispatcherAndGaugesAreSharedByPartitionsTest() {
+        final AtomicInteger closed = new AtomicInteger();
+        final CallbackDispatcher dispatcher = new CallbackDispatcher() {
+
+            @Override
+            public void dispatch(final Runnable task) {
+                task.run();
+            }
+
+            @Override
+            public boolean isSaturated() {
+                return false;
+            }
+
+            @Override
+            public void close() {
+                closed.incrementAndGet();
+            }
+        };
+
+        final List<OkraGauges> bound = new ArrayList<>();
+        final OkraMetrics metrics = new OkraMetrics() {
+
+            @Override
+            public void bindGauges(final OkraGauges gauges) {
+                bound.add(gauges);
+            }
+        };
+
+        final PartitionedOkraAsync<DefaultOkraItem> partitioned = new OkraAsyncBuilder<DefaultOkraItem>()
+                .withMongo(getDefaultMongo())
+                .withDatabase("okraPartitionedTests")
+                .withCollection("shared")
+                .withItemClass(DefaultOkraItem.class)
+                .withExpiration(5, TimeUnit.MINUTES)
+                .withCallbackDispatcher(dispatcher)
+                .withMetrics(metrics, 1, TimeUnit.HOURS)
+                .buildPartitioned(PARTITIONS, 0);
+
+        // A single set of gauges, covering every partition
+        assertThat(bound).containsExactly(partitioned.getGauges());
+
+        partitioned.close();
+        assertThat(closed.get()).isEqualTo(1);
+    }
+
+    private PartitionedOkraAsync<DefaultOkraItem> partitioned(final String collection, final int homePartition) {
+        return new OkraAsyncBuilder<DefaultOkraItem>()
+                .withMongo(getDefaultMongo())
+                .withDatabase("okraPartitionedTests")
+                .withCollection(collection)
+                .withItemClass(DefaultOkraItem.class)
+                .withExpiration(5, TimeUnit.MINUTES)
+                .buildPartitioned(PARTITIONS, homePartition);
+    }
+}
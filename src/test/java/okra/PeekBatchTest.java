@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import okra.base.async.callback.OkraItemScheduleCallback;
+import okra.base.model.OkraStatus;
+import okra.callback.OkraItemsCallback;
+import okra.future.OkraFutures;
+import okra.model.DefaultOkraItem;
+import okra.reactive.OkraPublisher;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PeekBatchTest extends OkraBaseContainerTest {
+
+    @Test
+    public void peekBatchTest() throws InterruptedException {
+        final int scheduled = 10;
+        final CountDownLatch scheduleLock = new CountDownLatch(scheduled);
+
+        for (int i = 0; i < scheduled; i++) {
+            final DefaultOkraItem item = new DefaultOkraItem();
+            item.setRunDate(LocalDateTime.now().minusMinutes(5));
+
+            getDefaultOkra().schedule(item, new OkraItemScheduleCallback() {
+
+                @Override
+                public void onSuccess() {
+                    scheduleLock.countDown();
+                }
+
+                @Override
+                public void onFailure(final Throwable throwable) {
+                }
+            });
+        }
+
+        assertThat(scheduleLock.await(5, TimeUnit.SECONDS)).isTrue();
+
+        final CountDownLatch peekLock = new CountDownLatch(1);
+        final List<DefaultOkraItem> result = new ArrayList<>();
+        final Throwable[] resultError = {null};
+
+        getDefaultOkra().peekBatch(4, new OkraItemsCallback<DefaultOkraItem>() {
+
+            @Override
+            public void onSuccess(final List<DefaultOkraItem> items) {
+                result.addAll(items);
+                peekLock.countDown();
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                resultError[0] = throwable;
+                peekLock.countDown();
+            }
+        });
+
+        assertThat(peekLock.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(resultError[0]).isNull();
+        assertThat(result).hasSize(4);
+        assertThat(result).allMatch(item -> item.getHeartbeat() != null);
+    }
+
+    @Test
+    public void publisherClaimsBatchesUpToDemandTest() throws Exception {
+        // Own collection, the other test leaves items behind
+        final OkraAsyncImpl<DefaultOkraItem> okra = new OkraAsyncBuilder<DefaultOkraItem>()
+                .withMongo(getDefaultMongo())
+                .withDatabase("okraAsyncTests")
+                .withCollection("publisher")
+                .withItemClass(DefaultOkraItem.class)
+                .withExpiration(5, TimeUnit.MINUTES)
+                .build();
+        final OkraFutures<DefaultOkraItem> futures = new OkraFutures<>(okra);
+        for (int i = 0; i < 10; i++) {
+            final DefaultOkraItem item = new DefaultOkraItem();
+            item.setRunDate(LocalDateTime.now().minusMinutes(5));
+            futures.schedule(item).get(5, TimeUnit.SECONDS);
+        }
+
+        final List<DefaultOkraItem> received = new CopyOnWriteArrayList<>();
+        final Subscription[] subscription = {null};
+
+        new OkraPublisher<>(okra, 10, TimeUnit.MILLISECONDS, 4).subscribe(new Subscriber<DefaultOkraItem>() {
+
+            @Override
+            public void onSubscribe(final Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(final DefaultOkraItem item) {
+                received.add(item);
+            }
+
+            @Override
+            public void onError(final Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        // One batch of 4, then one of 2: never more than requested
+        subscription[0].request(6);
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (received.size() < 6 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        subscription[0].cancel();
+
+        assertThat(received).hasSize(6);
+        assertThat(futures.countByStatus(OkraStatus.PROCESSING).get(5, TimeUnit.SECONDS)).isEqualTo(6);
+        assertThat(futures.countByStatus(OkraStatus.PENDING).get(5, TimeUnit.SECONDS)).isEqualTo(4);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import com.mongodb.async.client.MongoDatabase;
+import okra.base.model.OkraStatus;
+import okra.index.IndexCreator;
+import okra.util.QueryUtil;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PeekQueryPlanTest extends OkraBaseContainerTest {
+
+    private static final String COLLECTION = "peekPlan";
+
+    private static final int DUE_ITEMS = 200;
+    private static final int ITEMS_IN_PROGRESS = 50;
+
+    @Test
+    public void peekQueryIsServedInRunDateOrderByTheIndexTest() throws Exception {
+        final MongoDatabase database = getDefaultMongo().getDatabase(getDefaultOkra().getDatabase());
+
+        IndexCreator.ensureIndexes(getDefaultMongo(), getDefaultOkra().getDatabase(), COLLECTION,
+                IndexCreator.requiredIndexes(getDefaultOkra())).get(5, TimeUnit.SECONDS);
+        seed(database);
+
+        final BsonDocument filter = QueryUtil.generatePeekQuery(TimeUnit.MINUTES.toMillis(5))
+                .toBsonDocument(BsonDocument.class, database.getCodecRegistry());
+
+        final BsonDocument sort = QueryUtil.generatePeekSort()
+                .toBsonDocument(BsonDocument.class, database.getCodecRegistry());
+
+        final Document find = new Document("find", COLLECTION)
+                .append("filter", filter)
+                .append("sort", sort)
+                .append("limit", 1);
+
+        final CompletableFuture<Document> explain = new CompletableFuture<>();
+
+        database.runCommand(new Document("explain", find).append("verbosity", "executionStats"),
+                (result, throwable) -> {
+                    if (throwable == null) {
+                        explain.complete(result);
+                    } else {
+                        explain.completeExceptionally(throwable);
+                    }
+                });
+
+        final Document result = explain.get(5, TimeUnit.SECONDS);
+        final Document winningPlan = result.get("queryPlanner", Document.class)
+                .get("winningPlan", Document.class);
+
+        final List<String> stages = new ArrayList<>();
+        collectStages(winningPlan, stages);
+
+        assertThat(stages).contains("IXSCAN");
+        assertThat(stages).doesNotContain("COLLSCAN");
+
+        // Every branch comes back in runDate order and is merged, no blocking sort over the due items
+        assertThat(stages).contains("SORT_MERGE");
+        assertThat(stages).doesNotContain("SORT");
+
+        // The oldest due item and the expired lease, not the whole backlog nor every item in progress
+        final Document executionStats = result.get("executionStats", Document.class);
+        assertThat(executionStats.getInteger("nReturned")).isEqualTo(1);
+        assertThat(executionStats.getInteger("totalDocsExamined")).isLessThanOrEqualTo(3);
+    }
+
+    /**
+     * Due items, items in progress with a live lease and a single expired lease
+     */
+    private static void seed(final MongoDatabase database) throws Exception {
+        final long now = System.currentTimeMillis();
+        final List<Document> documents = new ArrayList<>();
+
+        for (int i = 0; i < DUE_ITEMS; i++) {
+            documents.add(new Document("status", OkraStatus.PENDING.name())
+                    .append("runDate", new Date(now - TimeUnit.MINUTES.toMillis(10) + i)));
+        }
+        for (int i = 0; i < ITEMS_IN_PROGRESS; i++) {
+            documents.add(new Document("status", OkraStatus.PROCESSING.name())
+                    .append("runDate", new Date(now - TimeUnit.MINUTES.toMillis(20) + i))
+                    .append("heartbeat", new Date(now)));
+        }
+        documents.add(new Document("status", OkraStatus.PROCESSING.name())
+                .append("runDate", new Date(now - TimeUnit.MINUTES.toMillis(5)))
+                .append("heartbeat", new Date(now - TimeUnit.HOURS.toMillis(1))));
+
+        final CompletableFuture<Void> inserted = new CompletableFuture<>();
+        database.getCollection(COLLECTION)
+                .insertMany(documents, (result, throwable) -> {
+                    if (throwable == null) {
+                        inserted.complete(null);
+                    } else {
+                        inserted.completeExceptionally(throwable);
+                    }
+                });
+        inserted.get(5, TimeUnit.SECONDS);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void collectStages(final Object plan, final List<String> stages) {
+        if (plan instanceof Document) {
+            final Document document = (Document) plan;
+
+            if (document.containsKey("stage")) {
+                stages.add(document.getString("stage"));
+            }
+
+            document.values().forEach(value -> collectStages(value, stages));
+        } else if (plan instanceof List) {
+            ((List<Object>) plan).forEach(value -> collectStages(value, stages));
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+import okra.base.async.callback.OkraCountCallback;
+import okra.base.model.OkraStatus;
+import okra.model.DefaultOkraItem;
+import okra.prefetch.PrefetchingOkraAsync;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static okra.OkraContractTest.*;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PrefetchingOkraAsyncTest extends OkraBaseContainerTest {
+
+    @Test
+    public void itemsAreHandedOutFromTheBufferTest() throws InterruptedException {
+        final OkraAsyncImpl<DefaultOkraItem> delegate = okra("take", TimeUnit.MINUTES.toMillis(5));
+        scheduleDue(delegate, 3);
+
+        final PrefetchingOkraAsync<DefaultOkraItem> prefetching = new PrefetchingOkraAsync<>(delegate, 3, 1);
+        awaitUntil(() -> prefetching.getBufferedCount() == 3);
+
+        // Claimed ahead of time, handed out once each
+        assertThat(count(delegate, OkraStatus.PROCESSING)).isEqualTo(3);
+
+        final Set<String> ids = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            ids.add(peek(prefetching).getId());
+        }
+        assertThat(ids).hasSize(3);
+        assertThat(prefetching.getBufferedCount()).isZero();
+
+        prefetching.close();
+    }
+
+    @Test
+    public void bufferedItemsKeepTheirLeaseTest() throws InterruptedException {
+        final long expirationMillis = 300;
+        final OkraAsyncImpl<DefaultOkraItem> delegate = okra("renewal", expirationMillis);
+        scheduleDue(delegate, 2);
+
+        final PrefetchingOkraAsync<DefaultOkraItem> prefetching = new PrefetchingOkraAsync<>(delegate, 2, 1);
+        awaitUntil(() -> prefetching.getBufferedCount() == 2);
+
+        Thread.sleep(expirationMillis * 3);
+
+        // Renewed in the background, nobody else can claim them
+        assertThat(peek(okra("renewal", expirationMillis))).isNull();
+
+        DefaultOkraItem item = null;
+        for (int i = 0; i < 10 && item == null; i++) {
+            item = peek(prefetching);
+        }
+        assertThat(item).isNotNull();
+
+        // Handed out with its current heartbeat
+        assertThat(reschedule(delegate, item)).isNotNull();
+
+        prefetching.close();
+    }
+
+    @Test
+    public void itemsWithLostLeasesAreDroppedTest() throws InterruptedException {
+        final long expirationMillis = 300;
+        final OkraAsyncImpl<DefaultOkraItem> delegate = okra("drop", expirationMillis);
+        scheduleDue(delegate, 1);
+
+        final PrefetchingOkraAsync<DefaultOkraItem> prefetching = new PrefetchingOkraAsync<>(delegate, 1, 1);
+        awaitUntil(() -> prefetching.getBufferedCount() == 1);
+
+        // Somebody else took the lease over
+        OkraContractTest.<Void>await(future -> getDefaultMongo()
+                .getDatabase("okraPrefetchTests")
+                .getCollection("drop")
+                .updateMany(Filters.exists("_id"), Updates.set("heartbeat", new Date(System.currentTimeMillis() + 1)),
+                        (result, throwable) -> future.complete(null)));
+
+        awaitUntil(() -> prefetching.getBufferedCount() == 0);
+
+        prefetching.close();
+    }
+
+    @Test
+    public void closeReleasesBufferedItemsTest() throws InterruptedException {
+        final OkraAsyncImpl<DefaultOkraItem> delegate = okra("close", TimeUnit.MINUTES.toMillis(5));
+        scheduleDue(delegate, 3);
+
+        final PrefetchingOkraAsync<DefaultOkraItem> prefetching = new PrefetchingOkraAsync<>(delegate, 3, 1);
+        awaitUntil(() -> prefetching.getBufferedCount() == 3);
+
+        final long released = OkraContractTest.await(future -> prefetching.close(new OkraCountCallback() {
+
+            @Override
+            public void onSuccess(final long count) {
+                future.complete(count);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        }));
+
+        assertThat(released).isEqualTo(3);
+        assertThat(count(delegate, OkraStatus.PENDING)).isEqualTo(3);
+        assertThat(count(delegate, OkraStatus.PROCESSING)).isZero();
+    }
+
+    private OkraAsyncImpl<DefaultOkraItem> okra(final String collection, final long expirationMillis) {
+        return new OkraAsyncBuilder<DefaultOkraItem>()
+                .withMongo(getDefaultMongo())
+                .withDatabase("okraPrefetchTests")
+                .withCollection(collection)
+                .withItemClass(DefaultOkraItem.class)
+                .withExpiration(expirationMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    private static void scheduleDue(final OkraAsyncImpl<DefaultOkraItem> okra, final int count) {
+        for (int i = 0; i < count; i++) {
+            schedule(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+        }
+    }
+
+    private static void awaitUntil(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(condition.getAsBoolean()).isTrue();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import okra.retry.RetryPolicy;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void delayGrowsExponentiallyUpToMaxDelayTest() {
+        final RetryPolicy policy = RetryPolicy.builder()
+                .withBackoff(1, 10, TimeUnit.SECONDS)
+                .withMultiplier(3)
+                .build();
+
+        assertThat(policy.delayMillis(1)).isEqualTo(1000);
+        assertThat(policy.delayMillis(2)).isEqualTo(3000);
+        assertThat(policy.delayMillis(3)).isEqualTo(9000);
+        assertThat(policy.delayMillis(4)).isEqualTo(10000);
+        assertThat(policy.delayMillis(1000)).isEqualTo(10000);
+    }
+
+    @Test
+    public void jitterOnlyShortensDelaysTest() {
+        final RetryPolicy policy = RetryPolicy.builder()
+                .withBackoff(1, 1, TimeUnit.SECONDS)
+                .withJitter(0.5)
+                .build();
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(policy.delayMillis(1)).isBetween(500L, 1000L);
+        }
+    }
+
+    @Test
+    public void exhaustedAfterMaxAttemptsTest() {
+        final RetryPolicy policy = RetryPolicy.builder().withMaxAttempts(3).build();
+
+        assertThat(policy.isExhausted(2)).isFalse();
+        assertThat(policy.isExhausted(3)).isTrue();
+        assertThat(RetryPolicy.DEFAULT.isExhausted(Integer.MAX_VALUE)).isFalse();
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import okra.base.async.callback.OkraCountCallback;
+import okra.base.model.OkraStatus;
+import okra.callback.OkraItemFailCallback;
+import okra.model.DefaultOkraItem;
+import okra.retry.RetryPolicy;
+import okra.worker.OkraWorkerPool;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static okra.OkraContractTest.*;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RetryTest extends OkraBaseContainerTest {
+
+    private static final String DATABASE = "okraRetryTests";
+
+    @Test
+    public void failReschedulesWithBackoffTest() {
+        final OkraAsyncImpl<DefaultOkraItem> okra = okra("failRetry", TimeUnit.MINUTES.toMillis(5), 3);
+        schedule(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+
+        final DefaultOkraItem claimed = peek(okra);
+        assertThat(claimed.getAttempts()).isEqualTo(1);
+
+        assertThat(fail(okra, claimed)).isEqualTo(OkraItemFailCallback.Outcome.RETRY_SCHEDULED);
+        assertThat(claimed.getStatus()).isEqualTo(OkraStatus.PENDING);
+
+        final Document stored = stored(okra.getCollection());
+        assertThat(stored.getString("status")).isEqualTo(OkraStatus.PENDING.name());
+        assertThat(stored.getString("lastError")).contains("boom");
+        assertThat(stored.getDate("runDate")).isAfter(new Date());
+    }
+
+    @Test
+    public void failDeadLettersOnceAttemptsAreExhaustedTest() {
+        final OkraAsyncImpl<DefaultOkraItem> okra = okra("failDeadLetter", TimeUnit.MINUTES.toMillis(5), 1);
+        schedule(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+
+        assertThat(fail(okra, peek(okra))).isEqualTo(OkraItemFailCallback.Outcome.DEAD_LETTERED);
+
+        assertThat(count(okra, OkraStatus.PENDING) + count(okra, OkraStatus.PROCESSING)).isZero();
+        assertThat(stored(okra.getDeadLetterCollection()).getString("lastError")).contains("boom");
+    }
+
+    @Test
+    public void claimDeadLettersItemsThatNeverReportedTest() throws InterruptedException {
+        final OkraAsyncImpl<DefaultOkraItem> okra = okra("claimDeadLetter", 1, 2);
+        schedule(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+
+        // Two claims whose leases expire, as if the worker crashed each time
+        assertThat(peek(okra)).isNotNull();
+        Thread.sleep(10);
+        assertThat(peek(okra)).isNotNull();
+        Thread.sleep(10);
+
+        assertThat(peek(okra)).isNull();
+        assertThat(stored(okra.getDeadLetterCollection()).getInteger("attempts")).isEqualTo(3);
+    }
+
+    @Test
+    public void rescheduledItemsAreNotDeadLetteredTest() {
+        final OkraAsyncImpl<DefaultOkraItem> okra = okra("rescheduleRetry", TimeUnit.MINUTES.toMillis(5), 1);
+        schedule(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+
+        for (int i = 0; i < 3; i++) {
+            final DefaultOkraItem claimed = peek(okra);
+            assertThat(claimed).isNotNull();
+
+            claimed.setRunDate(LocalDateTime.now().minusMinutes(1));
+            assertThat(reschedule(okra, claimed)).isNotNull();
+        }
+
+        assertThat(count(okra, OkraStatus.PENDING)).isEqualTo(1);
+        assertThat(stored(okra.getDeadLetterCollection())).isNull();
+    }
+
+    @Test
+    public void releasedItemsKeepTheirAttemptsTest() {
+        final OkraAsyncImpl<DefaultOkraItem> okra = okra("releaseRetry", TimeUnit.MINUTES.toMillis(5), 1);
+        schedule(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+
+        for (int i = 0; i < 3; i++) {
+            final DefaultOkraItem claimed = peek(okra);
+            assertThat(claimed.getAttempts()).isEqualTo(1);
+
+            assertThat(OkraContractTest.<Long>await(future -> okra.releaseAll(Collections.singletonList(claimed),
+                    new OkraCountCallback() {
+
+                        @Override
+                        public void onSuccess(final long count) {
+                            future.complete(count);
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable throwable) {
+                            future.completeExceptionally(throwable);
+                        }
+                    }))).isEqualTo(1);
+        }
+
+        assertThat(stored(okra.getCollection()).getInteger("attempts")).isZero();
+    }
+
+    @Test
+    public void workerPoolDeadLettersJobsThatKeepFailingTest() throws InterruptedException {
+        final OkraAsyncImpl<DefaultOkraItem> okra = new OkraAsyncBuilder<DefaultOkraItem>()
+                .withMongo(getDefaultMongo())
+                .withDatabase(DATABASE)
+                .withCollection("workerPoolDeadLetter")
+                .withItemClass(DefaultOkraItem.class)
+                .withExpiration(5, TimeUnit.MINUTES)
+                .withRetryPolicy(RetryPolicy.builder()
+                        .withMaxAttempts(3)
+                        .withBackoff(1, 10, TimeUnit.MILLISECONDS)
+                        .build())
+                .build();
+        schedule(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+
+        final AtomicInteger processed = new AtomicInteger();
+        final OkraWorkerPool<DefaultOkraItem> pool = OkraWorkerPool.builder(okra, (DefaultOkraItem item) -> {
+            processed.incrementAndGet();
+            final CompletableFuture<Void> result = new CompletableFuture<>();
+            result.completeExceptionally(new IllegalStateException("boom"));
+            return result;
+        })
+                .withBackoff(1, 10, TimeUnit.MILLISECONDS)
+                .withRetryDelay(1, TimeUnit.MILLISECONDS)
+                .build();
+
+        pool.start();
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (stored(okra.getDeadLetterCollection()) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        pool.close();
+
+        assertThat(stored(okra.getDeadLetterCollection()).getString("lastError")).contains("boom");
+        assertThat(count(okra, OkraStatus.PENDING) + count(okra, OkraStatus.PROCESSING)).isZero();
+        assertThat(processed.get()).isEqualTo(3);
+    }
+
+    private OkraAsyncImpl<DefaultOkraItem> okra(final String collection, final long expirationMillis,
+                                                final int maxAttempts) {
+        return new OkraAsyncBuilder<DefaultOkraItem>()
+                .withMongo(getDefaultMongo())
+                .withDatabase(DATABASE)
+                .withCollection(collection)
+                .withItemClass(DefaultOkraItem.class)
+                .withExpiration(expirationMillis, TimeUnit.MILLISECONDS)
+                .withRetryPolicy(RetryPolicy.builder()
+                        .withMaxAttempts(maxAttempts)
+                        .withBackoff(1, 10, TimeUnit.MINUTES)
+                        .build())
+                .build();
+    }
+
+    private static OkraItemFailCallback.Outcome fail(final OkraAsyncImpl<DefaultOkraItem> okra,
+                                                     final DefaultOkraItem item) {
+        return OkraContractTest.await(future -> okra.fail(item, new IllegalStateException("boom"),
+                failCallback(future)));
+    }
+
+    private Document stored(final String collection) {
+        return OkraContractTest.await(future -> getDefaultMongo()
+                .getDatabase(DATABASE)
+                .getCollection(collection)
+                .find()
+                .first((document, throwable) -> future.complete(document)));
+    }
+
+    private static OkraItemFailCallback failCallback(final CompletableFuture<OkraItemFailCallback.Outcome> future) {
+        return new OkraItemFailCallback() {
+
+            @Override
+            public void onSuccess(final Outcome outcome) {
+                future.complete(outcome);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        };
+    }
+}
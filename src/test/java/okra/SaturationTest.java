@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import okra.base.async.callback.OkraItemScheduleCallback;
+import okra.base.model.OkraStatus;
+import okra.dispatch.CallbackDispatcher;
+import okra.dispatch.OkraSaturatedException;
+import okra.model.DefaultOkraItem;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static okra.OkraContractTest.count;
+import static okra.OkraContractTest.newItem;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SaturationTest extends OkraBaseContainerTest {
+
+    @Test
+    public void writesAreNotSentWhileSaturatedTest() throws Exception {
+        final CallbackDispatcher dispatcher = CallbackDispatcher.boundedExecutor(1, 1);
+        final OkraAsyncImpl<DefaultOkraItem> okra = okra("saturatedWrites", dispatcher);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        dispatcher.dispatch(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        dispatcher.dispatch(() -> {
+        });
+
+        final CompletableFuture<Thread> failed = new CompletableFuture<>();
+        okra.schedule(newItem(LocalDateTime.now().minusMinutes(1)), new OkraItemScheduleCallback() {
+
+            @Override
+            public void onSuccess() {
+                failed.completeExceptionally(new AssertionError("Scheduled while saturated"));
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                assertThat(throwable).isInstanceOf(OkraSaturatedException.class);
+                failed.complete(Thread.currentThread());
+            }
+        });
+
+        assertThat(failed.get(5, TimeUnit.SECONDS)).isSameAs(Thread.currentThread());
+
+        release.countDown();
+        while (dispatcher.isSaturated()) {
+            Thread.sleep(1);
+        }
+        assertThat(count(okra, OkraStatus.PENDING)).isZero();
+        okra.close();
+    }
+
+    @Test
+    public void resultsOfSentWritesAreDeliveredTest() throws Exception {
+        // Room is left when the write is sent, none when its result comes back
+        final CallbackDispatcher full = new CallbackDispatcher() {
+
+            @Override
+            public void dispatch(final Runnable task) {
+                throw new RejectedExecutionException();
+            }
+
+            @Override
+            public boolean isSaturated() {
+                return false;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        final OkraAsyncImpl<DefaultOkraItem> okra = okra("overflowingResults", full);
+
+        final CompletableFuture<String> scheduled = new CompletableFuture<>();
+        okra.schedule(newItem(LocalDateTime.now().minusMinutes(1)), new OkraItemScheduleCallback() {
+
+            @Override
+            public void onSuccess() {
+                scheduled.complete(Thread.currentThread().getName());
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                scheduled.completeExceptionally(throwable);
+            }
+        });
+
+        assertThat(scheduled.get(5, TimeUnit.SECONDS)).isEqualTo("okra-callback-overflow");
+        assertThat(count(okra, OkraStatus.PENDING)).isEqualTo(1);
+        okra.close();
+    }
+
+    private OkraAsyncImpl<DefaultOkraItem> okra(final String collection, final CallbackDispatcher dispatcher) {
+        return new OkraAsyncBuilder<DefaultOkraItem>()
+                .withMongo(getDefaultMongo())
+                .withDatabase("okraSaturationTests")
+                .withCollection(collection)
+                .withItemClass(DefaultOkraItem.class)
+                .withExpiration(5, TimeUnit.MINUTES)
+                .withCallbackDispatcher(dispatcher)
+                .build();
+    }
+}
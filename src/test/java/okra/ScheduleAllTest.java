@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import okra.base.async.callback.OkraItemScheduleCallback;
+import okra.base.model.OkraStatus;
+import okra.callback.OkraItemsScheduleCallback;
+import okra.metrics.OkraMetrics;
+import okra.metrics.OkraOperation;
+import okra.model.DefaultOkraItem;
+import okra.model.ScheduleFailure;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static okra.OkraContractTest.*;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ScheduleAllTest extends OkraBaseContainerTest {
+
+    @Test
+    public void scheduleAllReportsPartialFailureTest() {
+        final OkraAsyncImpl<DefaultOkraItem> okra = okra("partialFailure").build();
+
+        final DefaultOkraItem existing = newItem(LocalDateTime.now().minusMinutes(5));
+        existing.setId(new ObjectId().toHexString());
+        schedule(okra, existing);
+
+        final DefaultOkraItem duplicate = newItem(LocalDateTime.now().minusMinutes(5));
+        duplicate.setId(existing.getId());
+
+        final List<DefaultOkraItem> items = Arrays.asList(
+                newItem(LocalDateTime.now().minusMinutes(5)),
+                duplicate,
+                newItem(LocalDateTime.now().minusMinutes(5)));
+
+        final List<ScheduleFailure<DefaultOkraItem>> failures = new ArrayList<>();
+        final int scheduled = OkraContractTest.<Integer>await(future -> okra.scheduleAll(items,
+                new OkraItemsScheduleCallback<DefaultOkraItem>() {
+
+                    @Override
+                    public void onSuccess(final int scheduledCount,
+                                          final List<ScheduleFailure<DefaultOkraItem>> itemFailures) {
+                        failures.addAll(itemFailures);
+                        future.complete(scheduledCount);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable throwable) {
+                        future.completeExceptionally(throwable);
+                    }
+                }));
+
+        // The unordered insert goes on after the duplicate
+        assertThat(scheduled).isEqualTo(2);
+        assertThat(failures).hasSize(1);
+        assertThat(failures.get(0).getIndex()).isEqualTo(1);
+        assertThat(failures.get(0).getItem()).isSameAs(duplicate);
+        assertThat(count(okra, OkraStatus.PENDING)).isEqualTo(3);
+    }
+
+    @Test
+    public void nothingInsertedSendsNoSignalTest() throws Exception {
+        final OkraAsyncImpl<DefaultOkraItem> okra = okra("noSignal").withWakeUpSignals().build();
+
+        final DefaultOkraItem existing = newItem(LocalDateTime.now().minusMinutes(5));
+        existing.setId(new ObjectId().toHexString());
+        schedule(okra, existing);
+        awaitSignals(okra, 1);
+
+        final DefaultOkraItem duplicate = newItem(LocalDateTime.now().minusMinutes(5));
+        duplicate.setId(existing.getId());
+
+        final List<ScheduleFailure<DefaultOkraItem>> failures = OkraContractTest.await(future -> okra.scheduleAll(
+                Collections.singletonList(duplicate), new OkraItemsScheduleCallback<DefaultOkraItem>() {
+
+                    @Override
+                    public void onSuccess(final int scheduledCount,
+                                          final List<ScheduleFailure<DefaultOkraItem>> itemFailures) {
+                        future.complete(itemFailures);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable throwable) {
+                        future.completeExceptionally(throwable);
+                    }
+                }));
+        assertThat(failures).hasSize(1);
+
+        Thread.sleep(200);
+        assertThat(countSignals(okra)).isEqualTo(1);
+    }
+
+    @Test
+    public void coalescedSchedulesAreMeteredOnceTest() throws Exception {
+        final List<OkraOperation> operations = new CopyOnWriteArrayList<>();
+        final OkraAsyncImpl<DefaultOkraItem> okra = okra("coalescedMetrics")
+                .withScheduleCoalescing(3, 1, TimeUnit.HOURS)
+                .withMetrics(new OkraMetrics() {
+
+                    @Override
+                    public void recordLatency(final OkraOperation operation, final long elapsedNanos,
+                                              final boolean success) {
+                        operations.add(operation);
+                    }
+                }, 1, TimeUnit.HOURS)
+                .build();
+
+        final List<CompletableFuture<Void>> scheduled = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            scheduled.add(scheduleAsync(okra, newItem(LocalDateTime.now().minusMinutes(5))));
+        }
+        awaitAll(scheduled);
+
+        assertThat(operations).filteredOn(operation -> operation != OkraOperation.SCHEDULE)
+                .doesNotContain(OkraOperation.SCHEDULE_ALL);
+        assertThat(operations).filteredOn(operation -> operation == OkraOperation.SCHEDULE).hasSize(3);
+
+        okra.close();
+    }
+
+    @Test
+    public void coalescerFlushesFullBatchesTest() throws Exception {
+        final OkraAsyncImpl<DefaultOkraItem> okra = okra("coalescedBySize")
+                .withScheduleCoalescing(3, 1, TimeUnit.HOURS)
+                .build();
+
+        final List<CompletableFuture<Void>> scheduled = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            scheduled.add(scheduleAsync(okra, newItem(LocalDateTime.now().minusMinutes(5))));
+        }
+
+        // Far from the delay, only the batch size can have flushed them
+        awaitAll(scheduled);
+        assertThat(count(okra, OkraStatus.PENDING)).isEqualTo(3);
+
+        okra.close();
+    }
+
+    @Test
+    public void coalescerFlushesAfterDelayTest() throws Exception {
+        final OkraAsyncImpl<DefaultOkraItem> okra = okra("coalescedByDelay")
+                .withScheduleCoalescing(100, 100, TimeUnit.MILLISECONDS)
+                .build();
+
+        final CompletableFuture<Void> first = scheduleAsync(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+        final CompletableFuture<Void> second = scheduleAsync(okra, newItem(LocalDateTime.now().minusMinutes(5)));
+
+        assertThat(first.isDone()).isFalse();
+        awaitAll(Arrays.asList(first, second));
+        assertThat(count(okra, OkraStatus.PENDING)).isEqualTo(2);
+
+        okra.close();
+    }
+
+    @Test
+    public void expirationIsRequiredTest() {
+        assertThatThrownBy(() -> new OkraAsyncBuilder<DefaultOkraItem>()
+                .withMongo(getDefaultMongo())
+                .withDatabase("okraScheduleAllTests")
+                .withCollection("noExpiration")
+                .withItemClass(DefaultOkraItem.class)
+                .build())
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    private OkraAsyncBuilder<DefaultOkraItem> okra(final String collection) {
+        return new OkraAsyncBuilder<DefaultOkraItem>()
+                .withMongo(getDefaultMongo())
+                .withDatabase("okraScheduleAllTests")
+                .withCollection(collection)
+                .withItemClass(DefaultOkraItem.class)
+                .withExpiration(5, TimeUnit.MINUTES);
+    }
+
+    private long countSignals(final OkraAsyncImpl<DefaultOkraItem> okra) {
+        return OkraContractTest.<Long>await(future -> getDefaultMongo()
+                .getDatabase("okraScheduleAllTests")
+                .getCollection(okra.getSignalCollection())
+                .count((count, throwable) -> future.complete(count)));
+    }
+
+    private void awaitSignals(final OkraAsyncImpl<DefaultOkraItem> okra, final long expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (countSignals(okra) < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(countSignals(okra)).isEqualTo(expected);
+    }
+
+    private static void awaitAll(final List<CompletableFuture<Void>> futures) throws Exception {
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+    }
+
+    private static CompletableFuture<Void> scheduleAsync(final OkraAsyncImpl<DefaultOkraItem> okra,
+                                                         final DefaultOkraItem item) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        okra.schedule(item, new OkraItemScheduleCallback() {
+
+            @Override
+            public void onSuccess() {
+                future.complete(null);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        });
+        return future;
+    }
+}
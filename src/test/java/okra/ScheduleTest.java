@@ -33,7 +33,7 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 public class ScheduleTest extends OkraBaseContainerTest {
 
-    private CountDownLatch lock = new CountDownLatch(1);
+    private final CountDownLatch lock = new CountDownLatch(1);
 
     @Test
     public void scheduleTest() throws InterruptedException {
@@ -48,15 +48,17 @@ public class ScheduleTest extends OkraBaseContainerTest {
             @Override
             public void onSuccess() {
                 result[0] = true;
+                lock.countDown();
             }
 
             @Override
             public void onFailure(final Throwable throwable) {
                 resultError[0] = throwable;
+                lock.countDown();
             }
         });
 
-        lock.await(5, TimeUnit.SECONDS);
+        assertThat(lock.await(5, TimeUnit.SECONDS)).isTrue();
 
         assertThat(result[0]).isTrue();
         assertThat(resultError[0]).isNull();
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import com.mongodb.async.client.MongoClient;
+import com.mongodb.client.model.Filters;
+import okra.base.async.callback.OkraItemCallback;
+import okra.model.DefaultOkraItem;
+import okra.subscription.OkraSubscription;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static okra.OkraContractTest.*;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SubscriptionTest extends OkraBaseContainerTest {
+
+    @Test
+    public void scheduleOnAnotherInstanceWakesSubscriberTest() throws Exception {
+        // The fallback timer is far away, only the signal can wake the subscriber up
+        final OkraAsyncImpl<DefaultOkraItem> consumer =
+                okra(getDefaultMongo(), "signalled", TimeUnit.MINUTES.toMillis(5), false);
+        final CompletableFuture<DefaultOkraItem> received = new CompletableFuture<>();
+        final OkraSubscription<DefaultOkraItem> subscription = consumer.subscribe(callback(received));
+
+        final MongoClient producerMongo = createMongo();
+        try {
+            final OkraAsyncImpl<DefaultOkraItem> producer =
+                    okra(producerMongo, "signalled", TimeUnit.MINUTES.toMillis(5), true);
+
+            // Lets the subscription start tailing
+            Thread.sleep(500);
+            assertThat(received.isDone()).isFalse();
+
+            final DefaultOkraItem item = newItem(LocalDateTime.now().minusSeconds(1));
+            schedule(producer, item);
+
+            assertThat(received.get(5, TimeUnit.SECONDS).getId()).isEqualTo(item.getId());
+        } finally {
+            subscription.cancel();
+            producerMongo.close();
+        }
+    }
+
+    @Test
+    public void fallbackTimerFiresWithoutSignalTest() throws Exception {
+        final OkraAsyncImpl<DefaultOkraItem> consumer = okra(getDefaultMongo(), "unsignalled", 500, false);
+        final CompletableFuture<DefaultOkraItem> received = new CompletableFuture<>();
+        final OkraSubscription<DefaultOkraItem> subscription = consumer.subscribe(callback(received));
+
+        try {
+            Thread.sleep(100);
+
+            // Written without any signal
+            final DefaultOkraItem item = newItem(LocalDateTime.now().minusSeconds(1));
+            schedule(okra(getDefaultMongo(), "unsignalled", 500, false), item);
+
+            assertThat(received.get(5, TimeUnit.SECONDS).getId()).isEqualTo(item.getId());
+        } finally {
+            subscription.cancel();
+        }
+    }
+
+    @Test
+    public void producerSignallingBeforeSubscriberTest() throws Exception {
+        final OkraAsyncImpl<DefaultOkraItem> producer =
+                okra(getDefaultMongo(), "signalledFirst", TimeUnit.MINUTES.toMillis(5), true);
+
+        // Signals before anybody subscribed, the signal collection must still be capped
+        schedule(producer, newItem(LocalDateTime.now().plusHours(1)));
+        producer.ensureSignalCollection().get(5, TimeUnit.SECONDS);
+        assertThat(signalCollectionOptions(producer).getBoolean("capped")).isTrue();
+
+        final OkraAsyncImpl<DefaultOkraItem> consumer =
+                okra(getDefaultMongo(), "signalledFirst", TimeUnit.MINUTES.toMillis(5), false);
+        final CompletableFuture<DefaultOkraItem> received = new CompletableFuture<>();
+        final OkraSubscription<DefaultOkraItem> subscription = consumer.subscribe(callback(received));
+
+        try {
+            Thread.sleep(500);
+            assertThat(received.isDone()).isFalse();
+
+            final DefaultOkraItem item = newItem(LocalDateTime.now().minusSeconds(1));
+            schedule(producer, item);
+
+            assertThat(received.get(5, TimeUnit.SECONDS).getId()).isEqualTo(item.getId());
+        } finally {
+            subscription.cancel();
+        }
+    }
+
+    @Test
+    public void uncappedSignalCollectionIsRejectedTest() {
+        final OkraAsyncImpl<DefaultOkraItem> consumer =
+                okra(getDefaultMongo(), "uncappedSignals", TimeUnit.MINUTES.toMillis(5), false);
+
+        // As left by a producer that upserted signals before the collection was created capped
+        OkraContractTest.<Void>await(future -> getDefaultMongo()
+                .getDatabase(consumer.getDatabase())
+                .getCollection(consumer.getSignalCollection())
+                .insertOne(new Document("runDate", new Date()), (result, throwable) -> future.complete(null)));
+
+        assertThatThrownBy(() -> consumer.ensureSignalCollection().get(5, TimeUnit.SECONDS))
+                .hasCauseInstanceOf(IllegalStateException.class)
+                .hasMessageContaining(consumer.getSignalCollection());
+    }
+
+    private Document signalCollectionOptions(final OkraAsyncImpl<DefaultOkraItem> okra) {
+        final Document collection = OkraContractTest.await(future -> getDefaultMongo()
+                .getDatabase(okra.getDatabase())
+                .listCollections()
+                .filter(Filters.eq("name", okra.getSignalCollection()))
+                .first((document, throwable) -> future.complete(document)));
+        return collection.get("options", Document.class);
+    }
+
+    private static OkraAsyncImpl<DefaultOkraItem> okra(final MongoClient mongo,
+                                                      final String collection,
+                                                      final long expirationMillis,
+                                                      final boolean wakeUpSignals) {
+        final OkraAsyncBuilder<DefaultOkraItem> builder = new OkraAsyncBuilder<DefaultOkraItem>()
+                .withMongo(mongo)
+                .withDatabase("okraSubscriptionTests")
+                .withCollection(collection)
+                .withItemClass(DefaultOkraItem.class)
+                .withExpiration(expirationMillis, TimeUnit.MILLISECONDS);
+
+        return wakeUpSignals ? builder.withWakeUpSignals().build() : builder.build();
+    }
+
+    private static OkraItemCallback<DefaultOkraItem> callback(final CompletableFuture<DefaultOkraItem> received) {
+        return new OkraItemCallback<DefaultOkraItem>() {
+
+            @Override
+            public void onSuccess(final DefaultOkraItem item) {
+                received.complete(item);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                received.completeExceptionally(throwable);
+            }
+        };
+    }
+}
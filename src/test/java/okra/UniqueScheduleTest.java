@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2017 Okra Scheduler
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package okra;
+
+import okra.base.async.callback.OkraCountCallback;
+import okra.base.async.callback.OkraItemCallback;
+import okra.base.async.callback.OkraItemOperationCallback;
+import okra.base.model.OkraStatus;
+import okra.callback.OkraItemsScheduleCallback;
+import okra.model.DefaultUniqueOkraItem;
+import okra.model.ScheduleFailure;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class UniqueScheduleTest extends OkraBaseContainerTest {
+
+    @Test
+    public void scheduleIfAbsentKeepsTheFirstItemTest() {
+        final OkraAsyncImpl<DefaultUniqueOkraItem> okra = okra("ifAbsent");
+
+        final DefaultUniqueOkraItem first = newItem("job", LocalDateTime.now().minusMinutes(5));
+        assertThat(OkraContractTest.<Long>await(future -> okra.scheduleIfAbsent(first, countCallback(future))))
+                .isEqualTo(1);
+        assertThat(first.getId()).isNotNull();
+
+        final DefaultUniqueOkraItem retry = newItem("job", LocalDateTime.now().minusMinutes(1));
+        assertThat(OkraContractTest.<Long>await(future -> okra.scheduleIfAbsent(retry, countCallback(future))))
+                .isZero();
+
+        assertThat(peek(okra).getId()).isEqualTo(first.getId());
+        assertThat(peek(okra)).isNull();
+    }
+
+    @Test
+    public void scheduleOrReplaceOnlyReplacesPendingItemsTest() {
+        final OkraAsyncImpl<DefaultUniqueOkraItem> okra = okra("orReplace");
+
+        final DefaultUniqueOkraItem pending = newItem("pending", LocalDateTime.now().plusHours(1));
+        assertThat(OkraContractTest.<Long>await(future -> okra.scheduleOrReplace(pending, countCallback(future))))
+                .isEqualTo(1);
+
+        // Made due by the replacement, under the same id
+        final DefaultUniqueOkraItem replacement = newItem("pending", LocalDateTime.now().minusMinutes(5));
+        assertThat(OkraContractTest.<Long>await(future -> okra.scheduleOrReplace(replacement, countCallback(future))))
+                .isEqualTo(1);
+        assertThat(replacement.getId()).isEqualTo(pending.getId());
+
+        final DefaultUniqueOkraItem processing = peek(okra);
+        assertThat(processing.getId()).isEqualTo(pending.getId());
+
+        final DefaultUniqueOkraItem late = newItem("pending", LocalDateTime.now().minusMinutes(5));
+        assertThat(OkraContractTest.<Long>await(future -> okra.scheduleOrReplace(late, countCallback(future))))
+                .isZero();
+        assertThat(peek(okra)).isNull();
+    }
+
+    @Test
+    public void replaceNeverLowersTheLeaseTokenTest() {
+        final OkraAsyncImpl<DefaultUniqueOkraItem> okra = okra("replaceToken");
+
+        final DefaultUniqueOkraItem item = newItem("job", LocalDateTime.now().minusMinutes(5));
+        assertThat(OkraContractTest.<Long>await(future -> okra.scheduleOrReplace(item, countCallback(future))))
+                .isEqualTo(1);
+
+        long previousToken = 0;
+        for (int i = 0; i < 3; i++) {
+            final DefaultUniqueOkraItem claimed = peek(okra);
+            assertThat(claimed.getLeaseToken()).isGreaterThan(previousToken);
+            previousToken = claimed.getLeaseToken();
+
+            claimed.setRunDate(LocalDateTime.now().minusMinutes(1));
+            assertThat(OkraContractTest.<DefaultUniqueOkraItem>await(future ->
+                    okra.reschedule(claimed, new OkraItemOperationCallback<DefaultUniqueOkraItem>() {
+
+                        @Override
+                        public void onSuccess(final DefaultUniqueOkraItem rescheduled) {
+                            future.complete(rescheduled);
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable throwable) {
+                            future.completeExceptionally(throwable);
+                        }
+                    }))).isNotNull();
+
+            // A fresh item carries a token of 0, the stored one must be kept
+            final DefaultUniqueOkraItem replacement = newItem("job", LocalDateTime.now().minusMinutes(5));
+            assertThat(OkraContractTest.<Long>await(future -> okra.scheduleOrReplace(replacement, countCallback(future))))
+                    .isEqualTo(1);
+            assertThat(replacement.getId()).isEqualTo(item.getId());
+        }
+    }
+
+    @Test
+    public void scheduleAllIfAbsentSkipsTakenKeysTest() {
+        final OkraAsyncImpl<DefaultUniqueOkraItem> okra = okra("allIfAbsent");
+
+        OkraContractTest.<Long>await(future ->
+                okra.scheduleIfAbsent(newItem("a", LocalDateTime.now().minusMinutes(5)), countCallback(future)));
+
+        final List<DefaultUniqueOkraItem> items = Arrays.asList(
+                newItem("a", LocalDateTime.now().minusMinutes(5)),
+                newItem("b", LocalDateTime.now().minusMinutes(5)),
+                newItem("b", LocalDateTime.now().minusMinutes(5)),
+                newItem("c", LocalDateTime.now().minusMinutes(5)));
+
+        final int scheduled = OkraContractTest.await(future ->
+                okra.scheduleAllIfAbsent(items, new OkraItemsScheduleCallback<DefaultUniqueOkraItem>() {
+
+                    @Override
+                    public void onSuccess(final int scheduledCount,
+                                          final List<ScheduleFailure<DefaultUniqueOkraItem>> failures) {
+                        assertThat(failures).isEmpty();
+                        future.complete(scheduledCount);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable throwable) {
+                        future.completeExceptionally(throwable);
+                    }
+                }));
+
+        assertThat(scheduled).isEqualTo(2);
+        assertThat(OkraContractTest.<Long>await(future -> okra.countByStatus(OkraStatus.PENDING, countCallback(future))))
+                .isEqualTo(3);
+    }
+
+    private OkraAsyncImpl<DefaultUniqueOkraItem> okra(final String collection) {
+        final OkraAsyncImpl<DefaultUniqueOkraItem> okra = new OkraAsyncBuilder<DefaultUniqueOkraItem>()
+                .withMongo(getDefaultMongo())
+                .withDatabase("okraUniqueTests")
+                .withCollection(collection)
+                .withItemClass(DefaultUniqueOkraItem.class)
+                .withExpiration(5, TimeUnit.MINUTES)
+                .build();
+
+        // Deduplication relies on the unique index
+        okra.ready().join();
+        return okra;
+    }
+
+    private static DefaultUniqueOkraItem newItem(final String uniqueKey, final LocalDateTime runDate) {
+        final DefaultUniqueOkraItem item = new DefaultUniqueOkraItem();
+        item.setUniqueKey(uniqueKey);
+        item.setRunDate(runDate);
+        item.setStatus(OkraStatus.PENDING);
+        return item;
+    }
+
+    private static DefaultUniqueOkraItem peek(final OkraAsyncImpl<DefaultUniqueOkraItem> okra) {
+        return OkraContractTest.await(future -> okra.peek(new OkraItemCallback<DefaultUniqueOkraItem>() {
+
+            @Override
+            public void onSuccess(final DefaultUniqueOkraItem item) {
+                future.complete(item);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        }));
+    }
+
+    private static OkraCountCallback countCallback(final CompletableFuture<Long> future) {
+        return new OkraCountCallback() {
+
+            @Override
+            public void onSuccess(final long count) {
+                future.complete(count);
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        };
+    }
+}